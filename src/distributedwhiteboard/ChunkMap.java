@@ -0,0 +1,247 @@
+package distributedwhiteboard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Describes how an encoded image is split into chunks, so that the chunks can
+ * be fetched separately, from several hosts at once, and checked as they
+ * arrive. The image is split into chunks of {@link ChunkMap#CHUNK_SIZE}
+ * bytes, the last one shorter, and the map holds the SHA-256 digest of each.
+ * <p>
+ * Maps are sent by hosts offering an image, along with the UDP address to
+ * ask them for chunks at. Two hosts can only share a download if their maps
+ * have the same root, the digest of the length and every chunk digest. An
+ * encoded map is laid out as;
+ * <ol>
+ * <li>4 bytes containing the IP address of the offering host.</li>
+ * <li>2 bytes containing its UDP port.</li>
+ * <li>8 bytes containing the {@link ImageCache} key of the image.</li>
+ * <li>4 bytes containing the length of the encoded image.</li>
+ * <li>32 bytes for the digest of each chunk, in order.</li>
+ * </ol>
+ * 
+ * @author 6266215
+ * @version 1.0
+ * @since 2026-10-16
+ */
+public class ChunkMap
+{
+    /** The number of bytes in every chunk but the last. */
+    public static final int CHUNK_SIZE = 64*1024;
+    /** The number of bytes in each chunk digest. */
+    public static final int HASH_SIZE = 32;
+    /** The number of bytes before the first chunk digest. */
+    public static final int HEADER_SIZE = Conversions.IP_SIZE + 2 + 8 + 4;
+    
+    /** The {@link ImageCache} key of the image, or of its level. */
+    public final long Key;
+    /** The length of the encoded image in bytes. */
+    public final int Length;
+    /**
+     * The IP address and UDP port of the host offering the chunks, or null
+     * for a map that has not been received.
+     */
+    public final Pair<String, Integer> Source;
+    /** The digest of each chunk. */
+    private final byte[][] hashes;
+    /** The digest of the length and every chunk digest. */
+    private final byte[] root;
+    
+    /**
+     * Creates a new {@link ChunkMap} from its chunk digests.
+     * 
+     * @param key The {@link ImageCache} key of the image.
+     * @param length The length of the encoded image in bytes.
+     * @param hashes The digest of each chunk.
+     * @param source The host offering the chunks, or null.
+     * @since 1.0
+     */
+    private ChunkMap(long key, int length, byte[][] hashes,
+            Pair<String, Integer> source)
+    {
+        this.Key = key;
+        this.Length = length;
+        this.hashes = hashes;
+        this.Source = source;
+        MessageDigest sha = sha256();
+        sha.update(ByteBuffer.allocate(4).putInt(length).array());
+        for (byte[] h : hashes)
+            sha.update(h);
+        this.root = sha.digest();
+    }
+    
+    /**
+     * Works out the map of an encoded image held in a file.
+     * 
+     * @param key The {@link ImageCache} key of the image.
+     * @param file The {@link File} holding the encoded image.
+     * @return The {@link ChunkMap} of the file.
+     * @throws IOException Thrown if the file could not be read, or is too
+     * large to send.
+     * @since 1.0
+     */
+    public static ChunkMap of(long key, File file) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > TransferServer.MAX_SIZE)
+                throw new IOException("Image is too large to send.");
+            byte[][] hashes = new byte[chunks((int)size)][];
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            MessageDigest sha = sha256();
+            for (int i = 0; i < hashes.length; i++) {
+                chunk.clear();
+                long pos = (long)i*CHUNK_SIZE;
+                chunk.limit((int)Math.min(CHUNK_SIZE, size-pos));
+                while (chunk.hasRemaining()) {
+                    if (in.read(chunk, pos+chunk.position()) < 0)
+                        throw new IOException("File changed while reading.");
+                }
+                sha.update(chunk.array(), 0, chunk.limit());
+                hashes[i] = sha.digest();
+            }
+            return new ChunkMap(key, (int)size, hashes, null);
+        }
+    }
+    
+    /**
+     * Gets the number of chunks an encoded image of the specified length is
+     * split into.
+     * 
+     * @param length The length of the encoded image in bytes.
+     * @return The number of chunks.
+     * @since 1.0
+     */
+    private static int chunks(int length)
+    {
+        return (length+CHUNK_SIZE-1)/CHUNK_SIZE;
+    }
+    
+    /**
+     * Gets the number of chunks in this map.
+     * 
+     * @return The number of chunks as an int.
+     * @since 1.0
+     */
+    public int getChunkCount() { return hashes.length; }
+    
+    /**
+     * Gets the length of a chunk in this map.
+     * 
+     * @param index The index of the chunk.
+     * @return The length of the chunk in bytes.
+     * @since 1.0
+     */
+    public int getChunkLength(int index)
+    {
+        return Math.min(CHUNK_SIZE, Length-index*CHUNK_SIZE);
+    }
+    
+    /**
+     * Checks that the bytes received for a chunk are the chunk this map
+     * describes.
+     * 
+     * @param index The index of the chunk.
+     * @param data The bytes received.
+     * @return Returns true if the bytes match the chunk, false otherwise.
+     * @since 1.0
+     */
+    public boolean verify(int index, byte[] data)
+    {
+        if (index < 0 || index >= hashes.length
+                || data.length != getChunkLength(index))
+            return false;
+        return MessageDigest.isEqual(hashes[index], sha256().digest(data));
+    }
+    
+    /**
+     * Checks whether another map describes exactly the same encoded image,
+     * so chunks can be fetched from the hosts of either.
+     * 
+     * @param other The {@link ChunkMap} to compare to.
+     * @return Returns true if both maps have the same key and root, false
+     * otherwise.
+     * @since 1.0
+     */
+    public boolean sameAs(ChunkMap other)
+    {
+        return other != null && Key == other.Key
+                && MessageDigest.isEqual(root, other.root);
+    }
+    
+    /**
+     * Encodes this map to send to another host.
+     * 
+     * @param source The IP address and UDP port the chunks can be asked for
+     * at.
+     * @return The encoded map as a byte array.
+     * @throws IllegalStateException Thrown if the IP address is not a valid
+     * IPv4 address.
+     * @since 1.0
+     */
+    public byte[] encode(Pair<String, Integer> source)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(
+                HEADER_SIZE + hashes.length*HASH_SIZE);
+        if (!Conversions.putIP(buf, source.Left))
+            throw new IllegalStateException("Invalid IP " + source.Left);
+        buf.putShort((short)(int)source.Right);
+        buf.putLong(Key);
+        buf.putInt(Length);
+        for (byte[] h : hashes)
+            buf.put(h);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    /**
+     * Decodes a map received from another host.
+     * 
+     * @param data The encoded map.
+     * @return The {@link ChunkMap}, or null if it is incorrectly formed.
+     * @since 1.0
+     */
+    public static ChunkMap decode(byte[] data)
+    {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            String ip = Conversions.getIP(buf);
+            int port = buf.getShort() & 0xFFFF;
+            long key = buf.getLong();
+            int length = buf.getInt();
+            if (length < 0 || length > TransferServer.MAX_SIZE
+                    || buf.remaining() != chunks(length)*HASH_SIZE)
+                throw new IllegalArgumentException("Bad length.");
+            byte[][] hashes = new byte[chunks(length)][HASH_SIZE];
+            for (byte[] h : hashes)
+                buf.get(h);
+            return new ChunkMap(key, length, hashes, new Pair<>(ip, port));
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            System.err.println("ChunkMap was incorrectly formed.");
+            return null;
+        }
+    }
+    
+    /**
+     * Gets a new SHA-256 {@link MessageDigest}.
+     * 
+     * @return The {@link MessageDigest}.
+     * @since 1.0
+     */
+    private static MessageDigest sha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+    }
+}
@@ -6,15 +6,26 @@ import distributedwhiteboard.DiscoveryMessage.LeaveRequest;
 import distributedwhiteboard.gui.WhiteboardCanvas;
 import distributedwhiteboard.gui.WhiteboardGUI;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import javax.imageio.ImageIO;
 
@@ -24,7 +35,7 @@ import javax.imageio.ImageIO;
  *  a peer-to-peer network to communicate over.
  * 
  * @author 6266215
- * @version 1.6
+ * @version 1.29
  * @since 2015-03-27
  */
 public class Client implements Runnable
@@ -32,15 +43,46 @@ public class Client implements Runnable
     /** The singleton instance of this {@link Client}. */
     private static Client INSTANCE;
     /** The maximum size of the byte buffer for multicast packets. */
-    private static final int BUFFER_SIZE = DiscoveryRequest.getLargestSize();
+    private static final int BUFFER_SIZE = NetMessage.MAX_DATAGRAM_SIZE;
+    /** How many times to retry a send when the socket buffer is full. */
+    private static final int SEND_ATTEMPTS = 3;
+    /** The default time in milliseconds to gather draw messages for. */
+    public static final int DEFAULT_BATCH_WINDOW = 10;
     /** A list of known hosts to send drawing updates to. */
     private final Set<Triple<String, String, Integer>> knownHosts;
+    /** How long to wait for peer queues to empty when stopping, in ms. */
+    private static final int QUEUE_DRAIN_MS = 250;
+    /** 
+     * A send queue for every known host, rebuilt whenever a host is added or 
+     * removed so broadcasts do not need to look them up again.
+     */
+    private volatile PeerQueue[] peers;
+    /** What peer queues do with drawing datagrams when they are full. */
+    private volatile PeerQueue.Policy queuePolicy;
+    /** Set while parity is sent, so peer queues must not coalesce. */
+    private volatile boolean parityOn;
+    /** Resolved addresses for hosts, so each host is only looked up once. */
+    private final HashMap<Pair<String, Integer>, InetSocketAddress> addresses;
+    /** The UDP address of the {@link Server} for each known node number. */
+    private final HashMap<Integer, InetSocketAddress> origins;
+    /** The non-blocking {@link DatagramChannel} all UDP packets are sent on. */
+    private volatile DatagramChannel channel;
+    /** Packs draw messages sent close together into single datagrams. */
+    private final MessageBatcher batcher;
+    /** Sends parity over groups of draw datagrams, if enabled. */
+    private final ParityEncoder parity;
+    /** Holds back multicast repairs so only one host answers each request. */
+    private final RepairSuppressor suppressor;
     /** The client name for this instance of the program as a String. */
     private String thisName;
     /** The details of this host, to stop the client from talking to itself. */
     private Pair<String, Integer> thisHost;
     /** The details for the multicast group this {@link Client} uses. */
     private final Pair<InetAddress, Integer> multicast;
+    /** The multicast group as a socket address, or null if there is none. */
+    private final InetSocketAddress multicastAddress;
+    /** True if draw datagrams are sent to the multicast group, not peers. */
+    private volatile boolean multicastDraw;
     /** This will be true if this {@link Client} is allowed to send packets. */
     private volatile boolean isSending;
     /** A thread to listen for multicast connections in the background. */
@@ -54,7 +96,15 @@ public class Client implements Runnable
     private Client()
     {
         this.isSending = false;
+        this.multicastDraw = false;
         this.knownHosts = new HashSet<>();
+        this.peers = new PeerQueue[0];
+        this.queuePolicy = PeerQueue.Policy.COALESCE;
+        this.addresses = new HashMap<>();
+        this.origins = new HashMap<>();
+        this.batcher = new MessageBatcher(this, DEFAULT_BATCH_WINDOW);
+        this.parity = new ParityEncoder(this);
+        this.suppressor = new RepairSuppressor(this);
         
         InetAddress addr;
         try {
@@ -65,6 +115,8 @@ public class Client implements Runnable
             addr = null;
         }
         this.multicast = new Pair<>(addr, Server.MULTICAST_PORT);
+        this.multicastAddress = (addr == null) ? null 
+                : new InetSocketAddress(addr, Server.MULTICAST_PORT);
         this.thisName = "UNNAMED";
     }
     
@@ -92,6 +144,14 @@ public class Client implements Runnable
     public void startClient()
     {
         if (isEnabled()) return; // Already started.
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+        } catch (IOException ex) {
+            System.err.println("Could not open DatagramChannel.");
+            System.err.println(ex.getMessage());
+            channel = null;
+        }
         discoveryThread = new Thread(this);
         discoveryThread.setName("Multicast listener");
         discoveryThread.start();
@@ -118,8 +178,16 @@ public class Client implements Runnable
             int port = thisHost.Right;
             broadCastMessage(new LeaveRequest(thisName, ip, port));
         }
+        batcher.flush();
+        parity.flush();
+        for (PeerQueue queue : peers)
+            queue.awaitEmpty(QUEUE_DRAIN_MS);
         isSending = false; // Stop sending out updates.
         try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
             if (multicast != null && receiver != null && !receiver.isClosed()) {
                 System.out.println("Stopping network discovery.");
                 receiver.leaveGroup(multicast.Left);
@@ -132,7 +200,12 @@ public class Client implements Runnable
             System.err.println(ex.getMessage());
             return;
         } catch (InterruptedException ex) { }
-        knownHosts.clear();
+        synchronized (this) {
+            knownHosts.clear();
+            addresses.clear();
+            origins.clear();
+            rebuildPeers();
+        }
         WhiteboardGUI.getInstance().updateClientList();
         System.out.println("Stopped network discovery.");
     }
@@ -145,9 +218,10 @@ public class Client implements Runnable
      * @param port The port the host is running on.
      * @since 1.0
      */
-    public void setHost(String hostname, int port) 
+    public synchronized void setHost(String hostname, int port) 
     {
         thisHost = new Pair<>(hostname, port);
+        rebuildPeers();
     }
     
     /**
@@ -165,6 +239,8 @@ public class Client implements Runnable
             return false;
         
         if (knownHosts.add(host)) {
+            resolve(host.Two, host.Three);
+            rebuildPeers();
             System.out.printf("Added new host %s:%d%n", host.Two, host.Three);
             WhiteboardGUI.getInstance().updateClientList();
             return true;
@@ -184,10 +260,106 @@ public class Client implements Runnable
      */
     public synchronized void removeHost(Triple<String, String, Integer> host)
     {
-        knownHosts.remove(host);
+        if (knownHosts.remove(host)) {
+            addresses.remove(new Pair<>(host.Two, host.Three));
+            rebuildPeers();
+        }
         WhiteboardGUI.getInstance().updateClientList();
     }
     
+    /**
+     * Rebuilds the table of peer send queues from the known hosts. This host 
+     * is never included. Queues for hosts that are still known are kept, and 
+     * queues for hosts that have gone are closed. Every {@link StyleTable} 
+     * style is described again afterwards, so new peers learn them. Must be 
+     * called while holding the lock on this {@link Client}.
+     * 
+     * @since 1.8
+     */
+    private void rebuildPeers()
+    {
+        HashMap<InetSocketAddress, PeerQueue> old = new HashMap<>();
+        for (PeerQueue queue : peers)
+            old.put(queue.getTarget(), queue);
+        
+        PeerQueue[] table = new PeerQueue[knownHosts.size()];
+        int count = 0;
+        for (Triple<String, String, Integer> host : knownHosts) {
+            if (thisHost != null && host.Two.equals(thisHost.Left) 
+                    && host.Three.equals(thisHost.Right))
+                continue; // Don't message yourself.
+            InetSocketAddress address = 
+                    addresses.get(new Pair<>(host.Two, host.Three));
+            if (address == null) continue;
+            PeerQueue queue = old.remove(address);
+            if (queue == null) {
+                queue = new PeerQueue(address, queuePolicy);
+                queue.setParity(parityOn);
+            }
+            table[count++] = queue;
+        }
+        peers = Arrays.copyOf(table, count);
+        for (PeerQueue gone : old.values())
+            gone.close();
+        StyleTable.getInstance().resetAnnouncements();
+    }
+    
+    /**
+     * Gets the resolved address for the specified host. Hosts are only looked 
+     * up the first time they are seen, after that the cached address is used.
+     * 
+     * @param ip The IP address or host name of the host as a String.
+     * @param port The UDP port of the host as an int.
+     * @return The {@link InetSocketAddress} of the host, or null if the host 
+     * could not be found.
+     * @since 1.9
+     */
+    private synchronized InetSocketAddress resolve(String ip, int port)
+    {
+        Pair<String, Integer> key = new Pair<>(ip, port);
+        InetSocketAddress address = addresses.get(key);
+        if (address != null) return address;
+        
+        address = new InetSocketAddress(ip, port);
+        if (address.isUnresolved()) {
+            System.err.printf("Could not find host %s:%d%n", ip, port);
+            return null;
+        }
+        addresses.put(key, address);
+        return address;
+    }
+    
+    /**
+     * Sends the remaining bytes of a {@link ByteBuffer} as a single datagram 
+     * on the shared {@link DatagramChannel}. The channel is non-blocking, so 
+     * if the socket buffer is full the send is retried a few times before the 
+     * packet is given up on. The buffer position is not changed.
+     * 
+     * @param data The encoded packet to send.
+     * @param target The {@link InetSocketAddress} to send the packet to.
+     * @return Returns true if the packet was sent, false otherwise.
+     * @since 1.9
+     */
+    boolean send(ByteBuffer data, InetSocketAddress target)
+    {
+        DatagramChannel out = channel;
+        if (out == null || target == null) return false;
+        
+        try {
+            for (int i = 0; i < SEND_ATTEMPTS; i++) {
+                if (out.send(data.duplicate(), target) > 0)
+                    return true;
+                Thread.yield();
+            }
+            System.err.printf("Send buffer full, dropped packet to %s%n", 
+                    target);
+        } catch (IOException ioEx) {
+            System.err.printf("Error sending packet to %s:%n%s%n", 
+                    target, ioEx.getMessage());
+        }
+        return false;
+    }
+    
     /**
      * Gets a {@link Set} of all the hosts known to this client component of 
      * the Distributed Whiteboard.
@@ -228,6 +400,88 @@ public class Client implements Runnable
      */
     public boolean isEnabled() { return this.isSending; }
     
+    /**
+     * Sets how long draw messages are held so that others sent shortly after 
+     * can share the same datagram. A window of 0 disables batching.
+     * 
+     * @param ms The batching window in milliseconds.
+     * @since 1.10
+     */
+    public void setBatchWindow(int ms) 
+    { 
+        batcher.setWindow(ms);
+        System.out.printf("Set client batch window to %dms%n", 
+                batcher.getWindow());
+    }
+    
+    /**
+     * Gets how long draw messages are held so that others sent shortly after 
+     * can share the same datagram.
+     * 
+     * @return The batching window in milliseconds as an int.
+     * @since 1.10
+     */
+    public int getBatchWindow() { return batcher.getWindow(); }
+    
+    /**
+     * Sets how many draw datagrams share each forward error correction 
+     * parity frame. Peers can rebuild any single lost datagram in a group 
+     * without asking for a repair. A size of 0 turns parity off. Peer 
+     * queues do not coalesce datagrams while parity is on.
+     * 
+     * @param size The number of datagrams per parity frame.
+     * @since 1.15
+     */
+    public void setParityGroup(int size)
+    {
+        parity.setGroupSize(size);
+        int group = parity.getGroupSize();
+        batcher.setReserve((group > 0) ? ParityEncoder.overhead(group) : 0);
+        // Coalesced datagrams would no longer match their parity frames.
+        parityOn = group > 0;
+        for (PeerQueue queue : peers)
+            queue.setParity(parityOn);
+        System.out.printf("Set client parity group to %d%n", 
+                parity.getGroupSize());
+    }
+    
+    /**
+     * Gets how many draw datagrams share each forward error correction 
+     * parity frame.
+     * 
+     * @return The parity group size, or 0 if parity is off.
+     * @since 1.15
+     */
+    public int getParityGroup() { return parity.getGroupSize(); }
+    
+    /**
+     * Sets whether draw datagrams are published once to the multicast group, 
+     * rather than sent to every known peer. Sending cost then no longer 
+     * grows with the number of peers. Joins, leaves and repairs sent to a 
+     * single host still use unicast. Anything waiting to be sent is sent 
+     * first the old way.
+     * 
+     * @param enabled True to send draw datagrams over multicast.
+     * @since 1.16
+     */
+    public void setMulticastDraw(boolean enabled)
+    {
+        batcher.flush();
+        parity.flush();
+        multicastDraw = enabled && multicastAddress != null;
+        System.out.printf("Multicast drawing %s%n", 
+                multicastDraw ? "enabled" : "disabled");
+    }
+    
+    /**
+     * Checks whether draw datagrams are published to the multicast group.
+     * 
+     * @return Returns true if draw datagrams use multicast, false if they are 
+     * sent to each peer.
+     * @since 1.16
+     */
+    public boolean isMulticastDraw() { return multicastDraw; }
+    
     /**
      * Sends a UDP message out to the specified IP address and port number. The 
      * message will be an encoded {@link NetMessage} implementation, allowing 
@@ -246,87 +500,293 @@ public class Client implements Runnable
     {
         if (!isSending) return false;
         
-        byte[] bytes = message.encode();
+        InetSocketAddress address = resolve(targetIp, targetPort);
+        if (address == null) return false;
             
-        InetAddress address;
-        DatagramSocket socket;
-        DatagramPacket packet;
-            
-        try {
-            address = InetAddress.getByName(targetIp);
-        } catch (UnknownHostException hostEx) {
-            System.err.printf("Could not find host %s:%d%n", 
-                    targetIp, targetPort);
-            return false;
-        }
-           
-        try {
-            socket = new DatagramSocket();
-        } catch (SocketException sockEx) {
-            System.err.println("Could not create DatagramSocket");
-            return false;
-        }
-            
-        try {
-            packet = new DatagramPacket(bytes, bytes.length, 
-                    address, targetPort);
-            socket.send(packet);
-        } catch (IOException ioEx) {
-            System.err.printf("Error sending packet:%n%s%n", ioEx.getMessage());
-            return false;
-        } finally {
-            socket.close();
-        }
-        
-        return true;
+        return send(ByteBuffer.wrap(message.encode()), address);
     }
     
     /**
      * Sends a UDP message out to all known clients. Messages are contained in 
      * the {@link NetMessage} class, which encodes them into a byte array to be 
-     * sent in a {@link DatagramPacket}.
+     * sent as a datagram. The message is only encoded once, the same bytes are
+     *  then queued for every peer, so this never waits on the network.
+     * <p>
+     * {@link MessageType#DRAW} messages are handed to a {@link MessageBatcher}
+     *  so those sent within the batch window share a datagram. Any other 
+     * message first flushes the current batch, so messages still arrive in 
+     * the order they were sent.
      * 
      * @param message The {@link NetMessage} to transmit to other instances of 
      * this program.
      * @since 1.3
      */
-    public synchronized void broadCastMessage(NetMessage message)
+    public void broadCastMessage(NetMessage message)
     {
-        for (Triple<String, String, Integer> host : knownHosts) {
-            Pair<String, Integer> hostpair = new Pair<>(host.Two, host.Three);
-            if (hostpair.equals(thisHost)) continue; // Don't message yourself.            
-            sendMessage(message, host.Two, host.Three);
+        if (!isSending) return;
+        
+        if (peers.length == 0) return;
+        if (message.type == MessageType.DRAW) {
+            batcher.add(message);
+            return;
         }
+        
+        batcher.flush();
+        // Encode once and send the same bytes to every peer.
+        sendToPeers(ByteBuffer.wrap(message.encode()));
+    }
+    
+    /**
+     * Queues the remaining bytes of an already encoded packet for every peer. 
+     * The bytes are copied once and shared by every {@link PeerQueue}, so the 
+     * caller may reuse the buffer straight away. The buffer position is not 
+     * changed.
+     * 
+     * @param data The encoded packet to send.
+     * @since 1.10
+     */
+    void sendToPeers(ByteBuffer data)
+    {
+        if (!isSending) return;
+        PeerQueue[] table = peers;
+        if (table.length == 0) return;
+        
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        for (PeerQueue queue : table)
+            queue.offer(copy.duplicate());
     }
     
     /**
-     * Sends a specified {@link BufferedImage} over TCP to the specified host.
-     * The host is a {@link Pair} containing the IP address/ host name in the 
-     * left type, and the port number in the right type.
+     * Sets what each peer's send queue does with drawing datagrams once it 
+     * is full.
      * 
-     * @param image The {@link BufferedImage} to send to the specified host.
+     * @param policy The {@link PeerQueue.Policy} to use.
+     * @since 1.17
+     */
+    public void setQueuePolicy(PeerQueue.Policy policy)
+    {
+        queuePolicy = policy;
+        for (PeerQueue queue : peers)
+            queue.setPolicy(policy);
+        System.out.printf("Set client queue policy to %s%n", policy);
+    }
+    
+    /**
+     * Gets what each peer's send queue does with drawing datagrams once it 
+     * is full.
+     * 
+     * @return The current {@link PeerQueue.Policy}.
+     * @since 1.17
+     */
+    public PeerQueue.Policy getQueuePolicy() { return queuePolicy; }
+    
+    /**
+     * Describes the send queue of every peer, one per line, with its depth 
+     * and how many datagrams it has sent, dropped and coalesced.
+     * 
+     * @return The queue statistics as a String.
+     * @since 1.17
+     */
+    public String getQueueStats()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (PeerQueue queue : peers)
+            sb.append(queue).append(String.format("%n"));
+        return (sb.length() == 0) ? "No peers." : sb.toString().trim();
+    }
+    
+    /**
+     * Sends a datagram of draw messages to every peer, and adds it to the 
+     * current parity group. The buffer position is not changed.
+     * 
+     * @param data The encoded draw datagram to send.
+     * @since 1.15
+     */
+    void sendDrawFrame(ByteBuffer data)
+    {
+        if (!isSending) return;
+        publish(data);
+        parity.add(data);
+    }
+    
+    /**
+     * Sends drawing traffic to every peer, either once to the multicast group 
+     * or to each address in the peer table, depending on {@link 
+     * Client#isMulticastDraw()}. The buffer position is not changed.
+     * 
+     * @param data The encoded datagram to send.
+     * @since 1.16
+     */
+    void publish(ByteBuffer data)
+    {
+        if (!isSending) return;
+        if (multicastDraw && send(data, multicastAddress)) return;
+        sendToPeers(data);
+    }
+    
+    /**
+     * Sends a copy of the canvas over TCP to the specified host, which is 
+     * joining the network. The host is a {@link Pair} containing the IP 
+     * address/ host name in the left type, and the port number of its {@link 
+     * TransferServer} in the right type. The transfer ID is written before 
+     * the image, so the host can tell which of its waiting transfers the 
+     * image is for, followed by the {@link LamportClock} tick the canvas was 
+     * copied at, so the host can place the copy among the operations in its 
+     * {@link OpLog}. Next is the number of nodes, then each node number and 
+     * the sequence number up to which its messages are in the copy, so the 
+     * host does not ask for them again. The image is encoded as it is sent, 
+     * as the canvas keeps changing; see {@link 
+     * Client#answerImageRequest(ImageRequestMessage)} for images that do not.
+     * 
+     * @param image The canvas as a {@link BufferedImage}.
+     * @param clock The {@link LamportClock} tick the canvas was copied at.
+     * @param floors Each node number followed by the sequence number up to 
+     * which its messages are in the copy, see {@link 
+     * MessageStore#getFloors()}.
      * @param host The host to send to as a {@link Pair} containing the IP 
      * address as a {@link String} and the port as an {@link Integer}.
+     * @param transfer The {@link TransferServer.Transfer} ID the host gave.
      * @since 1.4
      */
-    public static void sendImage(final BufferedImage image, 
-            final Pair<String, Integer> host)
+    public static void sendCanvas(final BufferedImage image, final int clock, 
+            final int[] floors, final Pair<String, Integer> host, 
+            final int transfer)
+    {
+        new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                writeCanvas(image, clock, floors, host, transfer);
+            }
+        }, "Image sender").start();
+    }
+    
+    /**
+     * Answers an {@link ImageRequestMessage} for an image this host holds in 
+     * its {@link ImageCache}, in the background. A request for the {@link 
+     * ChunkMap} is answered with the map and the address to ask for chunks 
+     * at. A request for a chunk is answered by copying that part of the PNG 
+     * file the cache holds straight to the connection, so the image is not 
+     * encoded again, or even copied through this program, for each request.
+     * A request for a smaller level of an image is answered from that level, 
+     * which is made from the nearest larger level held if needed. Requests 
+     * for images this host does not hold are ignored.
+     * 
+     * @param req The {@link ImageRequestMessage} to answer.
+     * @since 1.21
+     */
+    public void answerImageRequest(final ImageRequestMessage req)
     {
+        if (req == null || thisHost == null) return;
+        int held = Server.images.bestLevel(req.ImageHash);
+        if (held < 0 || held > req.Level) return;
+        
+        final Pair<String, Integer> source = thisHost;
         new Thread(new Runnable() {
             @Override
             public void run()
             {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException ex) {}
-                try (Socket sender = new Socket(host.Left, Server.TCP_PORT)) {
-                    ImageIO.write(image, "PNG", sender.getOutputStream());
+                if (!Server.images.reduce(req.ImageHash, req.Level)) return;
+                long key = ImageCache.levelKey(req.ImageHash, req.Level);
+                Pair<String, Integer> host = 
+                        new Pair<>(req.SourceAddress, req.Port);
+                ByteBuffer map = null;
+                File file = null;
+                if (req.Chunk == ImageRequestMessage.MAP) {
+                    ChunkMap m = Server.images.getChunkMap(key);
+                    if (m == null) return;
+                    map = ByteBuffer.wrap(m.encode(source));
+                } else {
+                    file = Server.images.getFile(key);
+                    if (file == null) return;
+                }
+                
+                try (SocketChannel out = openTransfer(host, req.TransferID)) {
+                    if (map != null) {
+                        while (map.hasRemaining())
+                            out.write(map);
+                        return;
+                    }
+                    try (FileChannel in = FileChannel.open(file.toPath(), 
+                            StandardOpenOption.READ)) {
+                        long pos = (long)req.Chunk*ChunkMap.CHUNK_SIZE;
+                        long end = Math.min(in.size(), 
+                                pos+ChunkMap.CHUNK_SIZE);
+                        while (pos < end)
+                            pos += in.transferTo(pos, end-pos, out);
+                    }
                 } catch (IOException ex) {
                     System.err.printf("Error sending image to host %s:%d%n%s%n", 
                             host.Left, host.Right, ex.getMessage());
                 }
             }
-        }).start();
+        }, "Image sender").start();
+    }
+    
+    /**
+     * Connects to the {@link TransferServer} of a host and writes the 
+     * transfer ID, ready for the data to follow.
+     * 
+     * @param host The host to send to as a {@link Pair} containing the IP 
+     * address as a {@link String} and the port as an {@link Integer}.
+     * @param transfer The {@link TransferServer.Transfer} ID the host gave.
+     * @return The connected {@link SocketChannel}.
+     * @throws IOException Thrown if the host could not be connected to.
+     * @since 1.21
+     */
+    private static SocketChannel openTransfer(Pair<String, Integer> host, 
+            int transfer) throws IOException
+    {
+        SocketChannel out = SocketChannel.open();
+        try {
+            out.socket().connect(new InetSocketAddress(host.Left, host.Right), 
+                    Server.TCP_TIMEOUT);
+            ByteBuffer header = ByteBuffer.allocateDirect(4);
+            header.putInt(transfer).flip();
+            while (header.hasRemaining())
+                out.write(header);
+            return out;
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Connects to a host and encodes a copy of the canvas to it, after the 
+     * transfer ID, the tick the canvas was copied at and the sequence numbers 
+     * each node's messages are in the copy up to.
+     * 
+     * @param image The canvas as a {@link BufferedImage}.
+     * @param clock The {@link LamportClock} tick the canvas was copied at.
+     * @param floors Each node number followed by the sequence number up to 
+     * which its messages are in the copy.
+     * @param host The host to send to as a {@link Pair} containing the IP 
+     * address as a {@link String} and the port as an {@link Integer}.
+     * @param transfer The {@link TransferServer.Transfer} ID the host gave.
+     * @since 1.20
+     */
+    private static void writeCanvas(BufferedImage image, int clock, 
+            int[] floors, Pair<String, Integer> host, int transfer)
+    {
+        try (Socket sender = new Socket()) {
+            sender.connect(new InetSocketAddress(host.Left, host.Right),
+                    Server.TCP_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(sender.getOutputStream()));
+            out.writeInt(transfer);
+            out.writeInt(clock);
+            out.writeInt(floors.length/2);
+            for (int floor : floors)
+                out.writeInt(floor);
+            ImageIO.write(image, "PNG", out);
+            out.flush();
+        } catch (IOException ex) {
+            System.err.printf("Error sending image to host %s:%d%n%s%n", 
+                    host.Left, host.Right, ex.getMessage());
+        }
     }
     
     /**
@@ -339,77 +799,164 @@ public class Client implements Runnable
     {
         if (multicast.Left == null) return; // No multicast group.
         
-        DatagramPacket packet;
-        
         DiscoveryRequest request = new DiscoveryRequest(thisName, thisHost.Left, 
                 thisHost.Right);
         
-        byte[] buffer = request.encode();
-        try (MulticastSocket sender = new MulticastSocket()) {
-            packet = new DatagramPacket(buffer, buffer.length, 
-                    multicast.Left, multicast.Right);
-            sender.send(packet);
-        } catch (IOException ex) {
+        if (!send(ByteBuffer.wrap(request.encode()), multicastAddress))
             System.err.println("Failed to send discovery message.");
-            System.err.println(ex.getMessage());
-        }
     }
     
     /**
      * Sends a request for a certain packet out over multicast. If any clients 
      * know of the packet they will send it to this host over UDP.
      * 
-     * @param uuid The unique ID of the missing packet as a {@link String}.
+     * @param id The unique ID of the missing packet as a packed {@link 
+     * MessageID}.
      * @since 1.5
      */
-    public void requestPacket(String uuid)
+    public void requestPacket(long id)
     {
         if (multicast.Left == null) return; // No multicast group.
         
-        DatagramPacket packet;
-        
         PacketRequestMessage request = new PacketRequestMessage(thisHost.Left, 
-                thisHost.Right, uuid);
+                thisHost.Right, id);
         
-        byte[] buffer = request.encode();
-        try (MulticastSocket sender = new MulticastSocket()) {
-            packet = new DatagramPacket(buffer, buffer.length, 
-                    multicast.Left, multicast.Right);
-            sender.send(packet);
+        if (send(ByteBuffer.wrap(request.encode()), multicastAddress))
             System.out.println("Requesting packet.");
-        } catch (IOException ex) {
+        else
             System.err.println("Failed to send packet request message.");
-            System.err.println(ex.getMessage());
+    }
+    
+    /**
+     * Records the address of the {@link Server} run by the node with the 
+     * specified node number, so lost messages can be asked for from it.
+     * 
+     * @param node The {@link MessageID} node number of the host.
+     * @param ip The IP address or host name of the host as a String.
+     * @param port The UDP port of the host as an int.
+     * @since 1.13
+     */
+    public synchronized void addOrigin(int node, String ip, int port)
+    {
+        InetSocketAddress address = resolve(ip, port);
+        if (address != null)
+            origins.put(node, address);
+    }
+    
+    /**
+     * Sends a {@link NackMessage} straight to the node that created some 
+     * missing messages.
+     * 
+     * @param node The {@link MessageID} node number that created the messages.
+     * @param missing The packed IDs of the missing messages, in sequence order.
+     * @return Returns true if the request was sent, false if the address of 
+     * the node is not known or the send failed.
+     * @since 1.13
+     */
+    public boolean sendNack(int node, long[] missing)
+    {
+        InetSocketAddress origin;
+        synchronized (this) {
+            origin = origins.get(node);
+        }
+        if (origin == null || thisHost == null) return false;
+        
+        NackMessage nack = 
+                new NackMessage(thisHost.Left, thisHost.Right, node, missing);
+        return send(ByteBuffer.wrap(nack.encode()), origin);
+    }
+    
+    /**
+     * Sends stored messages to a host that asked for them, packed into as few 
+     * {@link MessageType#BATCH} frames as possible. Each message is encoded in
+     *  full so it can be decoded on its own.
+     * 
+     * @param repairs The {@link NetMessage}s to resend.
+     * @param ip The IP address of the host to send to.
+     * @param port The UDP port of the host to send to.
+     * @since 1.13
+     */
+    public void sendRepairs(List<NetMessage> repairs, String ip, int port)
+    {
+        InetSocketAddress target = resolve(ip, port);
+        if (target == null || repairs.isEmpty()) return;
+        
+        ByteBuffer frame = ByteBuffer.allocate(NetMessage.MAX_DATAGRAM_SIZE);
+        ByteBuffer scratch = ByteBuffer.allocate(NetMessage.MAX_DATAGRAM_SIZE);
+        int count = 0;
+        for (NetMessage msg : repairs) {
+            scratch.clear();
+            msg.encode(scratch);
+            scratch.flip();
+            int needed = MessageBatcher.LENGTH_SIZE+scratch.remaining();
+            if (count > 0 && frame.remaining() < needed) {
+                frame.flip();
+                send(frame, target);
+                count = 0;
+            }
+            if (MessageBatcher.HEADER_SIZE+needed > frame.capacity()) {
+                send(scratch, target); // Too large to share a frame.
+                continue;
+            }
+            if (count == 0) {
+                frame.clear();
+                frame.put((byte)MessageType.BATCH.type);
+            }
+            frame.putShort((short)scratch.remaining());
+            frame.put(scratch);
+            count++;
+        }
+        if (count > 0) {
+            frame.flip();
+            send(frame, target);
         }
     }
     
     /**
      * Requests an image from all the hosts on the multicast network. Only the 
-     * host that knows the image should respond.
+     * hosts that know the image should respond, each with the {@link 
+     * ChunkMap} of the image.
      * 
-     * @param hash The hash code generated by {@link Object#hashCode()} for the 
-     * {@link BufferedImage} to request.
+     * @param hash The {@link ImageCache} key of the {@link BufferedImage} to 
+     * request.
+     * @param level The {@link ImageCache} level of the image wanted.
+     * @param port The TCP port of this host's {@link TransferServer}.
+     * @param transfer The {@link TransferServer.Transfer} ID to send the 
+     * maps under.
      * @since 1.6
      */
-    public void requestImage(int hash)
+    public void requestImage(long hash, int level, int port, int transfer)
     {
         if (multicast.Left == null) return; // No multicast group.
         
-        DatagramPacket packet;
-        
-        ImageRequestMessage request = 
-                new ImageRequestMessage(hash, thisHost.Left);
+        ImageRequestMessage request = new ImageRequestMessage(hash, level, 
+                thisHost.Left, port, transfer, ImageRequestMessage.MAP);
         
-        byte[] buffer = request.encode();
-        try (MulticastSocket sender = new MulticastSocket()) {
-            packet = new DatagramPacket(buffer, buffer.length, 
-                    multicast.Left, multicast.Right);
-            sender.send(packet);
+        if (send(ByteBuffer.wrap(request.encode()), multicastAddress))
             System.out.println("Requesting packet.");
-        } catch (IOException ex) {
+        else
             System.err.println("Failed to send image request message.");
-            System.err.println(ex.getMessage());
-        }
+    }
+    
+    /**
+     * Requests a single chunk of an image from a host that offered it.
+     * 
+     * @param source The UDP address of the host, from its {@link ChunkMap}.
+     * @param hash The {@link ImageCache} key of the image.
+     * @param level The {@link ImageCache} level of the image wanted.
+     * @param chunk The index of the chunk.
+     * @param port The TCP port of this host's {@link TransferServer}.
+     * @param transfer The {@link TransferServer.Transfer} ID to send the 
+     * chunk under.
+     * @since 1.21
+     */
+    public void requestChunk(Pair<String, Integer> source, long hash, 
+            int level, int chunk, int port, int transfer)
+    {
+        ImageRequestMessage request = new ImageRequestMessage(hash, level, 
+                thisHost.Left, port, transfer, chunk);
+        if (!sendMessage(request, source.Left, source.Right))
+            System.err.println("Failed to send chunk request message.");
     }
     
     /**
@@ -429,15 +976,18 @@ public class Client implements Runnable
         if (sourcePair.equals(thisHost)) return;
         
         addHost(source);
+        addOrigin(request.Node, request.IP, request.Port);
         
         sendMessage(new DiscoveryResponse(thisName, thisHost.Left, 
                 thisHost.Right), request.IP, request.Port);
     }
     
     /**
-     * Sends a missing packet to the host that requested it. This relies on the 
-     * client knowing the packet with the unique ID specified within the 
-     * message.
+     * Answers a request for a missing packet. This relies on the client 
+     * knowing the packet with the unique ID specified within the message. 
+     * Every host in the group hears the request, so the repair is sent over 
+     * multicast after a random delay by the {@link RepairSuppressor}, and is 
+     * dropped if another host sends it first.
      * 
      * @param message A {@link PacketRequestMessage} that contains the unique 
      * ID to search for and the host details to send it to.
@@ -449,20 +999,38 @@ public class Client implements Runnable
                 new Pair<>(message.SourceIP, message.SourcePort);
         if (sourcePair.equals(thisHost)) return;
         
-        String uuid = message.getRequiredID();
-        if (uuid != null && !uuid.isEmpty()) {
-            NetMessage foundMsg = Server.messages.get(uuid);
-            if (foundMsg != null) {
-                System.out.println("Sending missing packet.");
-                sendMessage(foundMsg, message.SourceIP, message.SourcePort);
-            }
+        long id = message.getRequiredID();
+        if (id != MessageID.NONE) {
+            NetMessage foundMsg = Server.messages.get(id);
+            if (foundMsg != null)
+                suppressor.schedule(foundMsg);
         }
     }
+    
+    /**
+     * Sends a stored message to the whole multicast group as a repair, so 
+     * every host that missed it can use the same packet.
+     * 
+     * @param message The {@link NetMessage} to resend.
+     * @since 1.14
+     */
+    void multicastRepair(NetMessage message)
+    {
+        if (multicastAddress == null || !isEnabled()) return;
+        
+        if (send(ByteBuffer.wrap(message.encode()), multicastAddress))
+            System.out.println("Sending missing packet.");
+        else
+            System.err.println("Failed to send missing packet.");
+    }
 
     /**
      * Runs a multicast listener in the background to let this instance of the 
      * Distributed Whiteboard application respond to other instances looking for
-     *  others.
+     *  others. Packets are received into one reused buffer and dispatched on 
+     * their type byte through a {@link MessageView}, so only the messages this 
+     * listener handles are decoded. A packet that fails to be handled is 
+     * reported and skipped.
      * 
      * @since 1.1
      */
@@ -491,39 +1059,51 @@ public class Client implements Runnable
         isSending = true;
         System.out.println("Started network discovery.");
         NetMessage msg;
+        byte[] buff = new byte[BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buff);
+        DatagramPacket packet = new DatagramPacket(buff, buff.length);
+        MessageView view = new MessageView();
         while(isSending) {
             try {
-                byte[] buff = new byte[BUFFER_SIZE];
-                DatagramPacket packet = new DatagramPacket(buff, buff.length);
+                packet.setLength(buff.length);
                 receiver.receive(packet);
-                System.out.println("Received a mutlicast packet.");
-                MessageType type = NetMessage.getMessageType(buff);
+                view.wrap(wrapped, 0, packet.getLength());
+                MessageType type = view.getType();
+                if (type == null) continue;
                 switch (type) {
+                    case DRAW:
+                        // Any host's copy makes our own repair unneeded.
+                        suppressor.observed(view.getUniqueID());
+                        Server.getInstance().acceptMulticast(view);
+                        break;
+                    case BATCH:
+                    case PARITY:
+                        Server.getInstance().acceptMulticast(view);
+                        break;
                     case DISCOVERY:
-                        msg = DiscoveryMessage.decode(buff);
+                        msg = view.materialise();
                         if (msg != null)
                             sendDiscoveryResponse((DiscoveryMessage)msg);
                         break;
                     case MISSING_PACKET:
-                        msg = PacketRequestMessage.decode(buff);
+                        msg = view.materialise();
                         if (msg != null)
                             sendMissingPacket((PacketRequestMessage)msg);
                         break;
                     case IMAGE_REQUEST:
-                        msg = ImageRequestMessage.decode(buff);
-                        if (msg != null) {
-                            BufferedImage img = Server.images.get(((ImageRequestMessage)msg).ImageHash);
-                            if (img != null) {
-                                Pair<String, Integer> host = new Pair<>(((ImageRequestMessage)msg).SourceAddress, Server.TCP_PORT);
-                                sendImage(img, host);
-                            }
-                        }
+                        msg = view.materialise();
+                        if (msg != null)
+                            answerImageRequest((ImageRequestMessage)msg);
                         break;
                 }
             } catch (IOException ex) {
                 if (!isSending) return; // Socket closed.
                 System.err.printf("Client multicast reciever error:%n%s", 
                         ex.getMessage());
+            } catch (RuntimeException ex) {
+                // One bad packet must not stop the listener.
+                System.err.printf("Error handling multicast packet:%n%s%n", 
+                        ex);
             }
         }
     }
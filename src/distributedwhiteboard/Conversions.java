@@ -4,286 +4,430 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Point;
 import java.awt.font.TextAttribute;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
- * Various conversions from {@link Object} types to {@link String} encodings.
+ * Various conversions from {@link Object} types to compact binary encodings.
+ * Every conversion reads or writes directly against a {@link ByteBuffer} at its
+ *  current position, so messages can be built without any intermediate
+ * {@link String} or byte array copies.
+ * <p>
+ * Small integers are stored as unsigned LEB128 varints (7 bits per byte, high
+ * bit set on every byte but the last). Values that can be negative, such as
+ * {@link Point} coordinates, are zig-zag encoded first so small negative
+ * numbers stay small on the wire.
  * 
  * @author 6266215
- * @version 1.1
+ * @version 2.1
  * @since 2015-03-26
  */
 public class Conversions
 {
-    // <editor-fold defaultstate="collapsed" desc="Message sizes.">
-    /** The size of a encoded {@link Point} object. */
-    protected static final int POINT_SIZE = 8;
+    /** The {@link Charset} used to encode any text on the wire. */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+    /** The maximum number of bytes a 32-bit varint can occupy. */
+    public static final int MAX_VARINT_SIZE = 5;
+    /** The maximum number of bytes a 64-bit varint can occupy. */
+    public static final int MAX_VARLONG_SIZE = 10;
     /** The size of a encoded {@link Color} object. */
-    protected static final int COLOUR_SIZE = 6;
-    /** The maximum size a {@link Font} name can be. */
-    protected static final int FONT_NAME_SIZE = 30;
-    /** The size of a {@link Font} style once encoded. */
-    protected static final int FONT_STY_SZ = 1;
-    /** The total size of an encoded {@link Font} object. */
-    protected static final int FONT_SIZE = FONT_NAME_SIZE+FONT_STY_SZ+3;
+    public static final int COLOUR_SIZE = 3;
+    /** The size of an encoded IPv4 address. */
+    public static final int IP_SIZE = 4;
+    /** The maximum number of characters a {@link Font} name can be. */
+    public static final int FONT_NAME_SIZE = 30;
     
-    /** The byte offset for the first {@link Point} object. */
-    protected static final int POINT_ONE_OFFSET = NetMessage.TYPE_OFFSET+2;
-    /** The byte offset for the second {@link Point}, this is optional. */
-    protected static final int POINT_TWO_OFFSET = POINT_ONE_OFFSET+POINT_SIZE;
-    /** The offset for the {@link Color} object used by shapes. */
-    protected static final int COLOUR_OFFSET = POINT_TWO_OFFSET+POINT_SIZE;
-    /** The byte offset of the line weight mode. */
-    protected static final int WEIGHT_OFFSET = COLOUR_OFFSET+COLOUR_SIZE;
-    
-    /** The byte offset of the {@link Color} object used by text. */
-    protected static final int FONT_COL_OFFSET = POINT_TWO_OFFSET;
-    /** The byte offset of the text character position. */
-    protected static final int TEXT_OFFSET = FONT_COL_OFFSET+COLOUR_SIZE;
-    /** The byte offset for the {@link Font} object. */
-    protected static final int FONT_OFFSET = TEXT_OFFSET+1;
-    /** The index in a string where the {@link Font} style begins.*/
-    protected static final int FONT_STY_OFFSET = FONT_NAME_SIZE;
-    /** The index in a string where the {@link Font} underline attribute is. */
-    protected static final int FONT_UNDER_OFFSET = FONT_STY_OFFSET+FONT_STY_SZ;
-    /** The index in a string where the {@link Font} size begins.*/
-    protected static final int FONT_SIZE_OFFSET = FONT_UNDER_OFFSET+1;
+    /** Style flag set when an encoded {@link Font} is bold. */
+    private static final int FONT_BOLD = 0x01;
+    /** Style flag set when an encoded {@link Font} is italic. */
+    private static final int FONT_ITALIC = 0x02;
+    /** Style flag set when an encoded {@link Font} is underlined. */
+    private static final int FONT_UNDERLINE = 0x04;
+    /** The number of decoded {@link Font}s to keep for reuse. */
+    private static final int FONT_CACHE_SIZE = 32;
+    /** 
+     * Recently decoded {@link Font}s keyed by name, style flags and size, so 
+     * repeated messages in the same font do not create a new one each time.
+     */
+    private static final Map<Triple<String, Integer, Integer>, Font> FONTS = 
+            Collections.synchronizedMap(
+                    new LinkedHashMap<Triple<String, Integer, Integer>, Font>(
+                            FONT_CACHE_SIZE, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Triple<String, Integer, Integer>, Font> e)
+                {
+                    return size() > FONT_CACHE_SIZE;
+                }
+            });
     
-    /** The byte offset for the shape fill boolean. */
-    protected static final int FILL_OFFSET = COLOUR_OFFSET+COLOUR_SIZE;
-    /** The byte offset for the shape border boolean. */
-    protected static final int BORDER_OFFSET = FILL_OFFSET+1;
-    /** The byte offset for the {@link Color} object used by borders. */
-    protected static final int BORDER_COL_OFFSET = BORDER_OFFSET+1;
-    /** The byte offset for the border weight mode. */
-    protected static final int BORDER_W_OFFSET = BORDER_COL_OFFSET+COLOUR_SIZE;
-    // </editor-fold>
+    /**
+     * Writes an unsigned int as a varint. Negative values are treated as
+     * unsigned and will always take {@link Conversions#MAX_VARINT_SIZE} bytes.
+     * 
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param value The value to encode.
+     * @since 2.0
+     */
+    public static void putVarInt(ByteBuffer buf, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte)value);
+    }
     
     /**
-     * Converts a {@link Point} object to a {@link String}. The encoded string
-     *  will have the following format; <pre>xxxxyyyy</pre>. These values can be
-     *  zero padded if they do not fill the entire x or y range.
+     * Reads an unsigned varint written by {@link
+     * Conversions#putVarInt(java.nio.ByteBuffer, int)}.
      * 
-     * @param p The {@link Point} to encode.
-     * @return Returns a {@link String} containing the points x and y values.
-     * @since 1.1
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return The decoded value as an int.
+     * @throws IllegalArgumentException Thrown if the varint is longer than
+     * {@link Conversions#MAX_VARINT_SIZE} bytes.
+     * @since 2.0
      */
-    public static String pointToString(Point p)
+    public static int getVarInt(ByteBuffer buf)
     {
-        return String.format("%04d%04d", p.x, p.y);
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
     }
     
     /**
-     * Converts a {@link Color} object to a {@link String}. The encoded string 
-     * will follow a standard hexadecimal format of; <pre>rrggbb</pre>.
+     * Reads an unsigned varint at an absolute index without moving the buffer
+     * position.
      * 
-     * @param c The {@link Color} to encode.
-     * @return Returns a {@link String} containing the red, green and blue 
-     * values in their two character hexadecimal representation.
-     * @since 1.1
+     * @param buf The {@link ByteBuffer} to read from.
+     * @param index The index of the first byte of the varint.
+     * @return The decoded value as an int.
+     * @throws IllegalArgumentException Thrown if the varint is longer than
+     * {@link Conversions#MAX_VARINT_SIZE} bytes.
+     * @since 2.0
      */
-    public static String colorToString(Color c)
+    public static int getVarInt(ByteBuffer buf, int index)
     {
-        int r = c.getRed();
-        int g = c.getGreen();
-        int b = c.getBlue();
-        
-        String s = String.format("%02x%02x%02x", r, g, b);
-        return s;
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get(index++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
     }
     
     /**
-     * Converts a {@link Font} to a {@link String}. The encoded string will have
-     *  the following format;
-     * <ol>
-     * <li>20 characters containing a font name.</li>
-     * <li>1 character containing an integer for the font style.</li>
-     * <li>2 characters containing an integer for the font size.</li>
-     * </ol>
+     * Works out how many bytes the varint at an absolute index occupies 
+     * without moving the buffer position.
      * 
-     * @param f The {@link Font} to encode.
-     * @return Returns a {@link String} containing an encoded {@link Font}.
-     * @since 1.1
+     * @param buf The {@link ByteBuffer} to read from.
+     * @param index The index of the first byte of the varint.
+     * @return The number of bytes in the varint.
+     * @throws IllegalArgumentException Thrown if the varint is longer than
+     * {@link Conversions#MAX_VARINT_SIZE} bytes.
+     * @since 2.0
      */
-    public static String fontToString(Font f)
+    public static int varIntSize(ByteBuffer buf, int index)
     {
-        StringBuilder name = new StringBuilder(f.getName());
-        int paddingNeeded = FONT_NAME_SIZE - name.length();
-        for (int i = 0; i < paddingNeeded; i++)
-            name.append(" ");
-        
-        Map attribs = f.getAttributes();
-        char u = (attribs.get(TextAttribute.UNDERLINE) != null) ? 't' : 'f';
-        
-        return String.format("%s%d%c%02d", name.toString(), 
-                f.getStyle(), u, f.getSize());
+        int size = 1;
+        while ((buf.get(index++) & 0x80) != 0) {
+            if (++size > MAX_VARINT_SIZE)
+                throw new IllegalArgumentException("Malformed varint.");
+        }
+        return size;
     }
     
     /**
-     * Attempts to convert a {@link String} into a {@link Point}. This method 
-     * expects the string to contain an x and y component in the format; <pre>
-     * xxxxyyyy</pre>, if the mode is low enough these can be zero padded.
+     * Writes an unsigned long as a varint.
      * 
-     * @param s The string to convert.
-     * @return Returns a new {@link Point} if the string can be decoded, null 
-     * otherwise.
-     * @since 1.1
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param value The value to encode.
+     * @since 2.0
      */
-    public static Point stringToPoint(String s)
+    public static void putVarLong(ByteBuffer buf, long value)
     {
-        if (s.length() != POINT_SIZE) {
-            System.err.println("Provided String is not a valid point.");
-            return null;
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
         }
-        String x = s.substring(0, POINT_SIZE/2);
-        String y = s.substring(POINT_SIZE/2);
-        
-        int[] point = new int[2];
-        try {
-            point[0] = Integer.parseInt(x);
-            point[1] = Integer.parseInt(y);
-        } catch (NumberFormatException nfEx) {
-            return null;
+        buf.put((byte)value);
+    }
+    
+    /**
+     * Reads an unsigned varint written by {@link
+     * Conversions#putVarLong(java.nio.ByteBuffer, long)}.
+     * 
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return The decoded value as a long.
+     * @throws IllegalArgumentException Thrown if the varint is longer than
+     * {@link Conversions#MAX_VARLONG_SIZE} bytes.
+     * @since 2.0
+     */
+    public static long getVarLong(ByteBuffer buf)
+    {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buf.get();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
         }
-        
-        return new Point(point[0], point[1]);
+        throw new IllegalArgumentException("Malformed varint.");
     }
         
     /**
-     * Converts a hexadecimal {@link String} into a new {@link Color} object. 
-     * This method only accepts hexadecimal values in the form of; <pre>
-     * rrggbb</pre>. Any other formats will return null.
+     * Writes a signed int as a zig-zag encoded varint.
+     * 
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param value The value to encode.
+     * @since 2.0
+     */
+    public static void putSignedVarInt(ByteBuffer buf, int value)
+    {
+        putVarInt(buf, (value << 1) ^ (value >> 31));
+    }
+    
+    /**
+     * Reads a signed int written by {@link
+     * Conversions#putSignedVarInt(java.nio.ByteBuffer, int)}.
+     * 
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return The decoded value as an int.
+     * @since 2.0
+     */
+    public static int getSignedVarInt(ByteBuffer buf)
+    {
+        int raw = getVarInt(buf);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+    
+    /**
+     * Writes a {@link String} as a varint byte count followed by its UTF-8
+     * bytes. Strings longer than the specified number of characters are
+     * truncated.
+     * 
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param s The {@link String} to encode. Null is written as an empty
+     * string.
+     * @param maxChars The maximum number of characters to keep.
+     * @since 2.0
+     */
+    public static void putString(ByteBuffer buf, String s, int maxChars)
+    {
+        if (s == null) s = "";
+        if (s.length() > maxChars) s = s.substring(0, maxChars);
+        byte[] bytes = s.getBytes(UTF8);
+        putVarInt(buf, bytes.length);
+        buf.put(bytes);
+    }
+    
+    /**
+     * Reads a {@link String} written by {@link
+     * Conversions#putString(java.nio.ByteBuffer, java.lang.String, int)}.
      * 
-     * @param s The string to convert.
-     * @return Returns a new {@link Color} object if the string can be decoded, 
-     * null otherwise.
-     * @since 1.1
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return The decoded {@link String}.
+     * @throws BufferUnderflowException Thrown if the buffer is shorter than the
+     *  encoded length.
+     * @since 2.0
      */
-    public static Color stringToColor(String s)
+    public static String getString(ByteBuffer buf)
     {
-        if (s.length() != COLOUR_SIZE) {
-            System.err.println("Provided String is not a hexadecimal colour.");
-            return null;
+        int len = getVarInt(buf);
+        if (len < 0 || len > buf.remaining())
+            throw new BufferUnderflowException();
+        if (buf.hasArray()) {
+            String s = new String(buf.array(),
+                    buf.arrayOffset()+buf.position(), len, UTF8);
+            buf.position(buf.position()+len);
+            return s;
         }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
         
-        String rChars = s.substring(0, 2);
-        String gChars = s.substring(2, 4);
-        String bChars = s.substring(4);
+    /**
+     * Writes a {@link Point} as two zig-zag varints; x then y.
+     * 
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param p The {@link Point} to encode.
+     * @since 2.0
+     */
+    public static void putPoint(ByteBuffer buf, Point p)
+    {
+        putSignedVarInt(buf, p.x);
+        putSignedVarInt(buf, p.y);
+    }
         
-        int r = Integer.parseInt(rChars, 16);
-        int g = Integer.parseInt(gChars, 16);
-        int b = Integer.parseInt(bChars, 16);
+    /**
+     * Reads a {@link Point} written by {@link
+     * Conversions#putPoint(java.nio.ByteBuffer, java.awt.Point)}.
+     * 
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return Returns a new {@link Point}.
+     * @since 2.0
+     */
+    public static Point getPoint(ByteBuffer buf)
+    {
+        int x = getSignedVarInt(buf);
+        int y = getSignedVarInt(buf);
+        return new Point(x, y);
+    }
         
-        if ((r < 0 || r > 255) || (g < 0 || g > 255) || (b < 0 || b > 255)) {
-            System.err.println("A colour component was invalid.");
-            return null;
-        }
+    /**
+     * Writes a {@link Color} as three bytes; red, green then blue. Any alpha
+     * component is discarded.
+     * 
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param c The {@link Color} to encode.
+     * @since 2.0
+     */
+    public static void putColor(ByteBuffer buf, Color c)
+    {
+        buf.put((byte)c.getRed());
+        buf.put((byte)c.getGreen());
+        buf.put((byte)c.getBlue());
+    }
         
+    /**
+     * Reads a {@link Color} written by {@link
+     * Conversions#putColor(java.nio.ByteBuffer, java.awt.Color)}.
+     * 
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return Returns a new opaque {@link Color}.
+     * @since 2.0
+     */
+    public static Color getColor(ByteBuffer buf)
+    {
+        int r = buf.get() & 0xFF;
+        int g = buf.get() & 0xFF;
+        int b = buf.get() & 0xFF;
         return new Color(r, g, b);
     }
     
     /**
-     * Attempts to convert a {@link String} to a {@link Font}. This expects an 
-     * encoded string that has the following structure;
+     * Writes a {@link Font} to the buffer. The encoding has the following
+     * format;
      * <ol>
-     * <li>20 characters containing a font name.</li>
-     * <li>1 character containing an integer for the font style.</li>
-     * <li>1 character containing an boolean for the underline status.</li>
-     * <li>2 characters containing an integer for the font size.</li>
+     * <li>A string containing the font name, up to {@link
+     * Conversions#FONT_NAME_SIZE} characters.</li>
+     * <li>1 byte of style flags; bold, italic and underline.</li>
+     * <li>A varint containing the font size.</li>
      * </ol>
-     * If the String is not in this format, it will fail to create a new font.
      * 
-     * @param s The string to convert.
-     * @return Returns a new {@link Font} if the string can be decoded, null 
-     * otherwise.
-     * @since 1.1
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param f The {@link Font} to encode.
+     * @since 2.0
      */
-    public static Font stringToFont(String s)
+    public static void putFont(ByteBuffer buf, Font f)
     {
-        if (s.length() != FONT_SIZE) {
-            System.err.println("Provided String is not a valid font.");
-            return null;
-        }
-        
-        String name = s.substring(0, FONT_NAME_SIZE).trim();
-        int style = Integer.valueOf(s.substring(FONT_STY_OFFSET, 
-                FONT_UNDER_OFFSET));
-        char under = s.charAt(FONT_UNDER_OFFSET);
-        int size = Integer.valueOf(s.substring(FONT_SIZE_OFFSET));
+        putString(buf, f.getName(), FONT_NAME_SIZE);
         
-        Font f = new Font(name, style, size);
+        int flags = 0;
+        if (f.isBold()) flags |= FONT_BOLD;
+        if (f.isItalic()) flags |= FONT_ITALIC;
         Map attribs = f.getAttributes();
-        if (under == 't') {
-            attribs.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON);
-        } else {
-            attribs.put(TextAttribute.UNDERLINE, null);
-        }
-        f = f.deriveFont(attribs);
-        
-        return f;
+        if (attribs.get(TextAttribute.UNDERLINE) != null)
+            flags |= FONT_UNDERLINE;
+        buf.put((byte)flags);
+        putVarInt(buf, f.getSize());
     }
+    
     /**
-     * Converts a {@link String} to a properly formed IPv4 IP address.
+     * Reads a {@link Font} written by {@link
+     * Conversions#putFont(java.nio.ByteBuffer, java.awt.Font)}. Recently used 
+     * fonts are shared rather than created again.
      * 
-     * @param str The encoded String to convert.
-     * @return The decoded IP address as a String. If the String cannot be 
-     * decoded properly, this will return null instead.
-     * @since 1.0
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return Returns the decoded {@link Font}.
+     * @since 2.0
      */
-    public static String stringToIP(String str)
+    public static Font getFont(ByteBuffer buf)
     {
-        String[] octetStrs = new String[4];
+        String name = getString(buf);
+        int flags = buf.get();
+        int size = getVarInt(buf);
         
-        try {
-            octetStrs[0] = str.substring(0, 3);
-            octetStrs[1] = str.substring(3, 6);
-            octetStrs[2] = str.substring(6, 9);
-            octetStrs[3] = str.substring(9, 12);
-        } catch (IndexOutOfBoundsException indEx) {
-            System.err.println("IP Address is not properly formed.");
-            return null;
-        }
+        Triple<String, Integer, Integer> key = 
+                new Triple<>(name, flags, size);
+        Font cached = FONTS.get(key);
+        if (cached != null) return cached;
         
-        int[] octets = new int[octetStrs.length];
-        try {
-            for (int i = 0; i < octetStrs.length; i++)
-                octets[i] = Integer.parseInt(octetStrs[i]);
-        } catch (NumberFormatException nfe) {
-            System.err.println("IP Address contained non-numeric character.");
-            return null;
+        int style = Font.PLAIN;
+        if ((flags & FONT_BOLD) != 0) style |= Font.BOLD;
+        if ((flags & FONT_ITALIC) != 0) style |= Font.ITALIC;
+        
+        Font f = new Font(name, style, size);
+        if ((flags & FONT_UNDERLINE) != 0) {
+            Map attribs = f.getAttributes();
+            attribs.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON);
+            f = f.deriveFont(attribs);
         }
         
-        return String.format("%d.%d.%d.%d", octets[0], octets[1], 
-                octets[2], octets[3]);
+        FONTS.put(key, f);
+        return f;
     }
     
     /**
-     * Converts a standard representation of an IPv4 address to an encoded 
-     * String to be sent over the network. This strips out the periods and pads 
-     * each octet to 3 characters in length.
+     * Writes a dotted IPv4 address as four raw octets.
      * 
-     * @param address The IPv4 formatted address to convert to an encoded form.
-     * @return Returns the encoded String if it is encoded, otherwise returns 
-     * null.
-     * @since 1.0
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param address The IPv4 formatted address to encode.
+     * @return Returns true if the address could be encoded, false if it was
+     * not a properly formed IPv4 address. Nothing is written on failure.
+     * @since 2.0
      */
-    public static String ipToString(String address)
+    public static boolean putIP(ByteBuffer buf, String address)
     {
+        if (address == null) return false;
         String[] octetStrs = address.split("\\.");
-        if (octetStrs.length != 4) return null;
+        if (octetStrs.length != IP_SIZE) return false;
         
         int[] octets = new int[octetStrs.length];
-        
         for (int i = 0; i < octets.length; i++) {
             try {
                 octets[i] = Integer.parseInt(octetStrs[i]);
             } catch (NumberFormatException nfe) {
                 System.err.println("Provided IP address is incorrectly formed.");
-                return null;
+                return false;
             }
+            if (octets[i] < 0 || octets[i] > 255) return false;
         }
         
-        return String.format("%03d%03d%03d%03d", 
-                octets[0], octets[1], octets[2], octets[3]);
+        for (int octet : octets)
+            buf.put((byte)octet);
+        return true;
+    }
+    
+    /**
+     * Reads an IPv4 address written by {@link
+     * Conversions#putIP(java.nio.ByteBuffer, java.lang.String)}.
+     * 
+     * @param buf The {@link ByteBuffer} to read from.
+     * @return The decoded IP address as a dotted String.
+     * @since 2.0
+     */
+    public static String getIP(ByteBuffer buf)
+    {
+        int a = buf.get() & 0xFF;
+        int b = buf.get() & 0xFF;
+        int c = buf.get() & 0xFF;
+        int d = buf.get() & 0xFF;
+        return a + "." + b + "." + c + "." + d;
     }
 }
@@ -1,40 +1,34 @@
 package distributedwhiteboard;
 
 import distributedwhiteboard.gui.WhiteboardCanvas;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * {@link DiscoveryMessage} is an abstract class that represents the base for a 
  * variety of messages that are used in the network discovery protocol for the 
  * Distributed Whiteboard application. The messages all contain the same data, 
  * the IP address/ host name of the source, and a port number to send UDP 
- * packets over.
+ * packets over. They also carry the {@link MessageID} node number of the 
+ * source, so other hosts know where to ask for that node's messages again.
  * 
  * @author 6266215
- * @version 1.2
+ * @version 1.5
  * @since 2015-03-07
  */
 public abstract class DiscoveryMessage extends NetMessage
 {
-    /** The number of characters in an encoded IP address. */
-    private static final int IP_SIZE = 12;
-    /** The number of characters in an encoded port. */
-    private static final int PORT_SIZE = 5;
     /** The maximum size of a client name. */
     private static final int NAME_SIZE = 20;
     
-    /** The character offset in the message for the start of the IP address. */
-    private static final int IP_OFFSET = TYPE_OFFSET+1;
-    /** The character offset in the message for the start of the port number. */
-    private static final int PORT_OFFSET = IP_OFFSET+IP_SIZE;
-    /** The character offset in the message for the client name. */
-    private static final int NAME_OFFSET = PORT_OFFSET+PORT_SIZE;
-    
     /** A {@link String} containing a name to identify the client. */
     public final String Name;
     /** The IP address for the source of this {@link DiscoveryMessage}. */
     public final String IP;
     /** The UDP port address for the source of this {@link DiscoveryMessage}. */
     public final int Port;
+    /** The {@link MessageID} node number of the source of this message. */
+    public final int Node;
 
     /**
      * Creates a new {@link DiscoveryMessage} with the specified {@link 
@@ -49,11 +43,29 @@ public abstract class DiscoveryMessage extends NetMessage
      * @since 1.0
      */
     protected DiscoveryMessage(MessageType t, String name, String ip, int port)
+    {
+        this(t, name, ip, port, MessageID.localNode());
+    }
+    
+    /**
+     * Creates a new {@link DiscoveryMessage} from a source with the specified 
+     * node number, such as one that has just been received.
+     * 
+     * @param t The {@link MessageType} of this message.
+     * @param name The name the sending {@link Client} is using.
+     * @param ip The IP address or host name to send as a String.
+     * @param port The UDP port number to send as an int.
+     * @param node The {@link MessageID} node number of the source.
+     * @since 1.4
+     */
+    protected DiscoveryMessage(MessageType t, String name, String ip, int port,
+            int node)
     {
         super(t);
         this.Name = name;
         this.IP = ip;
         this.Port = port;
+        this.Node = node;
     }
     
     /**
@@ -66,20 +78,28 @@ public abstract class DiscoveryMessage extends NetMessage
     public static int getLargestSize()
     {        
         return new DiscoveryRequest("12345678901234567890", 
-                "000.000.000.000", 65535).encode().length;
+                "255.255.255.255", 65535).encode().length;
     }
     
     /**
-     * Converts this {@link DiscoveryMessage} into a byte array. This converts 
-     * the {@link String} representation of this message into bytes.
+     * Writes the source address of this {@link DiscoveryMessage} after the 
+     * shared {@link NetMessage} header. The IP address is written as four raw 
+     * octets, the port as an unsigned short, the name as a string of at most 
+     * 20 characters and the node number as 4 bytes.
      * 
-     * @return A byte array containing this message.
-     * @since 1.0
+     * @param buf The {@link ByteBuffer} to write the message body into.
+     * @throws IllegalStateException Thrown if the IP address of this message 
+     * is not a valid IPv4 address.
+     * @since 1.3
      */
     @Override
-    public byte[] encode()
+    protected void encodeBody(ByteBuffer buf)
     {
-        return this.toString().getBytes();
+        if (!Conversions.putIP(buf, IP))
+            throw new IllegalStateException("Invalid IP address " + IP);
+        buf.putShort((short)Port);
+        Conversions.putString(buf, Name, NAME_SIZE);
+        buf.putInt(Node);
     }
     
     /**
@@ -95,20 +115,42 @@ public abstract class DiscoveryMessage extends NetMessage
      */
     public static DiscoveryMessage decode(byte[] buffer)
     {
-        String messageStr = new String(buffer).trim();
+        return decode(ByteBuffer.wrap(buffer));
+    }
         
-        MessageType t = MessageType.parseChar(messageStr.charAt(TYPE_OFFSET));
-        String ipStr = messageStr.substring(IP_OFFSET, PORT_OFFSET);
-        String portStr = messageStr.substring(PORT_OFFSET, NAME_OFFSET);
+    /**
+     * Decodes the contents of a {@link ByteBuffer} into a implementation of 
+     * {@link DiscoveryMessage}, reading from the current position of the 
+     * buffer. If the buffer is not properly formed for the discovery protocol, 
+     * this will return null rather than an instance of a sub class.
+     * 
+     * @param buf The {@link ByteBuffer} to decode into a {@link 
+     * DiscoveryMessage} implementation.
+     * @return Returns a {@link DiscoveryMessage} containing the source IP and 
+     * port if the message can be decoded. Null otherwise.
+     * @since 1.3
+     */
+    public static DiscoveryMessage decode(ByteBuffer buf)
+    {
+        int start = buf.position();
+        MessageType t = peekType(buf, start);
+        String ipStr;
         int port;
-        
-        ipStr = Conversions.stringToIP(ipStr);
-        if (ipStr == null) return null;
+        String nStr;
+        int node;
+        int transfer = 0;
         
         try {
-            port = Integer.parseInt(portStr);
-        } catch (NumberFormatException nfe) {
-            port = -1;
+            skipHeader(buf);
+            ipStr = Conversions.getIP(buf);
+            port = buf.getShort() & 0xFFFF;
+            nStr = Conversions.getString(buf).trim();
+            node = buf.getInt();
+            if (t == MessageType.JOIN)
+                transfer = buf.getInt();
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            System.err.println("DiscoveryMessage was incorrectly formed.");
+            return null;
         }
         
         if (port < 1 || port > 65535) {
@@ -116,20 +158,18 @@ public abstract class DiscoveryMessage extends NetMessage
             return null;
         }
         
-        String nStr = messageStr.substring(NAME_OFFSET);
-        nStr = nStr.trim();
-        
         DiscoveryMessage msg = null;
         if (t == MessageType.DISCOVERY)
-            msg = new DiscoveryRequest(nStr, ipStr, port);
+            msg = new DiscoveryRequest(nStr, ipStr, port, node);
         else if (t == MessageType.RESPONSE)
-            msg = new DiscoveryResponse(nStr, ipStr, port);
+            msg = new DiscoveryResponse(nStr, ipStr, port, node);
         else if (t == MessageType.JOIN)
-            msg = new JoinRequest(nStr, ipStr, port);
+            msg = new JoinRequest(nStr, ipStr, port, node, transfer);
         else if (t == MessageType.LEAVE)
-            msg = new LeaveRequest(nStr, ipStr, port);
+            msg = new LeaveRequest(nStr, ipStr, port, node);
         
         if (msg != null) {
+            msg.readHeader(buf, start);
             return msg;
         }
         
@@ -138,9 +178,8 @@ public abstract class DiscoveryMessage extends NetMessage
     }
 
     /**
-     * Generates a {@link String} representation of this {@link 
-     * DiscoveryMessage} and its contents. This String contains the encoded 
-     * version of the message rather than a easily readable form.
+     * Generates a readable {@link String} representation of this {@link 
+     * DiscoveryMessage} and its contents.
      * 
      * @return The String representation of this message.
      * @since 1.0
@@ -148,24 +187,7 @@ public abstract class DiscoveryMessage extends NetMessage
     @Override
     public String toString()
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append(super.toString());
-        
-        String ipStr = Conversions.ipToString(IP);
-        String portStr = String.format("%05d", Port);
-        
-        if (ipStr == null || ipStr.isEmpty() || portStr.isEmpty())
-            return null;
-        
-        int diff = 20 - Name.length();
-        
-        sb.append(ipStr);
-        sb.append(portStr);
-        sb.append(Name);
-        for (int i = diff; i > 0; i--) {
-            sb.append(" ");
-        }
-        return sb.toString();
+        return String.format("%s %s@%s:%d", super.toString(), Name, IP, Port);
     }
     
     /**
@@ -183,6 +205,12 @@ public abstract class DiscoveryMessage extends NetMessage
         {
             super(MessageType.DISCOVERY, name, ipAddress, portNumber);
         }
+        
+        public DiscoveryRequest(String name, String ipAddress, int portNumber, 
+                int node)
+        {
+            super(MessageType.DISCOVERY, name, ipAddress, portNumber, node);
+        }
     }
     
     /**
@@ -199,20 +227,55 @@ public abstract class DiscoveryMessage extends NetMessage
         {
             super(MessageType.RESPONSE, name, ipAddress, portNumber);
         }
+        
+        public DiscoveryResponse(String name, String ipAddress, int portNumber, 
+                int node)
+        {
+            super(MessageType.RESPONSE, name, ipAddress, portNumber, node);
+        }
     }
     
     /**
      * Sent from a client that wishes to join the peer-to-peer network to inform
      *  an existing client that it needs a copy of the {@link WhiteboardCanvas}.
+     * The port is the TCP port of the joining client's {@link TransferServer}, 
+     * and the canvas should be sent under the transfer ID written after the 
+     * usual {@link DiscoveryMessage} body.
      * 
-     * @version 1.0
+     * @version 1.1
      * @since 1.1
      */
     public static class JoinRequest extends DiscoveryMessage
     {
-        public JoinRequest(String name, String ipAddress, int portNumber)
+        /** The {@link TransferServer.Transfer} ID to send the canvas under. */
+        public final int TransferID;
+        
+        public JoinRequest(String name, String ipAddress, int portNumber, 
+                int transfer)
         {
             super(MessageType.JOIN, name, ipAddress, portNumber);
+            this.TransferID = transfer;
+        }
+        
+        public JoinRequest(String name, String ipAddress, int portNumber, 
+                int node, int transfer)
+        {
+            super(MessageType.JOIN, name, ipAddress, portNumber, node);
+            this.TransferID = transfer;
+        }
+        
+        /**
+         * Writes the {@link DiscoveryMessage} body followed by the 4 byte 
+         * transfer ID.
+         * 
+         * @param buf The {@link ByteBuffer} to write the message body into.
+         * @since 1.1
+         */
+        @Override
+        protected void encodeBody(ByteBuffer buf)
+        {
+            super.encodeBody(buf);
+            buf.putInt(TransferID);
         }
     }
     
@@ -230,5 +293,11 @@ public abstract class DiscoveryMessage extends NetMessage
         {
             super(MessageType.LEAVE, name, ipAddress, portNumber);
         }
+        
+        public LeaveRequest(String name, String ipAddress, int portNumber, 
+                int node)
+        {
+            super(MessageType.LEAVE, name, ipAddress, portNumber, node);
+        }
     }
 }
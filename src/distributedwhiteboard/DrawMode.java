@@ -7,7 +7,7 @@ import java.awt.image.BufferedImage;
  * supports.
  * 
  * @author 6266215
- * @version 1.3
+ * @version 1.4
  * @since 2015-03-15
  */
 public enum DrawMode
@@ -46,6 +46,13 @@ public enum DrawMode
     public final char mode;
     private DrawMode(char val) { this.mode = val; }
     
+    /** Every {@link DrawMode}, indexed by the unsigned value of its byte. */
+    private static final DrawMode[] LOOKUP = new DrawMode[256];
+    static {
+        for (DrawMode m : DrawMode.values())
+            LOOKUP[m.mode] = m;
+    }
+    
     /**
      * Parses a provided character and provides the correct {@link DrawMode} 
      * enumeration mode for that character.
@@ -57,12 +64,24 @@ public enum DrawMode
      */
     public static DrawMode parseChar(char c)
     {
-        for (DrawMode m : DrawMode.values()) {
-            if (m.mode == c)
-                return m;
-        }
-        System.out.printf("Unknown DrawType '%c'%n", c);
-        return null;
+        DrawMode m = (c < LOOKUP.length) ? LOOKUP[c] : null;
+        if (m == null)
+            System.out.printf("Unknown DrawType '%c'%n", c);
+        return m;
+    }
+    
+    /**
+     * Works out the {@link DrawMode} of a byte read straight from an encoded 
+     * message, without going through a character.
+     * 
+     * @param b The mode byte to parse.
+     * @return A {@link DrawMode} mode if a matching one is found, null 
+     * otherwise.
+     * @since 1.4
+     */
+    public static DrawMode parseByte(byte b)
+    {
+        return parseChar((char)(b & 0xFF));
     }
     
     /**
@@ -0,0 +1,746 @@
+package distributedwhiteboard;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+
+/**
+ * Holds the images drawn on the whiteboard, keyed by a digest of their
+ * contents. The same picture always gets the same key, so it only needs to
+ * be sent between hosts once, however many times it is inserted.
+ * <p>
+ * Images are kept in memory up to a budget measured in pixel bytes, with the
+ * least recently used dropped first. Dropped images are written as PNG files
+ * to a cache directory, and read back from there the next time they are
+ * needed. The files are named by key, so they are found again after the
+ * program restarts. The keys of the files written are kept in memory, so 
+ * checking whether an image is held never touches the disk. The directory 
+ * is kept within a budget of its own, with the least recently used files 
+ * deleted first; an image deleted that is needed again is fetched from the 
+ * other hosts like any other.
+ * <p>
+ * The PNG file doubles as the encoded form of the image sent to other hosts.
+ * Images received from other hosts are written straight from the bytes 
+ * received. Images made here are only encoded once dropped from memory or 
+ * first asked for by another host, so each image is encoded at most once 
+ * however many hosts ask for it, and never if nobody does. See {@link 
+ * ImageCache#getFile(long)}. The {@link ChunkMap} of each file is kept too, 
+ * for hosts fetching the image in chunks.
+ * <p>
+ * Dropped images are written on one background thread, while reductions and 
+ * images asked for by other hosts are made on another, so a host being 
+ * served never waits behind images being dropped.
+ * <p>
+ * Images drawn smaller than their full size only need to be sent at a 
+ * reduced level, each level half the width and height of the one before. 
+ * Levels are held like any other image, under a key made from the key of the 
+ * full image and the level; see {@link ImageCache#levelKey(long, int)}. A 
+ * host can make any level coarser than the finest one it holds with {@link 
+ * ImageCache#reduce(long, int)}.
+ * 
+ * @author 6266215
+ * @version 1.5
+ * @since 2026-10-16
+ */
+public class ImageCache
+{
+    /** The default memory budget in pixel bytes. */
+    public static final long DEFAULT_BUDGET = 64L*1024*1024;
+    /** The default budget for the cache directory in file bytes. */
+    public static final long DEFAULT_DISK_BUDGET = 256L*1024*1024;
+    /** The default directory images are written to once dropped. */
+    public static final File DEFAULT_DIRECTORY = new File(
+            System.getProperty("user.home"), ".distributedwhiteboard/images");
+    /** The number of bytes each pixel is counted as using. */
+    private static final int PIXEL_BYTES = 4;
+    /** The number of chunk maps kept. */
+    private static final int MAPS = 64;
+    /** The coarsest level an image is reduced to. */
+    public static final int MAX_LEVEL = 6;
+    
+    /** The images held in memory, least recently used first. */
+    private final LinkedHashMap<Long, BufferedImage> memory;
+    /** Images dropped from memory that are still being written out. */
+    private final HashMap<Long, BufferedImage> spilling;
+    /** 
+     * The sizes of the images written to the cache directory by key, least 
+     * recently used first.
+     */
+    private final LinkedHashMap<Long, Long> onDisk;
+    /** The chunk maps of the most recently offered images. */
+    private final LinkedHashMap<Long, ChunkMap> maps;
+    /** The directory dropped images are written to. */
+    private final File directory;
+    /** Writes dropped images out without holding up the caller. */
+    private final ExecutorService writer;
+    /** Makes reductions and encodes images asked for by other hosts. */
+    private final ExecutorService reducer;
+    /** The most pixel bytes to keep in memory. */
+    private final long budget;
+    /** The pixel bytes currently held in memory. */
+    private long used;
+    /** The most file bytes to keep in the cache directory. */
+    private final long diskBudget;
+    /** The file bytes currently in the cache directory. */
+    private long diskUsed;
+    /** The number of lookups answered from memory. */
+    private long hits;
+    /** The number of lookups answered from the cache directory. */
+    private long loaded;
+    /** The number of lookups that found nothing. */
+    private long misses;
+    /** The number of images written to the cache directory. */
+    private long spilled;
+    /** The number of times an image has been encoded as PNG. */
+    private long encodes;
+    /** The number of files deleted to keep within the disk budget. */
+    private long deleted;
+    
+    /**
+     * Creates a new {@link ImageCache} with the default budget and
+     * directory.
+     * 
+     * @since 1.0
+     */
+    public ImageCache()
+    {
+        this(DEFAULT_BUDGET, DEFAULT_DIRECTORY);
+    }
+    
+    /**
+     * Creates a new {@link ImageCache} with the specified budget, writing
+     * dropped images to the specified directory.
+     * 
+     * @param budget The most pixel bytes to keep in memory.
+     * @param directory The directory to write dropped images to. It is
+     * created when first needed.
+     * @since 1.0
+     */
+    public ImageCache(long budget, File directory)
+    {
+        this(budget, directory, DEFAULT_DISK_BUDGET);
+    }
+    
+    /**
+     * Creates a new {@link ImageCache} with the specified budgets, writing
+     * dropped images to the specified directory.
+     * 
+     * @param budget The most pixel bytes to keep in memory.
+     * @param directory The directory to write dropped images to. It is
+     * created when first needed.
+     * @param diskBudget The most file bytes to keep in the directory.
+     * @since 1.5
+     */
+    public ImageCache(long budget, File directory, long diskBudget)
+    {
+        this.memory = new LinkedHashMap<>(16, 0.75f, true);
+        this.spilling = new HashMap<>();
+        this.onDisk = new LinkedHashMap<>(16, 0.75f, true);
+        this.maps = new LinkedHashMap<Long, ChunkMap>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ChunkMap> e)
+            {
+                return size() > MAPS;
+            }
+        };
+        this.directory = directory;
+        this.budget = budget;
+        this.used = 0;
+        this.diskBudget = diskBudget;
+        this.diskUsed = 0;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Image spill");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.reducer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Image reduce");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        index();
+        trimDisk();
+    }
+    
+    /**
+     * Reads the keys of the images already in the cache directory, such as 
+     * those written before the program restarted, into the index of images 
+     * on disk.
+     * 
+     * @since 1.4
+     */
+    private void index()
+    {
+        File[] files = directory.listFiles();
+        if (files == null) return; // Not created yet.
+        for (File f : files) {
+            String name = f.getName();
+            if (name.length() != 20 || !name.endsWith(".png")) continue;
+            try {
+                long high = Long.parseLong(name.substring(0, 8), 16);
+                long low = Long.parseLong(name.substring(8, 16), 16);
+                onDisk.put((high << 32) | low, f.length());
+                diskUsed += f.length();
+            } catch (NumberFormatException ex) {
+                // Not one of ours.
+            }
+        }
+    }
+    
+    /**
+     * Works out the key for an image from its size and pixels. The key is
+     * the first 8 bytes of the SHA-256 digest of the width, height and every
+     * pixel as ARGB, so it does not depend on how the image is stored.
+     * 
+     * @param image The {@link BufferedImage} to work out the key of.
+     * @return The key as a long.
+     * @since 1.0
+     */
+    public static long digest(BufferedImage image)
+    {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] row = new int[w];
+        ByteBuffer bytes = ByteBuffer.allocate(Math.max(8, w*PIXEL_BYTES));
+        bytes.putInt(w).putInt(h);
+        sha.update(bytes.array(), 0, 8);
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            sha.update(bytes.array(), 0, w*PIXEL_BYTES);
+        }
+        return ByteBuffer.wrap(sha.digest()).getLong();
+    }
+    
+    /**
+     * Gets the key an image is held under once reduced to a level.
+     * 
+     * @param key The key of the full image.
+     * @param level The number of times the image was halved in size.
+     * @return The key of the level, which is the key of the full image for 
+     * level 0.
+     * @since 1.3
+     */
+    public static long levelKey(long key, int level)
+    {
+        if (level == 0) return key;
+        long mixed = (key ^ level) * 0x9E3779B97F4A7C15L;
+        return mixed ^ (mixed >>> 31);
+    }
+    
+    /**
+     * Gets the coarsest level an image can be reduced to and still be drawn 
+     * at a scale without losing detail.
+     * 
+     * @param scale The scale the image is drawn at, from 0.0 to 1.0.
+     * @return The level, from 0 to {@link ImageCache#MAX_LEVEL}.
+     * @since 1.3
+     */
+    public static int levelFor(float scale)
+    {
+        int level = 0;
+        while (level < MAX_LEVEL && 1.0f/(2 << level) >= scale)
+            level++;
+        return level;
+    }
+    
+    /**
+     * Gets the finest level of an image the cache holds.
+     * 
+     * @param key The key of the full image.
+     * @return The level, or -1 if the cache holds no level of the image.
+     * @since 1.3
+     */
+    public int bestLevel(long key)
+    {
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            if (contains(levelKey(key, level))) return level;
+        }
+        return -1;
+    }
+    
+    /**
+     * Makes sure the cache holds an image at a level, halving the finest 
+     * level it holds if needed. Reductions are made on the reducer thread, so 
+     * the same level is never made twice at once.
+     * 
+     * @param key The key of the full image.
+     * @param level The level wanted.
+     * @return Returns true if the level is held, false if the cache holds no 
+     * level of the image as fine as the one wanted.
+     * @since 1.3
+     */
+    public boolean reduce(final long key, final int level)
+    {
+        if (contains(levelKey(key, level))) return true;
+        
+        Future<Boolean> reduced = reducer.submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                long target = levelKey(key, level);
+                if (contains(target)) return true;
+                for (int from = level-1; from >= 0; from--) {
+                    BufferedImage src = get(levelKey(key, from));
+                    if (src == null) continue;
+                    put(target, halve(src, level-from));
+                    return true;
+                }
+                return false;
+            }
+        });
+        try {
+            return reduced.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.printf("Could not reduce image.%n%s%n", 
+                    ex.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Halves the width and height of an image a number of times, rounding 
+     * up. Each step is filtered from the one before, so detail is averaged 
+     * rather than skipped.
+     * 
+     * @param image The {@link BufferedImage} to reduce.
+     * @param times The number of times to halve it.
+     * @return The reduced {@link BufferedImage}.
+     * @since 1.3
+     */
+    public static BufferedImage halve(BufferedImage image, int times)
+    {
+        BufferedImage result = image;
+        for (int i = 0; i < times; i++) {
+            int w = (result.getWidth()+1)/2;
+            int h = (result.getHeight()+1)/2;
+            BufferedImage next = 
+                    new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(result, 0, 0, w, h, null);
+            g.dispose();
+            result = next;
+        }
+        return result;
+    }
+    
+    /**
+     * Adds an image to the cache under the key of its contents.
+     * 
+     * @param image The {@link BufferedImage} to add.
+     * @return The key the image was added under.
+     * @since 1.0
+     */
+    public long put(BufferedImage image)
+    {
+        long key = digest(image);
+        put(key, image, null);
+        return key;
+    }
+    
+    /**
+     * Adds an image to the cache under a key already worked out, such as one
+     * received from another host.
+     * 
+     * @param key The key of the image.
+     * @param image The {@link BufferedImage} to add.
+     * @since 1.0
+     */
+    public void put(long key, BufferedImage image)
+    {
+        put(key, image, null);
+    }
+    
+    /**
+     * Adds an image to the cache along with its encoded PNG bytes, such as 
+     * an image just received from another host. The bytes are written to the 
+     * cache directory as they are, so the image never needs encoding here.
+     * If no bytes are given the image is encoded and written in the 
+     * background instead.
+     * 
+     * @param key The key of the image.
+     * @param image The {@link BufferedImage} to add.
+     * @param png The encoded image, or null to encode it.
+     * @since 1.1
+     */
+    public synchronized void put(long key, BufferedImage image, byte[] png)
+    {
+        BufferedImage old = memory.put(key, image);
+        if (old != null) used -= size(old);
+        used += size(image);
+        store(key, image, png);
+        trim();
+    }
+    
+    /**
+     * Checks whether the cache holds an image, in memory or on disk. Only 
+     * the index of images on disk is checked, not the directory itself.
+     * 
+     * @param key The key of the image.
+     * @return Returns true if the image can be fetched, false otherwise.
+     * @since 1.1
+     */
+    public synchronized boolean contains(long key)
+    {
+        return memory.containsKey(key) || spilling.containsKey(key)
+                || onDisk.containsKey(key);
+    }
+    
+    /**
+     * Checks the index for whether an image has been written to the cache 
+     * directory. This counts as a use of the file, so it is kept over older 
+     * files when the directory is trimmed.
+     * 
+     * @param key The key of the image.
+     * @return Returns true if the image is on disk, false otherwise.
+     * @since 1.4
+     */
+    private synchronized boolean isOnDisk(long key)
+    {
+        return onDisk.get(key) != null;
+    }
+    
+    /**
+     * Gets the PNG file holding an image, ready to be sent to another host.
+     * If the image has not been written out yet it is encoded now, unless it 
+     * is already waiting to be, in which case this waits for that instead.
+     * 
+     * @param key The key of the image.
+     * @return The PNG {@link File}, or null if the cache does not hold the 
+     * image or it could not be written.
+     * @since 1.1
+     */
+    public File getFile(final long key)
+    {
+        final File file = fileFor(key);
+        if (isOnDisk(key)) return file;
+        
+        // The reducer encodes one image at a time, so queueing behind it 
+        // means an image is never encoded twice at once for other hosts.
+        Future<File> written = reducer.submit(new Callable<File>()
+        {
+            @Override
+            public File call()
+            {
+                if (isOnDisk(key)) return file;
+                BufferedImage image;
+                synchronized (ImageCache.this) {
+                    image = memory.get(key);
+                    if (image == null) image = spilling.get(key);
+                }
+                if (image == null) return null;
+                return write(key, image, null) ? file : null;
+            }
+        });
+        try {
+            return written.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.printf("Could not write image to the cache.%n%s%n", 
+                    ex.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the {@link ChunkMap} of the PNG file holding an image, writing the 
+     * file first if needed.
+     * 
+     * @param key The key of the image.
+     * @return The {@link ChunkMap}, or null if the cache does not hold the 
+     * image or it could not be written or read.
+     * @since 1.2
+     */
+    public ChunkMap getChunkMap(long key)
+    {
+        synchronized (this) {
+            ChunkMap map = maps.get(key);
+            if (map != null) return map;
+        }
+        
+        File file = getFile(key);
+        if (file == null) return null;
+        try {
+            ChunkMap map = ChunkMap.of(key, file);
+            synchronized (this) {
+                maps.put(key, map);
+            }
+            return map;
+        } catch (IOException ex) {
+            System.err.printf("Could not read cached image %s.%n%s%n", file, 
+                    ex.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Gets an image from the cache, reading it back from the cache directory
+     * if it was dropped from memory.
+     * 
+     * @param key The key of the image.
+     * @return The {@link BufferedImage}, or null if the cache does not hold
+     * it.
+     * @since 1.0
+     */
+    public BufferedImage get(long key)
+    {
+        synchronized (this) {
+            BufferedImage image = memory.get(key);
+            if (image == null) image = spilling.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+        }
+        
+        BufferedImage image = null;
+        File file = fileFor(key);
+        if (isOnDisk(key)) {
+            try {
+                image = ImageIO.read(file);
+            } catch (IOException ex) {
+                System.err.printf("Could not read cached image %s.%n%s%n",
+                        file, ex.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (image == null) {
+                Long gone = onDisk.remove(key); // Missing or unreadable.
+                if (gone != null) diskUsed -= gone;
+                misses++;
+                return null;
+            }
+            loaded++;
+        }
+        put(key, image);
+        return image;
+    }
+    
+    /**
+     * Drops the least recently used images from memory until the cache is
+     * within its budget, always keeping the newest image.
+     * 
+     * @since 1.0
+     */
+    private void trim()
+    {
+        Iterator<Map.Entry<Long, BufferedImage>> it =
+                memory.entrySet().iterator();
+        while (used > budget && memory.size() > 1 && it.hasNext()) {
+            Map.Entry<Long, BufferedImage> e = it.next();
+            it.remove();
+            used -= size(e.getValue());
+            spill(e.getKey(), e.getValue());
+        }
+    }
+    
+    /**
+     * Writes an image dropped from memory to the cache directory in the
+     * background, unless it is already there. Until it is written the image
+     * is still found by {@link ImageCache#get(long)}.
+     * 
+     * @param key The key of the image.
+     * @param image The {@link BufferedImage} dropped.
+     * @since 1.0
+     */
+    private void spill(final long key, final BufferedImage image)
+    {
+        if (onDisk.containsKey(key)) return;
+        
+        spilling.put(key, image);
+        writer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    if (!isOnDisk(key)) write(key, image, null);
+                } finally {
+                    synchronized (ImageCache.this) {
+                        spilling.remove(key);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Writes the encoded bytes of an image just added to the cache directory 
+     * in the background, unless it is already there, so it is ready to send 
+     * to other hosts. An image without its bytes is left to be encoded when 
+     * it is dropped or asked for.
+     * 
+     * @param key The key of the image.
+     * @param image The {@link BufferedImage} added.
+     * @param png The encoded image, or null if it has not been encoded.
+     * @since 1.1
+     */
+    private void store(final long key, final BufferedImage image, 
+            final byte[] png)
+    {
+        if (png == null || onDisk.containsKey(key)) return;
+        
+        writer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!isOnDisk(key)) write(key, image, png);
+            }
+        });
+    }
+    
+    /**
+     * Writes an image to a file in the cache directory. The image is written 
+     * to a temporary file of its own first, so a half written image is never 
+     * read back, even while the writer and reducer threads both write it. The 
+     * image is added to the index of images on disk once written, and older 
+     * files are deleted if the directory is over its budget.
+     * 
+     * @param key The key of the image.
+     * @param image The {@link BufferedImage} to write.
+     * @param png The encoded image, or null to encode it.
+     * @return Returns true if the file was written, false otherwise.
+     * @since 1.1
+     */
+    private boolean write(long key, BufferedImage image, byte[] png)
+    {
+        File file = fileFor(key);
+        File temp = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create " + directory);
+            temp = Files.createTempFile(directory.toPath(), file.getName(), 
+                    ".tmp").toFile();
+            if (png != null) {
+                Files.write(temp.toPath(), png);
+            } else {
+                if (!ImageIO.write(image, "PNG", temp))
+                    throw new IOException("No PNG writer available.");
+                synchronized (this) {
+                    encodes++;
+                }
+            }
+            if (!temp.renameTo(file))
+                throw new IOException("Could not write " + file);
+            long length = file.length();
+            synchronized (this) {
+                spilled++;
+                Long old = onDisk.put(key, length);
+                diskUsed += length-((old == null) ? 0 : old);
+            }
+            trimDisk();
+            return true;
+        } catch (IOException ex) {
+            System.err.printf("Could not write image to the cache.%n%s%n", 
+                    ex.getMessage());
+            if (temp != null) temp.delete();
+            return false;
+        }
+    }
+    
+    /**
+     * Deletes the least recently used files from the cache directory until 
+     * it is within its budget, always keeping the newest file. The chunk map 
+     * of each file deleted is forgotten with it.
+     * 
+     * @since 1.5
+     */
+    private void trimDisk()
+    {
+        ArrayList<Long> gone = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Long, Long>> it = onDisk.entrySet().iterator();
+            while (diskUsed > diskBudget && onDisk.size() > 1 
+                    && it.hasNext()) {
+                Map.Entry<Long, Long> e = it.next();
+                it.remove();
+                diskUsed -= e.getValue();
+                maps.remove(e.getKey());
+                gone.add(e.getKey());
+                deleted++;
+            }
+        }
+        for (long key : gone)
+            fileFor(key).delete();
+    }
+    
+    /**
+     * Gets the file an image is written to when dropped from memory.
+     * 
+     * @param key The key of the image.
+     * @return The {@link File} for the image.
+     * @since 1.0
+     */
+    private File fileFor(long key)
+    {
+        return new File(directory, String.format("%016x.png", key));
+    }
+    
+    /**
+     * Gets the number of bytes an image is counted as using.
+     * 
+     * @param image The {@link BufferedImage} to measure.
+     * @return The size in pixel bytes.
+     * @since 1.0
+     */
+    private static long size(BufferedImage image)
+    {
+        return (long)image.getWidth()*image.getHeight()*PIXEL_BYTES;
+    }
+    
+    /**
+     * Describes how full the cache is and how lookups have been answered.
+     * 
+     * @return The String representation of this cache.
+     * @since 1.0
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d images, %d of %d KiB in memory%n"
+                + "Hits: %d, read from disk: %d, missed: %d%n"
+                + "Written to %s: %d (%d encoded)%n"
+                + "On disk: %d of %d KiB (%d deleted)", memory.size(), 
+                used/1024, budget/1024, hits, loaded, misses, directory, 
+                spilled, encodes, diskUsed/1024, diskBudget/1024, deleted);
+    }
+}
@@ -0,0 +1,196 @@
+package distributedwhiteboard;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fetches an encoded image in chunks from every host that offers it. The
+ * hosts holding the image are found by asking for its {@link ChunkMap} over
+ * multicast. The chunks are then asked for from each host in turn, several
+ * at once, and checked against the map as they arrive. A chunk that does not
+ * arrive, or does not match the map, is asked for again from another host,
+ * and a host that fails repeatedly is not asked again.
+ * <p>
+ * Chunks that have arrived are kept if the download cannot finish, so
+ * running it again only fetches the chunks still missing.
+ * <p>
+ * Each download fetches a single {@link ImageCache} level of the image, so
+ * an image drawn small is only sent at the size it is drawn.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class ImageDownload
+{
+    /** The most chunks asked for at once. */
+    public static final int PARALLEL = 8;
+    /** How long to wait for more hosts to offer the image, in ms. */
+    public static final int OFFER_WINDOW_MS = 200;
+    /** How many times a host may fail before it is not asked again. */
+    public static final int MAX_FAILURES = 3;
+    
+    /** The {@link ImageCache} key of the full image being fetched. */
+    private final long key;
+    /** The {@link ImageCache} level of the image being fetched. */
+    private final int level;
+    /** The map every chunk is checked against, once one has been offered. */
+    private ChunkMap map;
+    /** The encoded image, filled in as chunks arrive. */
+    private byte[] data;
+    /** Which chunks have arrived and been checked. */
+    private boolean[] have;
+    /** The number of chunks still to arrive. */
+    private int missing;
+    
+    /**
+     * Creates a new {@link ImageDownload} for a level of an image. Nothing 
+     * is fetched until {@link ImageDownload#run(TransferServer, Client)} is 
+     * called.
+     * 
+     * @param key The {@link ImageCache} key of the full image.
+     * @param level The {@link ImageCache} level to fetch.
+     * @since 1.0
+     */
+    public ImageDownload(long key, int level)
+    {
+        this.key = key;
+        this.level = level;
+    }
+    
+    /**
+     * Fetches the chunks of the image that have not arrived yet.
+     * 
+     * @param server The {@link TransferServer} to receive the chunks with.
+     * @param client The {@link Client} to ask other hosts through.
+     * @return The whole encoded image, or null if it could not all be
+     * fetched. Chunks that did arrive are kept for the next run.
+     * @since 1.0
+     */
+    public synchronized byte[] run(TransferServer server, Client client)
+    {
+        List<Pair<String, Integer>> sources = findSources(server, client);
+        if (sources.isEmpty()) {
+            System.err.printf("No hosts offered image %016x.%n", key);
+            return null;
+        }
+        
+        HashMap<Pair<String, Integer>, Integer> failures = new HashMap<>();
+        ArrayDeque<Integer> todo = new ArrayDeque<>();
+        for (int i = 0; i < have.length; i++) {
+            if (!have[i]) todo.add(i);
+        }
+        
+        int next = 0;
+        ArrayList<Request> inFlight = new ArrayList<>(PARALLEL);
+        while (!todo.isEmpty() && !sources.isEmpty()) {
+            // Spread the chunks over every host still offering them.
+            while (!todo.isEmpty() && inFlight.size() < PARALLEL) {
+                Request r = new Request(todo.poll(),
+                        sources.get(next++ % sources.size()),
+                        server.expect());
+                client.requestChunk(r.source, key, level, r.chunk,
+                        server.getPort(), r.transfer.ID);
+                inFlight.add(r);
+            }
+            
+            long deadline = System.currentTimeMillis()+Server.TCP_TIMEOUT;
+            for (Request r : inFlight) {
+                long left = Math.max(1, deadline-System.currentTimeMillis());
+                byte[] chunk = server.await(r.transfer, left);
+                if (chunk != null && map.verify(r.chunk, chunk)) {
+                    System.arraycopy(chunk, 0, data,
+                            r.chunk*ChunkMap.CHUNK_SIZE, chunk.length);
+                    have[r.chunk] = true;
+                    missing--;
+                    continue;
+                }
+                todo.add(r.chunk);
+                Integer failed = failures.get(r.source);
+                failed = (failed == null) ? 1 : failed+1;
+                failures.put(r.source, failed);
+                if (failed >= MAX_FAILURES && sources.remove(r.source)) {
+                    System.err.printf("Stopped fetching image %016x from "
+                            + "%s:%d.%n", key, r.source.Left, r.source.Right);
+                }
+            }
+            inFlight.clear();
+        }
+        
+        if (missing > 0) {
+            System.err.printf("Image %016x is missing %d of %d chunks.%n",
+                    key, missing, have.length);
+            return null;
+        }
+        return data;
+    }
+    
+    /**
+     * Asks every host for the map of the image, and gathers the hosts whose
+     * map agrees with the one chunks are checked against. The first map
+     * offered is used if this download does not have one yet.
+     * 
+     * @param server The {@link TransferServer} to receive the maps with.
+     * @param client The {@link Client} to ask other hosts through.
+     * @return The UDP address of each host to fetch chunks from.
+     * @since 1.0
+     */
+    private List<Pair<String, Integer>> findSources(TransferServer server,
+            Client client)
+    {
+        TransferServer.Transfer t = server.expect();
+        client.requestImage(key, level, server.getPort(), t.ID);
+        List<byte[]> offers = server.awaitAll(t, Server.TCP_TIMEOUT,
+                OFFER_WINDOW_MS);
+        
+        ArrayList<Pair<String, Integer>> sources = new ArrayList<>();
+        for (byte[] offer : offers) {
+            ChunkMap m = ChunkMap.decode(offer);
+            if (m == null || m.Key != ImageCache.levelKey(key, level))
+                continue;
+            if (map == null) {
+                map = m;
+                data = new byte[m.Length];
+                have = new boolean[m.getChunkCount()];
+                missing = have.length;
+            }
+            if (map.sameAs(m) && !sources.contains(m.Source))
+                sources.add(m.Source);
+        }
+        return sources;
+    }
+    
+    /**
+     * A chunk that has been asked for and not yet arrived.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    private static final class Request
+    {
+        /** The index of the chunk. */
+        final int chunk;
+        /** The host the chunk was asked for from. */
+        final Pair<String, Integer> source;
+        /** The transfer the chunk will arrive through. */
+        final TransferServer.Transfer transfer;
+        
+        /**
+         * Creates a new {@link Request} for a chunk.
+         * 
+         * @param chunk The index of the chunk.
+         * @param source The host asked.
+         * @param transfer The transfer the chunk will arrive through.
+         * @since 1.0
+         */
+        Request(int chunk, Pair<String, Integer> source,
+                TransferServer.Transfer transfer)
+        {
+            this.chunk = chunk;
+            this.source = source;
+            this.transfer = transfer;
+        }
+    }
+}
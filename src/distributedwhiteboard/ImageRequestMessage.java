@@ -1,65 +1,88 @@
 package distributedwhiteboard;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 /**
  *
  * @author 6266215
  */
 public class ImageRequestMessage extends NetMessage
 {
-    /** The number of characters in an encoded SourceIP address. */
-    private static final int IP_SIZE = 12;    
-    /** The character offset in the message for the start of the SourceIP address. */
-    private static final int IP_OFFSET = TYPE_OFFSET+1;
-    /** The character offset in the message for the start of the port number. */
-    private static final int HASH_OFFSET = IP_OFFSET+IP_SIZE;
-    
     public final String SourceAddress;
-    public final int ImageHash;
+    public final long ImageHash;
+    /** The TCP port the requesting host receives transfers on. */
+    public final int Port;
+    /** The {@link TransferServer.Transfer} ID to send the reply under. */
+    public final int TransferID;
+    /** 
+     * The index of the {@link ChunkMap} chunk wanted, or {@link 
+     * ImageRequestMessage#MAP} for the map itself. 
+     */
+    public final int Chunk;
+    /** The {@link ImageCache} level of the image wanted, 0 for full size. */
+    public final int Level;
+    /** The chunk index used to ask for the {@link ChunkMap} of an image. */
+    public static final int MAP = -1;
     
-    public ImageRequestMessage(int hash, String ip)
+    public ImageRequestMessage(long hash, int level, String ip, int port, 
+            int transfer, int chunk)
     {
         super(MessageType.IMAGE_REQUEST);
         this.SourceAddress = ip;
         this.ImageHash = hash;
+        this.Port = port;
+        this.TransferID = transfer;
+        this.Chunk = chunk;
+        this.Level = level;
     }
     
     public static int getLargestSize() 
     { 
-        return new ImageRequestMessage(0, "000.000.000.000").encode().length; 
+        return new ImageRequestMessage(0, 0, "255.255.255.255", 65535, 0, 0)
+                .encode().length; 
     }
 
     @Override
-    public byte[] encode() { return this.toString().getBytes(); }
+    protected void encodeBody(ByteBuffer buf)
+    {
+        if (!Conversions.putIP(buf, SourceAddress))
+            throw new IllegalStateException("Invalid IP " + SourceAddress);
+        buf.putLong(ImageHash);
+        buf.put((byte)Level);
+        buf.putShort((short)Port);
+        buf.putInt(TransferID);
+        buf.putInt(Chunk);
+    }
 
     public static ImageRequestMessage decode(byte[] buffer)
     {
-        String msgStr = new String(buffer).trim();
-        
-        String sourceStr = msgStr.substring(IP_OFFSET, HASH_OFFSET);
-        String hashStr = msgStr.substring(HASH_OFFSET);
-        
-        String ipStr = Conversions.stringToIP(sourceStr);
-        if (ipStr == null) return null;
+        return decode(ByteBuffer.wrap(buffer));
+    }
         
-        int hashNum;
+    public static ImageRequestMessage decode(ByteBuffer buf)
+    {
         try {
-            hashNum = Integer.parseInt(hashStr);
-        } catch (NumberFormatException nfe) {
+            skipHeader(buf);
+            String ipStr = Conversions.getIP(buf);
+            long hashNum = buf.getLong();
+            int level = buf.get() & 0xFF;
+            int port = buf.getShort() & 0xFFFF;
+            int transfer = buf.getInt();
+            int chunk = buf.getInt();
+            if (level > ImageCache.MAX_LEVEL) return null;
+            return new ImageRequestMessage(hashNum, level, ipStr, port, 
+                    transfer, chunk);
+        } catch (BufferUnderflowException ex) {
             return null;
         }
-        
-        return new ImageRequestMessage(hashNum, ipStr);
     }
     
     @Override
     public String toString()
     {
-        StringBuilder sb = new StringBuilder();
-        
-        sb.append(super.toString());
-        sb.append(Conversions.ipToString(SourceAddress));
-        sb.append(String.format("%010d", ImageHash));
-        
-        return sb.toString();
+        return String.format("%s image %016x level %d chunk %d for %s:%d", 
+                super.toString(), ImageHash, Level, Chunk, SourceAddress, 
+                Port);
     }
 }
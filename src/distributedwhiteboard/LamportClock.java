@@ -0,0 +1,55 @@
+package distributedwhiteboard;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Lamport logical clock shared by every drawing operation this instance of
+ * the program creates. Each new operation takes the next tick, and every
+ * operation received moves the clock past the tick it was stamped with. An
+ * operation's tick paired with its {@link MessageID} therefore gives every
+ * node the same total order of operations, whatever order they arrive in.
+ * 
+ * @author 6266215
+ * @version 1.0
+ * @since 2026-10-16
+ */
+public final class LamportClock
+{
+    /** The last tick seen or handed out by this node. */
+    private static final AtomicInteger TIME = new AtomicInteger();
+    
+    /**
+     * This class only provides static helpers.
+     */
+    private LamportClock() { }
+    
+    /**
+     * Advances the clock for a new local operation.
+     * 
+     * @return The tick to stamp the new operation with, as an int.
+     * @since 1.0
+     */
+    public static int tick() { return TIME.incrementAndGet(); }
+    
+    /**
+     * Moves the clock forward to at least the tick of a received operation,
+     * so anything created locally afterwards is ordered after it.
+     * 
+     * @param remote The tick the received operation was stamped with.
+     * @since 1.0
+     */
+    public static void observe(int remote)
+    {
+        int now = TIME.get();
+        while (remote > now && !TIME.compareAndSet(now, remote))
+            now = TIME.get();
+    }
+    
+    /**
+     * Gets the current tick without advancing the clock.
+     * 
+     * @return The current tick as an int.
+     * @since 1.0
+     */
+    public static int current() { return TIME.get(); }
+}
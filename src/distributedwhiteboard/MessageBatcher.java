@@ -0,0 +1,201 @@
+package distributedwhiteboard;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the {@link NetMessage}s broadcast within a short window into a single
+ * {@link MessageType#BATCH} datagram. A batch frame is laid out as;
+ * <ol>
+ * <li>1 byte containing the {@link MessageType#BATCH} character.</li>
+ * <li>Any number of entries, each a 2 byte length followed by that many bytes
+ * of an encoded {@link NetMessage}.</li>
+ * </ol>
+ * The entries are read back in the order they were added. A frame is sent
+ * when the window expires, or early if the next message would not fit inside
+ * {@link NetMessage#MAX_DATAGRAM_SIZE}. A frame holding a single message is
+ * sent as that message on its own.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class MessageBatcher
+{
+    /** The number of bytes before the first entry of a batch frame. */
+    public static final int HEADER_SIZE = 1;
+    /** The number of bytes used for the length of each entry. */
+    public static final int LENGTH_SIZE = 2;
+    
+    /** The {@link Client} to send completed frames through. */
+    private final Client client;
+    /** The frame currently being filled. */
+    private final ByteBuffer frame;
+    /** A buffer to encode each message into before it is added. */
+    private final ByteBuffer scratch;
+    /** Sends frames once their window has expired. */
+    private final ScheduledExecutorService timer;
+    /** The pending timed flush for the current frame, if any. */
+    private ScheduledFuture<?> pending;
+    /** The number of messages in the current frame. */
+    private int count;
+    /** How long to wait for more messages before sending, in milliseconds. */
+    private volatile int window;
+    /** The number of bytes left free at the end of each frame. */
+    private int reserve;
+    
+    /**
+     * Creates a new {@link MessageBatcher} that sends frames through the
+     * specified {@link Client}.
+     * 
+     * @param client The {@link Client} to send completed frames with.
+     * @param window The time in milliseconds to wait for more messages before
+     * sending a frame.
+     * @since 1.0
+     */
+    public MessageBatcher(Client client, int window)
+    {
+        this.client = client;
+        this.frame = ByteBuffer.allocate(NetMessage.MAX_DATAGRAM_SIZE);
+        this.scratch = ByteBuffer.allocate(NetMessage.MAX_DATAGRAM_SIZE);
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Batch sender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.count = 0;
+        this.window = Math.max(0, window);
+        this.reserve = 0;
+    }
+    
+    /**
+     * Sets how long messages are held while waiting for others to join them.
+     * A window of 0 sends every message immediately.
+     * 
+     * @param ms The window in milliseconds. Negative values are treated as 0.
+     * @since 1.0
+     */
+    public void setWindow(int ms) { window = Math.max(0, ms); }
+    
+    /**
+     * Gets how long messages are held while waiting for others to join them.
+     * 
+     * @return The window in milliseconds as an int.
+     * @since 1.0
+     */
+    public int getWindow() { return window; }
+    
+    /**
+     * Sets how many bytes of each frame are left unused, so the frame can be 
+     * carried inside a larger one such as a {@link ParityEncoder} frame. The 
+     * current frame is sent first.
+     * 
+     * @param bytes The number of bytes to leave free in each frame.
+     * @since 1.1
+     */
+    public synchronized void setReserve(int bytes)
+    {
+        flush();
+        reserve = Math.max(0, Math.min(frame.capacity()/2, bytes));
+        frame.limit(frame.capacity()-reserve);
+    }
+    
+    /**
+     * Adds a {@link NetMessage} to the current frame. If the message will not
+     * fit, the current frame is sent first and a new one started.
+     * 
+     * @param message The {@link NetMessage} to send.
+     * @since 1.0
+     */
+    public synchronized void add(NetMessage message)
+    {
+        scratch.clear();
+        message.encodeBroadcast(scratch);
+        scratch.flip();
+        
+        int needed = LENGTH_SIZE+scratch.remaining();
+        if (count > 0 && frame.remaining() < needed)
+            flush();
+        if (HEADER_SIZE+needed > frame.capacity()-reserve) {
+            // Too large to ever share a frame, send it on its own.
+            client.sendDrawFrame(scratch);
+            return;
+        }
+        
+        if (count == 0) {
+            frame.clear();
+            frame.limit(frame.capacity()-reserve);
+            frame.put((byte)MessageType.BATCH.type);
+        }
+        frame.putShort((short)scratch.remaining());
+        frame.put(scratch);
+        count++;
+        
+        if (window == 0) {
+            flush();
+        } else if (pending == null) {
+            pending = timer.schedule(new Runnable()
+            {
+                @Override
+                public void run() { flush(); }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Sends the current frame straight away, if it holds any messages.
+     * 
+     * @since 1.0
+     */
+    public synchronized void flush()
+    {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        if (count == 0) return;
+        
+        frame.flip();
+        if (count == 1) {
+            // No need for the batch header around a single message.
+            frame.position(HEADER_SIZE+LENGTH_SIZE);
+        }
+        client.sendDrawFrame(frame);
+        frame.clear();
+        frame.limit(frame.capacity()-reserve);
+        count = 0;
+    }
+    
+    /**
+     * Steps through the entries of a batch frame. Each call points the
+     * provided {@link MessageView} at the next message in the frame.
+     * 
+     * @param buf The {@link ByteBuffer} holding the frame.
+     * @param next The index of the next entry, starting at {@link
+     * MessageBatcher#HEADER_SIZE} past the start of the frame.
+     * @param end The index one past the last byte of the frame.
+     * @param view The {@link MessageView} to point at the next message.
+     * @return The index of the entry after this one, or -1 if there are no
+     * more complete entries in the frame.
+     * @since 1.0
+     */
+    public static int nextEntry(ByteBuffer buf, int next, int end,
+            MessageView view)
+    {
+        if (next+LENGTH_SIZE > end) return -1;
+        int length = buf.getShort(next) & 0xFFFF;
+        int start = next+LENGTH_SIZE;
+        if (length == 0 || start+length > end) return -1;
+        view.wrap(buf, start, length);
+        return start+length;
+    }
+}
@@ -0,0 +1,125 @@
+package distributedwhiteboard;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates and unpacks the unique IDs used by {@link NetMessage}s. An ID is a 
+ * pair of the node that created the message and a per-node sequence number, 
+ * packed into a single long; the node in the high 32 bits and the sequence in
+ * the low 32 bits. Sequence numbers start at 1, so an ID of zero is never 
+ * generated and is used to mean "no ID".
+ * 
+ * @author 6266215
+ * @version 1.0
+ * @since 2026-10-16
+ */
+public final class MessageID
+{
+    /** The value used when a message has no ID. */
+    public static final long NONE = 0L;
+    /** The randomly chosen node number for this instance of the program. */
+    private static final int LOCAL_NODE = chooseNode();
+    /** The last sequence number handed out by this node. */
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+    
+    /**
+     * This class only provides static helpers.
+     */
+    private MessageID() { }
+    
+    /**
+     * Picks a random, non-zero node number for this instance of the program.
+     * 
+     * @return The node number as an int.
+     * @since 1.0
+     */
+    private static int chooseNode()
+    {
+        Random rand = new Random();
+        int node = 0;
+        while (node == 0)
+            node = rand.nextInt();
+        return node;
+    }
+    
+    /**
+     * Gets the node number used by this instance of the program.
+     * 
+     * @return The local node number as an int.
+     * @since 1.0
+     */
+    public static int localNode() { return LOCAL_NODE; }
+    
+    /**
+     * Generates the next unique ID for a message created on this node.
+     * 
+     * @return A new unique ID as a long.
+     * @since 1.0
+     */
+    public static long next()
+    {
+        return pack(LOCAL_NODE, SEQUENCE.incrementAndGet());
+    }
+    
+    /**
+     * Packs a node number and sequence number into a single ID.
+     * 
+     * @param node The node number that created the message.
+     * @param sequence The sequence number of the message on that node.
+     * @return The packed ID as a long.
+     * @since 1.0
+     */
+    public static long pack(int node, int sequence)
+    {
+        return ((long)node << 32) | (sequence & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Gets the node number from a packed ID.
+     * 
+     * @param id The packed ID.
+     * @return The node number as an int.
+     * @since 1.0
+     */
+    public static int node(long id) { return (int)(id >>> 32); }
+    
+    /**
+     * Gets the sequence number from a packed ID.
+     * 
+     * @param id The packed ID.
+     * @return The sequence number as an int.
+     * @since 1.0
+     */
+    public static int sequence(long id) { return (int)id; }
+    
+    /**
+     * Gets the ID of the message sent immediately before the specified one by 
+     * the same node.
+     * 
+     * @param id The packed ID.
+     * @return The ID of the previous message from the same node, or {@link 
+     * MessageID#NONE} if the ID is the first from its node.
+     * @since 1.0
+     */
+    public static long previous(long id)
+    {
+        int seq = sequence(id);
+        if (id == NONE || seq <= 1) return NONE;
+        return pack(node(id), seq-1);
+    }
+    
+    /**
+     * Converts a packed ID into a readable {@link String} in the form
+     * <pre>node:sequence</pre>, with the node in hexadecimal.
+     * 
+     * @param id The packed ID.
+     * @return The ID as a String, or "none" for {@link MessageID#NONE}.
+     * @since 1.0
+     */
+    public static String toString(long id)
+    {
+        if (id == NONE) return "none";
+        return String.format("%08x:%d", node(id), sequence(id) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,301 @@
+package distributedwhiteboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores {@link NetMessage}s against their packed {@link MessageID}s. Keys are 
+ * held in a primitive long array using open addressing, so looking up a 
+ * message never boxes its ID. The store also tracks, for every node it has 
+ * seen messages from, the highest sequence number received and the highest 
+ * sequence number below which nothing is missing. This allows gaps in a 
+ * node's messages to be found without scanning the whole store. A node 
+ * joining the network can also be told that everything up to a sequence 
+ * number from each node is already held in the canvas it was sent, so those 
+ * messages are never asked for.
+ * <p>
+ * All methods are synchronised as the store is shared between the drawing, 
+ * listening and redrawing threads.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class MessageStore
+{
+    /** The starting number of slots in the table, must be a power of two. */
+    private static final int INITIAL_CAPACITY = 256;
+    /** The keys for each slot, {@link MessageID#NONE} marks an empty slot. */
+    private long[] keys;
+    /** The {@link NetMessage} held in each slot. */
+    private NetMessage[] values;
+    /** Every stored message in the order it was first added. */
+    private NetMessage[] order;
+    /** The number of messages stored. */
+    private int size;
+    /** 
+     * For each node; the sequence number up to which every message is held, 
+     * and the highest sequence number held.
+     */
+    private final HashMap<Integer, int[]> ranges;
+    
+    /**
+     * Creates a new, empty {@link MessageStore}.
+     * 
+     * @since 1.0
+     */
+    public MessageStore()
+    {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new NetMessage[INITIAL_CAPACITY];
+        this.order = new NetMessage[INITIAL_CAPACITY];
+        this.size = 0;
+        this.ranges = new HashMap<>();
+    }
+    
+    /**
+     * Spreads the bits of a packed ID to pick a starting slot in the table.
+     * 
+     * @param id The packed ID to hash.
+     * @param mask The table size minus one.
+     * @return The starting slot index as an int.
+     * @since 1.0
+     */
+    private static int slot(long id, int mask)
+    {
+        int h = (int)(id ^ (id >>> 32));
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+    
+    /**
+     * Finds the slot holding the specified ID, or the empty slot it would be 
+     * placed in.
+     * 
+     * @param id The packed ID to find.
+     * @return The index of the slot as an int.
+     * @since 1.0
+     */
+    private int find(long id)
+    {
+        int mask = keys.length-1;
+        int i = slot(id, mask);
+        while (keys[i] != MessageID.NONE && keys[i] != id)
+            i = (i+1) & mask;
+        return i;
+    }
+    
+    /**
+     * Gets the {@link NetMessage} stored against the specified ID.
+     * 
+     * @param id The packed ID of the message.
+     * @return The stored {@link NetMessage}, or null if none is held.
+     * @since 1.0
+     */
+    public synchronized NetMessage get(long id)
+    {
+        if (id == MessageID.NONE) return null;
+        return values[find(id)];
+    }
+    
+    /**
+     * Checks whether a message with the specified ID is stored.
+     * 
+     * @param id The packed ID of the message.
+     * @return Returns true if the message is held, false otherwise.
+     * @since 1.0
+     */
+    public synchronized boolean containsKey(long id)
+    {
+        if (id == MessageID.NONE) return false;
+        return keys[find(id)] == id;
+    }
+    
+    /**
+     * Stores a {@link NetMessage} against the specified ID. A message is only 
+     * stored once; if the ID is already held, or the message has no ID, this 
+     * does nothing.
+     * 
+     * @param id The packed ID of the message.
+     * @param msg The {@link NetMessage} to store.
+     * @since 1.0
+     */
+    public synchronized void put(long id, NetMessage msg)
+    {
+        if (id == MessageID.NONE || msg == null) return;
+        
+        int i = find(id);
+        if (keys[i] == id) return;
+        keys[i] = id;
+        values[i] = msg;
+        if (size == order.length)
+            order = Arrays.copyOf(order, size*2);
+        order[size++] = msg;
+        updateRange(id);
+        
+        if (size*2 > keys.length)
+            grow();
+    }
+    
+    /**
+     * Doubles the size of the table and re-inserts every stored key.
+     * 
+     * @since 1.0
+     */
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        NetMessage[] oldValues = values;
+        keys = new long[oldKeys.length*2];
+        values = new NetMessage[oldKeys.length*2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == MessageID.NONE) continue;
+            int j = find(oldKeys[i]);
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+    
+    /**
+     * Updates the contiguous and highest sequence numbers for the node that 
+     * created a newly stored message.
+     * 
+     * @param id The packed ID of the new message.
+     * @since 1.0
+     */
+    private void updateRange(long id)
+    {
+        int node = MessageID.node(id);
+        int seq = MessageID.sequence(id);
+        int[] range = ranges.get(node);
+        if (range == null) {
+            range = new int[2];
+            ranges.put(node, range);
+        }
+        if (seq > range[1])
+            range[1] = seq;
+        while (containsKey(MessageID.pack(node, range[0]+1)))
+            range[0]++;
+    }
+    
+    /**
+     * Gets the sequence number up to which every message from the specified 
+     * node is held.
+     * 
+     * @param node The node number to check.
+     * @return The highest contiguous sequence number, or 0 if nothing from 
+     * that node is held.
+     * @since 1.0
+     */
+    public synchronized int getContiguous(int node)
+    {
+        int[] range = ranges.get(node);
+        return (range == null) ? 0 : range[0];
+    }
+    
+    /**
+     * Gets the highest sequence number held from the specified node.
+     * 
+     * @param node The node number to check.
+     * @return The highest sequence number, or 0 if nothing from that node is 
+     * held.
+     * @since 1.1
+     */
+    public synchronized int getHighest(int node)
+    {
+        int[] range = ranges.get(node);
+        return (range == null) ? 0 : range[1];
+    }
+    
+    /**
+     * Gets the sequence number up to which every message is held, for every 
+     * node this store has seen messages from.
+     * 
+     * @return An array holding a node number followed by its contiguous 
+     * sequence number, for each node.
+     * @since 1.1
+     */
+    public synchronized int[] getFloors()
+    {
+        int[] floors = new int[ranges.size()*2];
+        int i = 0;
+        for (Map.Entry<Integer, int[]> e : ranges.entrySet()) {
+            floors[i++] = e.getKey();
+            floors[i++] = e.getValue()[0];
+        }
+        return floors;
+    }
+    
+    /**
+     * Treats every message from the specified node up to a sequence number as 
+     * held, without storing them. Used when a copy of the canvas already 
+     * includes those messages, so they are never reported as missing.
+     * 
+     * @param node The node number the messages came from.
+     * @param seq The sequence number up to which messages are covered.
+     * @since 1.1
+     */
+    public synchronized void setFloor(int node, int seq)
+    {
+        int[] range = ranges.get(node);
+        if (range == null) {
+            range = new int[2];
+            ranges.put(node, range);
+        }
+        if (seq <= range[0]) return;
+        range[0] = seq;
+        if (seq > range[1])
+            range[1] = seq;
+        while (containsKey(MessageID.pack(node, range[0]+1)))
+            range[0]++;
+    }
+    
+    /**
+     * Finds the IDs of messages from the specified node that are missing from 
+     * this store. Only gaps below the highest sequence number received from 
+     * the node can be detected.
+     * 
+     * @param node The node number to check.
+     * @param max The maximum number of missing IDs to return.
+     * @return An array of the missing IDs in sequence order. This will be 
+     * empty if nothing is known to be missing.
+     * @since 1.0
+     */
+    public synchronized long[] getMissing(int node, int max)
+    {
+        int[] range = ranges.get(node);
+        if (range == null) return new long[0];
+        
+        long[] missing = new long[Math.min(max, range[1]-range[0])];
+        int found = 0;
+        for (int seq = range[0]+1; seq < range[1] && found < missing.length; 
+                seq++) {
+            long id = MessageID.pack(node, seq);
+            if (!containsKey(id))
+                missing[found++] = id;
+        }
+        return Arrays.copyOf(missing, found);
+    }
+    
+    /**
+     * Gets the number of messages held in this store.
+     * 
+     * @return The number of messages as an int.
+     * @since 1.0
+     */
+    public synchronized int size() { return size; }
+    
+    /**
+     * Gets a copy of every stored message in the order they were first added.
+     * 
+     * @return A {@link List} of the stored {@link NetMessage}s.
+     * @since 1.0
+     */
+    public synchronized List<NetMessage> values()
+    {
+        return new ArrayList<>(Arrays.asList(order).subList(0, size));
+    }
+}
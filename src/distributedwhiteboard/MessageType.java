@@ -4,7 +4,7 @@ package distributedwhiteboard;
  * Message types to help the server understand what a {@link WhiteboardMessage} 
  * is trying to communicate.
  * 
- * @version 1.1
+ * @version 1.5
  * @since 2015-03-17
  */
 public enum MessageType
@@ -22,11 +22,24 @@ public enum MessageType
     /** Sent over multicast to request a missing packet. */
     MISSING_PACKET('m'),
     /** Requests an image from all hosts over multicast. */
-    IMAGE_REQUEST('i');
+    IMAGE_REQUEST('i'),
+    /** A frame of several messages packed together by {@link MessageBatcher}. */
+    BATCH('b'),
+    /** Asks the node that created some messages to send them again. */
+    NACK('n'),
+    /** The XOR of a group of draw datagrams, sent by {@link ParityEncoder}. */
+    PARITY('p');
         
     public final char type;
     private MessageType(char value) { this.type = value; }
         
+    /** Every {@link MessageType}, indexed by the unsigned value of its byte. */
+    private static final MessageType[] LOOKUP = new MessageType[256];
+    static {
+        for (MessageType t : MessageType.values())
+            LOOKUP[t.type] = t;
+    }
+    
     /**
      * Works out the {@link MessageType} of a provided character.
      * 
@@ -37,12 +50,24 @@ public enum MessageType
      */
     public static MessageType parseChar(char c)
     {
-        for (MessageType t : MessageType.values()) {
-            if (t.type == c)
-                return t;
-        }
-        System.out.printf("Unknown MessageType '%c'%n", c);
-        return null;
+        MessageType t = (c < LOOKUP.length) ? LOOKUP[c] : null;
+        if (t == null)
+            System.out.printf("Unknown MessageType '%c'%n", c);
+        return t;
+    }
+    
+    /**
+     * Works out the {@link MessageType} of a byte read straight from an 
+     * encoded message, without going through a character.
+     * 
+     * @param b The type byte to convert to a {@link MessageType}.
+     * @return Returns a {@link MessageType} if a matching one is found, null 
+     * otherwise.
+     * @since 1.3
+     */
+    public static MessageType parseByte(byte b)
+    {
+        return parseChar((char)(b & 0xFF));
     }
     
     @Override        
@@ -0,0 +1,166 @@
+package distributedwhiteboard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, read-only view over an encoded {@link NetMessage}. The header 
+ * fields of the message are read in place from the wrapped {@link ByteBuffer}, 
+ * so a received packet can be inspected, dropped or buffered without creating 
+ * any objects. A full {@link NetMessage} is only created when {@link 
+ * MessageView#materialise()} is called.
+ * <p>
+ * A {@link MessageView} is only valid until the buffer it wraps is reused, and 
+ * is not safe to share between threads.
+ * 
+ * @author 6266215
+ * @version 1.4
+ * @since 2026-10-16
+ */
+public class MessageView
+{
+    /** The {@link ByteBuffer} holding the encoded message. */
+    private ByteBuffer buffer;
+    /** The index of the first byte of the message in the buffer. */
+    private int offset;
+    /** The number of bytes the encoded message occupies. */
+    private int length;
+    
+    /**
+     * Points this {@link MessageView} at an encoded message.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param offset The index of the first byte of the message.
+     * @param length The number of bytes in the message.
+     * @return Returns this {@link MessageView} for chaining.
+     * @since 1.0
+     */
+    public MessageView wrap(ByteBuffer buf, int offset, int length)
+    {
+        this.buffer = buf;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+    
+    /**
+     * Gets the number of bytes the viewed message occupies.
+     * 
+     * @return The length of the encoded message as an int.
+     * @since 1.0
+     */
+    public int getLength() { return length; }
+    
+    /**
+     * Gets the index of the first byte of the viewed message in its buffer.
+     * 
+     * @return The offset of the message as an int.
+     * @since 1.1
+     */
+    public int getOffset() { return offset; }
+    
+    /**
+     * Gets the {@link ByteBuffer} the viewed message is held in.
+     * 
+     * @return The wrapped {@link ByteBuffer}.
+     * @since 1.1
+     */
+    public ByteBuffer getBuffer() { return buffer; }
+    
+    /**
+     * Reads the {@link MessageType} of the viewed message.
+     * 
+     * @return The {@link MessageType} of the message, or null if the message 
+     * is empty, the type is unknown, or the header is cut short.
+     * @since 1.0
+     */
+    public MessageType getType()
+    {
+        if (length <= NetMessage.TYPE_OFFSET) return null;
+        MessageType t = NetMessage.peekType(buffer, offset);
+        if (t == null || t == MessageType.BATCH || t == MessageType.PARITY)
+            return t; // Frames without the shared header.
+        if (NetMessage.peekHeaderEnd(buffer, offset, offset+length) == -1)
+            return null;
+        return t;
+    }
+    
+    /**
+     * Reads the {@link DrawMode} of the viewed message. This is only 
+     * meaningful for {@link MessageType#DRAW} messages.
+     * 
+     * @return The {@link DrawMode} of the message, or null if it cannot be 
+     * determined.
+     * @since 1.0
+     */
+    public DrawMode getDrawMode()
+    {
+        int body = NetMessage.peekBodyOffset(buffer, offset);
+        if (body >= offset+length) return null;
+        return DrawMode.parseByte(buffer.get(body));
+    }
+    
+    /**
+     * Reads the unique ID of the viewed message.
+     * 
+     * @return The unique ID as a packed {@link MessageID}, or {@link 
+     * MessageID#NONE} if the message has none.
+     * @since 1.0
+     */
+    public long getUniqueID()
+    {
+        return NetMessage.peekUniqueID(buffer, offset);
+    }
+    
+    /**
+     * Reads the unique ID of the message the viewed message relies on.
+     * 
+     * @return The required ID as a packed {@link MessageID}, or {@link 
+     * MessageID#NONE} if the message has none.
+     * @since 1.0
+     */
+    public long getRequiredID()
+    {
+        return NetMessage.peekRequiredID(buffer, offset);
+    }
+    
+    /**
+     * Decodes the viewed bytes into a new {@link NetMessage} of the correct 
+     * implementation for its {@link MessageType}.
+     * 
+     * @return Returns a new {@link NetMessage}, or null if the message could 
+     * not be decoded.
+     * @since 1.0
+     */
+    public NetMessage materialise()
+    {
+        MessageType t = getType();
+        if (t == null) return null;
+        
+        int oldPos = buffer.position();
+        int oldLimit = buffer.limit();
+        buffer.limit(offset+length);
+        buffer.position(offset);
+        try {
+            switch (t) {
+                case DRAW:
+                    return WhiteboardMessage.decode(buffer);
+                case DISCOVERY:
+                case RESPONSE:
+                case JOIN:
+                case LEAVE:
+                    return DiscoveryMessage.decode(buffer);
+                case MISSING_PACKET:
+                    return PacketRequestMessage.decode(buffer);
+                case IMAGE_REQUEST:
+                    return ImageRequestMessage.decode(buffer);
+                case NACK:
+                    return NackMessage.decode(buffer);
+                default:
+                    return null;
+            }
+        } finally {
+            buffer.limit(oldLimit);
+            buffer.position(oldPos);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package distributedwhiteboard;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Asks the node that created some {@link WhiteboardMessage}s to send them
+ * again. The missing messages are listed as runs of sequence numbers from a
+ * single node, so a burst of loss costs one small request rather than one
+ * request per message. The body of the message is laid out as;
+ * <ol>
+ * <li>The IP address and UDP port to send the repairs to.</li>
+ * <li>The 4 byte node number the missing messages came from.</li>
+ * <li>A varint count of runs, then each run as a varint of the first
+ * sequence number and a varint of the run length minus one.</li>
+ * </ol>
+ * 
+ * @author 6266215
+ * @version 1.0
+ * @since 2026-10-16
+ */
+public class NackMessage extends NetMessage
+{
+    /** The most runs of sequence numbers a single message may hold. */
+    public static final int MAX_RANGES = 64;
+    /** The most messages a single message may ask for. */
+    public static final int MAX_IDS = 1024;
+    
+    /** The IP address to send the repairs to. */
+    public final String SourceIP;
+    /** The UDP port to send the repairs to. */
+    public final int SourcePort;
+    /** The node number that created the missing messages. */
+    public final int Node;
+    /** The first sequence number and length of each missing run. */
+    private final int[] ranges;
+    
+    /**
+     * Creates a new {@link NackMessage} for a list of missing messages. The
+     * IDs should all be from the same node and in sequence order; IDs after
+     * the first {@link NackMessage#MAX_RANGES} runs or {@link 
+     * NackMessage#MAX_IDS} IDs are left out.
+     * 
+     * @param ip The IP address of this host as a String.
+     * @param port The UDP port of this host as an int.
+     * @param node The node number that created the missing messages.
+     * @param missing The packed {@link MessageID}s of the missing messages.
+     * @since 1.0
+     */
+    public NackMessage(String ip, int port, int node, long[] missing)
+    {
+        super(MessageType.NACK);
+        this.SourceIP = ip;
+        this.SourcePort = port;
+        this.Node = node;
+        
+        int[] runs = new int[MAX_RANGES*2];
+        int count = 0;
+        for (long id : Arrays.copyOf(missing, 
+                Math.min(missing.length, MAX_IDS))) {
+            int seq = MessageID.sequence(id);
+            if (count > 0 && runs[count*2-2]+runs[count*2-1] == seq) {
+                runs[count*2-1]++;
+            } else if (count < MAX_RANGES) {
+                runs[count*2] = seq;
+                runs[count*2+1] = 1;
+                count++;
+            } else {
+                break;
+            }
+        }
+        this.ranges = Arrays.copyOf(runs, count*2);
+    }
+    
+    /**
+     * Creates a new {@link NackMessage} from runs that have already been
+     * worked out, used when decoding.
+     * 
+     * @param ip The IP address to send the repairs to.
+     * @param port The UDP port to send the repairs to.
+     * @param node The node number that created the missing messages.
+     * @param ranges The first sequence number and length of each run.
+     * @since 1.0
+     */
+    private NackMessage(String ip, int port, int node, int[] ranges)
+    {
+        super(MessageType.NACK);
+        this.SourceIP = ip;
+        this.SourcePort = port;
+        this.Node = node;
+        this.ranges = ranges;
+    }
+    
+    /**
+     * Gets the IDs of every message this {@link NackMessage} asks for.
+     * 
+     * @return An array of packed {@link MessageID}s in sequence order.
+     * @since 1.0
+     */
+    public long[] getIDs()
+    {
+        int total = 0;
+        for (int i = 1; i < ranges.length; i += 2)
+            total += ranges[i];
+        long[] ids = new long[total];
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            for (int j = 0; j < ranges[i+1]; j++)
+                ids[next++] = MessageID.pack(Node, ranges[i]+j);
+        }
+        return ids;
+    }
+    
+    /**
+     * Writes the reply address and missing runs of this {@link NackMessage}
+     * after the shared {@link NetMessage} header.
+     * 
+     * @param buf The {@link ByteBuffer} to write the message body into.
+     * @throws IllegalStateException Thrown if the IP address of this message
+     * is not a valid IPv4 address.
+     * @since 1.0
+     */
+    @Override
+    protected void encodeBody(ByteBuffer buf)
+    {
+        if (!Conversions.putIP(buf, SourceIP))
+            throw new IllegalStateException("Invalid IP " + SourceIP);
+        buf.putShort((short)SourcePort);
+        buf.putInt(Node);
+        Conversions.putVarInt(buf, ranges.length/2);
+        for (int i = 0; i < ranges.length; i += 2) {
+            Conversions.putVarInt(buf, ranges[i]);
+            Conversions.putVarInt(buf, ranges[i+1]-1);
+        }
+    }
+    
+    /**
+     * Decodes the contents of a {@link ByteBuffer} into a new {@link
+     * NackMessage}, reading from the current position of the buffer.
+     * 
+     * @param buf The {@link ByteBuffer} to decode.
+     * @return Returns a new {@link NackMessage}, or null if the message is not
+     * properly formed.
+     * @since 1.0
+     */
+    public static NackMessage decode(ByteBuffer buf)
+    {
+        int start = buf.position();
+        NackMessage msg;
+        try {
+            skipHeader(buf);
+            String ip = Conversions.getIP(buf);
+            int port = buf.getShort() & 0xFFFF;
+            int node = buf.getInt();
+            int count = Conversions.getVarInt(buf);
+            if (count < 0 || count > MAX_RANGES)
+                throw new IllegalArgumentException("Too many ranges.");
+            int[] ranges = new int[count*2];
+            int total = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                ranges[i] = Conversions.getVarInt(buf);
+                ranges[i+1] = Conversions.getVarInt(buf)+1;
+                total += ranges[i+1];
+                if (ranges[i+1] <= 0 || total > MAX_IDS)
+                    throw new IllegalArgumentException("Too many IDs.");
+            }
+            msg = new NackMessage(ip, port, node, ranges);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            System.err.println("NackMessage was incorrectly formed.");
+            return null;
+        }
+        
+        msg.readHeader(buf, start);
+        return msg;
+    }
+    
+    /**
+     * Generates a readable {@link String} representation of this {@link
+     * NackMessage} and its contents.
+     * 
+     * @return The String representation of this message.
+     * @since 1.0
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%s %d runs from %08x for %s:%d",
+                super.toString(), ranges.length/2, Node, SourceIP,
+                SourcePort);
+    }
+}
@@ -1,35 +1,57 @@
 package distributedwhiteboard;
 
-import java.util.UUID;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Represents a message to be sent across a network. Messages will be encoded in
  * to a byte array, the contents of the array will be dependant on the sub-class
  * implementation.
+ * <p>
+ * Every message starts with the same binary header;
+ * <ol>
+ * <li>1 byte containing the {@link MessageType} character.</li>
+ * <li>1 byte of flags marking which unique IDs follow.</li>
+ * <li>The unique ID, if present; a 4 byte node number followed by a varint 
+ * sequence number.</li>
+ * <li>The required ID, if present, in the same form. The node number is left 
+ * out when it matches the node of the unique ID.</li>
+ * </ol>
+ * IDs are packed into longs as described by {@link MessageID}.
  * 
  * @author 6266215
- * @version 1.1
+ * @version 1.7
  * @since 2015-03-17
  */
 public abstract class NetMessage
 {
-    /** The number of bytes required to store a {@link UUID}. */
-    protected static final int UUID_SZ = UUID.randomUUID().toString().length();
-    /** The byte offset for the unique ID for this {@link NetMessage}. */
-    protected static final int ID_OFFSET = 0;
-    /** The byte offset for the unique ID this {@link NetMessage} relies on. */
-    protected static final int RELY_OFFSET = ID_OFFSET+UUID_SZ;
+    /**
+     * The largest datagram any {@link NetMessage} may occupy. This keeps every
+     * packet inside a typical Ethernet MTU once IP and UDP headers are added.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+    /** The number of bytes required to store the node of a {@link MessageID}. */
+    protected static final int NODE_SZ = 4;
     /** The byte offset for the {@link MessageType} of this message. */
-    public static final int TYPE_OFFSET = RELY_OFFSET+UUID_SZ;
+    public static final int TYPE_OFFSET = 0;
+    /** The byte offset for the header flags of this message. */
+    protected static final int FLAGS_OFFSET = TYPE_OFFSET+1;
+    /** The byte offset for the unique ID for this {@link NetMessage}. */
+    protected static final int ID_OFFSET = FLAGS_OFFSET+1;
+    /** Header flag set when a unique ID is present. */
+    private static final int HAS_ID = 0x01;
+    /** Header flag set when a required ID is present. */
+    private static final int HAS_REQUIRED = 0x02;
+    /** Header flag set when the required ID shares the unique ID's node. */
+    private static final int REQUIRED_LOCAL = 0x04;
     
     /** The {@link MessageType} of this {@link NetMessage}. */
     public final MessageType type;
-    /** The last unique ID used as an {@link String}. */
-    private static String lastID;
-    /** The unique ID for this packet as a {@link String}. */
-    private String uniqueID;
-    /** Any unique ID this packet relies on as a {@link String}. */
-    private String requiredID;
+    /** The unique ID for this packet as a packed {@link MessageID}. */
+    private long uniqueID;
+    /** Any unique ID this packet relies on as a packed {@link MessageID}. */
+    private long requiredID;
     
     /**
      * Creates a new {@link NetMessage} with the specified type.
@@ -43,80 +65,332 @@ public abstract class NetMessage
     }
     
     /**
-     * Encodes this {@link NetMessage} into a byte array. Implementations of 
-     * this abstract class need to implement this as needed for their contents.
+     * Encodes this {@link NetMessage} into a new byte array sized to fit the
+     * encoded message exactly.
      * 
      * @return Returns a byte array containing an encoded copy of this {@link 
      * NetMessage} implementation.
      * @since 1.0
      */
-    public abstract byte[] encode();
+    public byte[] encode()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        encode(buf);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    /**
+     * Encodes this {@link NetMessage} into the provided {@link ByteBuffer},
+     * starting at its current position. The buffer position is left after the
+     * last byte written.
+     * 
+     * @param buf The {@link ByteBuffer} to write this message into.
+     * @throws BufferOverflowException Thrown if the buffer does not have enough
+     *  space remaining for this message.
+     * @since 1.2
+     */
+    public void encode(ByteBuffer buf) throws BufferOverflowException
+    {
+        encode(buf, false);
+    }
+    
+    /**
+     * Encodes this {@link NetMessage} for a broadcast to every known peer. 
+     * Peers that receive every broadcast from this node already hold some 
+     * shared state, such as the {@link StyleTable}, so the message may be 
+     * shortened by referring to it. Messages that must make sense on their 
+     * own, such as repairs, should use {@link 
+     * NetMessage#encode(java.nio.ByteBuffer)} instead.
+     * 
+     * @param buf The {@link ByteBuffer} to write this message into.
+     * @throws BufferOverflowException Thrown if the buffer does not have enough
+     *  space remaining for this message.
+     * @since 1.5
+     */
+    public void encodeBroadcast(ByteBuffer buf) throws BufferOverflowException
+    {
+        encode(buf, true);
+    }
+    
+    /**
+     * Writes the shared header followed by the body of this {@link 
+     * NetMessage}.
+     * 
+     * @param buf The {@link ByteBuffer} to write this message into.
+     * @param broadcast Set to true if the message is part of a broadcast.
+     * @since 1.5
+     */
+    private void encode(ByteBuffer buf, boolean broadcast)
+    {
+        int flags = 0;
+        if (uniqueID != MessageID.NONE) flags |= HAS_ID;
+        if (requiredID != MessageID.NONE) {
+            flags |= HAS_REQUIRED;
+            if (uniqueID != MessageID.NONE 
+                    && MessageID.node(uniqueID) == MessageID.node(requiredID))
+                flags |= REQUIRED_LOCAL;
+        }
+        
+        buf.put((byte)type.type);
+        buf.put((byte)flags);
+        if ((flags & HAS_ID) != 0) {
+            buf.putInt(MessageID.node(uniqueID));
+            Conversions.putVarInt(buf, MessageID.sequence(uniqueID));
+        }
+        if ((flags & HAS_REQUIRED) != 0) {
+            if ((flags & REQUIRED_LOCAL) == 0)
+                buf.putInt(MessageID.node(requiredID));
+            Conversions.putVarInt(buf, MessageID.sequence(requiredID));
+        }
+        encodeBody(buf, broadcast);
+    }
+    
+    /**
+     * Writes the contents specific to this type of {@link NetMessage} after the
+     *  shared header. Implementations of this abstract class need to implement
+     * this as needed for their contents.
+     * 
+     * @param buf The {@link ByteBuffer} to write the message body into.
+     * @since 1.2
+     */
+    protected abstract void encodeBody(ByteBuffer buf);
+    
+    /**
+     * Writes the contents specific to this type of {@link NetMessage}, 
+     * allowing a shortened form when the message is part of a broadcast. By 
+     * default this writes the same body as {@link 
+     * NetMessage#encodeBody(java.nio.ByteBuffer)}.
+     * 
+     * @param buf The {@link ByteBuffer} to write the message body into.
+     * @param broadcast Set to true if the message is part of a broadcast.
+     * @since 1.5
+     */
+    protected void encodeBody(ByteBuffer buf, boolean broadcast)
+    {
+        encodeBody(buf);
+    }
+    
+    /**
+     * Moves the position of a {@link ByteBuffer} past the shared header of an
+     * encoded {@link NetMessage}, leaving it at the start of the message body.
+     * 
+     * @param buf The {@link ByteBuffer} positioned at the start of a message.
+     * @since 1.2
+     */
+    protected static void skipHeader(ByteBuffer buf)
+    {
+        buf.position(peekBodyOffset(buf, buf.position()));
+    }
+    
+    /**
+     * Reads the unique and required IDs from an encoded header into this
+     * {@link NetMessage}. This uses absolute reads so the buffer position is
+     * not changed.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param start The index of the first byte of the encoded message.
+     * @since 1.2
+     */
+    protected void readHeader(ByteBuffer buf, int start)
+    {
+        uniqueID = peekUniqueID(buf, start);
+        requiredID = peekRequiredID(buf, start);
+    }
+    
+    /**
+     * Reads the {@link MessageType} of an encoded {@link NetMessage} without 
+     * moving the buffer position or decoding the rest of the message.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param start The index of the first byte of the encoded message.
+     * @return The {@link MessageType} of the message, or null if it is 
+     * unknown.
+     * @since 1.6
+     */
+    static MessageType peekType(ByteBuffer buf, int start)
+    {
+        return MessageType.parseByte(buf.get(start+TYPE_OFFSET));
+    }
+    
+    /**
+     * Works out the index of the first body byte of an encoded {@link 
+     * NetMessage} without moving the buffer position.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param start The index of the first byte of the encoded message.
+     * @return The absolute index of the message body as an int.
+     * @since 1.3
+     */
+    static int peekBodyOffset(ByteBuffer buf, int start)
+    {
+        int flags = buf.get(start+FLAGS_OFFSET);
+        int offset = start+ID_OFFSET;
+        if ((flags & HAS_ID) != 0) {
+            offset += NODE_SZ;
+            offset += Conversions.varIntSize(buf, offset);
+        }
+        if ((flags & HAS_REQUIRED) != 0) {
+            if ((flags & REQUIRED_LOCAL) == 0) offset += NODE_SZ;
+            offset += Conversions.varIntSize(buf, offset);
+        }
+        return offset;
+    }
+    
+    /**
+     * Works out the index of the first body byte of an encoded {@link 
+     * NetMessage}, checking that the whole header lies before the specified 
+     * end. Unlike {@link NetMessage#peekBodyOffset(ByteBuffer, int)} this 
+     * never reads past the end, so it is safe on truncated datagrams.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param start The index of the first byte of the encoded message.
+     * @param end The index just past the last byte of the encoded message.
+     * @return The absolute index of the message body as an int, or -1 if the 
+     * header is cut short or malformed.
+     * @since 1.7
+     */
+    static int peekHeaderEnd(ByteBuffer buf, int start, int end)
+    {
+        if (end-start < ID_OFFSET) return -1;
+        int flags = buf.get(start+FLAGS_OFFSET);
+        int offset = start+ID_OFFSET;
+        if ((flags & HAS_ID) != 0) {
+            offset = skipVarInt(buf, offset+NODE_SZ, end);
+            if (offset == -1) return -1;
+        }
+        if ((flags & HAS_REQUIRED) != 0) {
+            if ((flags & REQUIRED_LOCAL) == 0) offset += NODE_SZ;
+            offset = skipVarInt(buf, offset, end);
+        }
+        return offset;
+    }
+    
+    /**
+     * Finds the index just past a varint, without reading past the specified 
+     * end.
+     * 
+     * @param buf The {@link ByteBuffer} holding the varint.
+     * @param index The index of the first byte of the varint.
+     * @param end The index just past the last byte that may be read.
+     * @return The index after the varint, or -1 if it runs past the end or is 
+     * longer than {@link Conversions#MAX_VARINT_SIZE} bytes.
+     * @since 1.7
+     */
+    private static int skipVarInt(ByteBuffer buf, int index, int end)
+    {
+        for (int i = 0; i < Conversions.MAX_VARINT_SIZE; i++) {
+            if (index >= end) return -1;
+            if ((buf.get(index++) & 0x80) == 0) return index;
+        }
+        return -1;
+    }
+    
+    /**
+     * Reads the unique ID of an encoded {@link NetMessage} without moving the 
+     * buffer position.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param start The index of the first byte of the encoded message.
+     * @return The unique ID as a packed {@link MessageID}, or {@link 
+     * MessageID#NONE} if the message has none.
+     * @since 1.3
+     */
+    static long peekUniqueID(ByteBuffer buf, int start)
+    {
+        int flags = buf.get(start+FLAGS_OFFSET);
+        if ((flags & HAS_ID) == 0) return MessageID.NONE;
+        int offset = start+ID_OFFSET;
+        int node = buf.getInt(offset);
+        return MessageID.pack(node, 
+                Conversions.getVarInt(buf, offset+NODE_SZ));
+    }
+    
+    /**
+     * Reads the required ID of an encoded {@link NetMessage} without moving 
+     * the buffer position.
+     * 
+     * @param buf The {@link ByteBuffer} holding the encoded message.
+     * @param start The index of the first byte of the encoded message.
+     * @return The required ID as a packed {@link MessageID}, or {@link 
+     * MessageID#NONE} if the message has none.
+     * @since 1.3
+     */
+    static long peekRequiredID(ByteBuffer buf, int start)
+    {
+        int flags = buf.get(start+FLAGS_OFFSET);
+        if ((flags & HAS_REQUIRED) == 0) return MessageID.NONE;
+        int offset = start+ID_OFFSET;
+        int node = 0;
+        if ((flags & HAS_ID) != 0) {
+            node = buf.getInt(offset);
+            offset += NODE_SZ;
+            offset += Conversions.varIntSize(buf, offset);
+        }
+        if ((flags & REQUIRED_LOCAL) == 0) {
+            node = buf.getInt(offset);
+            offset += NODE_SZ;
+        }
+        return MessageID.pack(node, Conversions.getVarInt(buf, offset));
+    }
     
     /**
      * Generates and adds a unique ID to this {@link NetMessage}. If no previous
      *  unique ID exists, then this message will not have a required ID added, 
-     * otherwise a required ID is also added.
+     * otherwise a required ID is also added. The required ID is always the 
+     * previous message from this node, so ordering is only kept per node and 
+     * a message lost by one node never holds back messages from the others.
      * 
      * @since 1.1
      */
     public void addUniqueID()
     {
-        // Generate and set a new unique ID for this packet.
-        synchronized (NetMessage.class) {
-            if (lastID != null)
-                this.requiredID = lastID;
-            this.uniqueID = UUID.randomUUID().toString();
-            NetMessage.lastID = uniqueID;
-        }
+        // Generate and set a new unique ID for this packet, the previous 
+        // message from this node is the one it relies on.
+        this.uniqueID = MessageID.next();
+        this.requiredID = MessageID.previous(uniqueID);
     }
     
     /**
-     * Gets the unique ID for this {@link NetMessage}. This is a {@link String} 
-     * representation of a Java {@link UUID}.
+     * Gets the unique ID for this {@link NetMessage}. This is a node number 
+     * and sequence number packed together as described by {@link MessageID}.
      * 
-     * @return The unique ID for this message as a String.
+     * @return The unique ID for this message as a long, or {@link 
+     * MessageID#NONE} if no ID has been added.
      * @since 1.1
      */
-    public String getUniqueID() { return uniqueID; }
+    public long getUniqueID() { return uniqueID; }
     
     /**
-     * Sets the unique ID for this {@link NetMessage} to the provided value. The
-     *  {@link String} provided must be in the Java {@link UUID} format as 
-     * specified in the documentation for {@link UUID#toString()}.
+     * Sets the unique ID for this {@link NetMessage} to the provided value.
      * 
-     * @param id The String to use as the unique ID for this message.
+     * @param id The packed {@link MessageID} to use as the unique ID for this 
+     * message.
      * @since 1.1
      */
-    public void setUniqueID(String id) 
+    public void setUniqueID(long id) 
     { 
         uniqueID = id;
     }
     
     /**
      * Gets the unique ID of a message that this {@link NetMessage} relies on 
-     * to be ordered correctly. This is a {@link String} representation of a 
-     * Java {@link UUID}.
+     * to be ordered correctly.
      * 
-     * @return The unique ID of a required message as a String. If no required 
-     * ID exists, this will return null;
+     * @return The unique ID of a required message as a long. If no required 
+     * ID exists, this will return {@link MessageID#NONE}.
      * @since 1.1
      */
-    public String getRequiredID() { return requiredID; }
+    public long getRequiredID() { return requiredID; }
     
     /**
      * Sets the unique ID for a required message for this {@link NetMessage}. 
-     * The {@link String} provided must be in the Java {@link UUID} format as 
-     * specified in the documentation for {@link UUID#toString()}. If an null 
-     * or empty String is provided, the required ID will be null.
+     * Passing {@link MessageID#NONE} clears the required ID.
      * 
      * @param id The unique ID that this {@link NetMessage} relies on.
      */
-    public void setRequiredID(String id)
+    public void setRequiredID(long id)
     { 
-        if (id == null || id.isEmpty() || id.startsWith("-"))
-            requiredID = null;
-        else
-            requiredID = id;
+        requiredID = id;
     }
     
     /**
@@ -129,8 +403,7 @@ public abstract class NetMessage
      */
     public static MessageType getMessageType(byte[] buffer)
     {
-        String messageStr = new String(buffer);
-        return MessageType.parseChar(messageStr.charAt(TYPE_OFFSET));
+        return MessageType.parseByte(buffer[TYPE_OFFSET]);
     }
 
     /**
@@ -148,12 +421,12 @@ public abstract class NetMessage
         if (obj == null) return false;
         if (!(obj instanceof NetMessage)) return false;
         NetMessage other = (NetMessage)obj;
-        return this.uniqueID.equals(other.uniqueID);
+        return this.uniqueID == other.uniqueID;
     }
 
     /**
-     * Gets the hash code of the unique ID for this message as generated by 
-     * {@link String#hashCode()}.
+     * Gets the hash code of the unique ID for this message, folding the 
+     * packed long into an int.
      * 
      * @return Returns the hash code of the unique ID as a int.
      * @since 1.1
@@ -161,12 +434,12 @@ public abstract class NetMessage
     @Override
     public int hashCode()
     {
-        return this.uniqueID.hashCode();
+        return (int)(uniqueID ^ (uniqueID >>> 32));
     }
     
     /**
      * Converts the unique ID, required ID and {@link MessageType} of this 
-     * {@link NetMessage} to a {@link String} representation.
+     * {@link NetMessage} to a readable {@link String} representation.
      * 
      * @return The unique ID, required ID and type of this message as a String.
      * @since 1.1
@@ -174,22 +447,7 @@ public abstract class NetMessage
     @Override
     public String toString() 
     {
-        StringBuilder sb = new StringBuilder();
-        
-        if (uniqueID == null) {
-            for (int i = 0; i < UUID_SZ; i++)
-                sb.append("-");
-        } else {
-            sb.append(uniqueID);
-        }
-        if (requiredID == null) {
-            for (int i = 0; i < UUID_SZ; i++)
-                sb.append("-");
-        } else {
-            sb.append(requiredID);
-        }
-        sb.append(type.type);
-        
-        return sb.toString();
+        return String.format("%s [%s <- %s]", type, 
+                MessageID.toString(uniqueID), MessageID.toString(requiredID));
     }
 }
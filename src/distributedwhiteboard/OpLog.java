@@ -0,0 +1,175 @@
+package distributedwhiteboard;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every {@link WhiteboardMessage} drawn on the canvas in a single total
+ * order, so all nodes composite the same operations in the same z-order no
+ * matter what order they arrived in. Operations are ordered by their {@link
+ * LamportClock} tick, then by node number and sequence number.
+ * <p>
+ * Each operation is stored with the area of the canvas it covers. When an
+ * operation arrives late, only the operations overlapping its area need to be
+ * drawn again to put it at the right depth.
+ * <p>
+ * A host that joined by copying another host's canvas holds that copy as the
+ * base image of its canvas, along with the {@link LamportClock} tick it was
+ * copied at. Operations at or before that tick are drawn under the base
+ * image, as the copy already shows whatever of them the other host had.
+ * <p>
+ * All methods are synchronised as the log is shared between the drawing,
+ * listening and redrawing threads.
+ * 
+ * @author 6266215
+ * @version 1.2
+ * @since 2026-10-16
+ */
+public class OpLog
+{
+    /** The operations held, in drawing order. */
+    private final ArrayList<WhiteboardMessage> ops;
+    /** The area of the canvas covered by each operation, in the same order. */
+    private final ArrayList<Rectangle> bounds;
+    /** The tick the base image of the canvas was copied at, or 0 if none. */
+    private int baseClock;
+    
+    /**
+     * Creates a new, empty {@link OpLog}.
+     * 
+     * @since 1.0
+     */
+    public OpLog()
+    {
+        this.ops = new ArrayList<>();
+        this.bounds = new ArrayList<>();
+    }
+    
+    /**
+     * Compares two operations by their place in the drawing order.
+     * 
+     * @param a The first {@link WhiteboardMessage}.
+     * @param b The second {@link WhiteboardMessage}.
+     * @return A negative number if a is drawn first, a positive number if b is
+     *  drawn first, or 0 if they are the same operation.
+     * @since 1.0
+     */
+    public static int compare(WhiteboardMessage a, WhiteboardMessage b)
+    {
+        if (a.getClock() != b.getClock())
+            return (a.getClock() < b.getClock()) ? -1 : 1;
+        long idA = a.getUniqueID() ^ Long.MIN_VALUE;
+        long idB = b.getUniqueID() ^ Long.MIN_VALUE;
+        return (idA < idB) ? -1 : ((idA == idB) ? 0 : 1);
+    }
+    
+    /**
+     * Adds an operation to the log at its place in the drawing order.
+     * Operations usually arrive in order, so the search starts from the end.
+     * 
+     * @param op The {@link WhiteboardMessage} to add.
+     * @param area The area of the canvas the operation covers.
+     * @return Returns true if the operation is now the top-most one and can
+     * simply be drawn over the canvas. Returns false if it belongs below
+     * operations already drawn, or if it is already in the log.
+     * @since 1.0
+     */
+    public synchronized boolean insert(WhiteboardMessage op, Rectangle area)
+    {
+        int i = ops.size();
+        int cmp = 1;
+        while (i > 0 && (cmp = compare(ops.get(i-1), op)) > 0)
+            i--;
+        if (i > 0 && cmp == 0) return false; // Already held.
+        
+        ops.add(i, op);
+        bounds.add(i, area);
+        return i == ops.size()-1;
+    }
+    
+    /**
+     * Changes the area of the canvas an operation already in the log covers, 
+     * such as when an image arrives and replaces its placeholder.
+     * 
+     * @param op The {@link WhiteboardMessage} to update.
+     * @param area The new area of the canvas the operation covers.
+     * @return The area the operation covered before, or null if it is not in 
+     * the log.
+     * @since 1.1
+     */
+    public synchronized Rectangle setArea(WhiteboardMessage op, Rectangle area)
+    {
+        for (int i = ops.size()-1; i >= 0; i--) {
+            if (ops.get(i) == op)
+                return bounds.set(i, area);
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the operations that overlap an area of the canvas, in drawing
+     * order.
+     * 
+     * @param area The area of the canvas to check.
+     * @return A {@link List} of the overlapping {@link WhiteboardMessage}s.
+     * @since 1.0
+     */
+    public synchronized List<WhiteboardMessage> getOverlapping(Rectangle area)
+    {
+        ArrayList<WhiteboardMessage> found = new ArrayList<>();
+        for (int i = 0; i < ops.size(); i++) {
+            if (bounds.get(i).intersects(area))
+                found.add(ops.get(i));
+        }
+        return found;
+    }
+    
+    /**
+     * Sets the {@link LamportClock} tick the base image of the canvas was 
+     * copied at.
+     * 
+     * @param clock The tick, or 0 if the canvas has no base image.
+     * @since 1.2
+     */
+    public synchronized void setBaseClock(int clock)
+    {
+        this.baseClock = clock;
+    }
+    
+    /**
+     * Checks whether an operation belongs under the base image of the 
+     * canvas, as it happened before the base image was copied.
+     * 
+     * @param op The {@link WhiteboardMessage} to check.
+     * @return Returns true if the operation is drawn under the base image, 
+     * false if it is drawn over it.
+     * @since 1.2
+     */
+    public synchronized boolean isUnderBase(WhiteboardMessage op)
+    {
+        return op.getClock() <= baseClock;
+    }
+    
+    /**
+     * Gets a copy of every operation in the log, in drawing order.
+     * 
+     * @return A {@link List} of all the {@link WhiteboardMessage}s.
+     * @since 1.0
+     */
+    public synchronized List<WhiteboardMessage> values()
+    {
+        return new ArrayList<>(ops);
+    }
+    
+    /**
+     * Gets the number of operations in the log.
+     * 
+     * @return The number of operations as an int.
+     * @since 1.0
+     */
+    public synchronized int size()
+    {
+        return ops.size();
+    }
+}
@@ -1,6 +1,7 @@
 package distributedwhiteboard;
 
-import static distributedwhiteboard.NetMessage.TYPE_OFFSET;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -8,63 +9,53 @@ import static distributedwhiteboard.NetMessage.TYPE_OFFSET;
  */
 public class PacketRequestMessage extends NetMessage
 {
-    /** The number of characters in an encoded SourceIP address. */
-    private static final int IP_SIZE = 12;
-    /** The number of characters in an encoded port. */
-    private static final int PORT_SIZE = 5;
-    
-    /** The character offset for the start of the SourceIP address. */
-    private static final int IP_OFFSET = TYPE_OFFSET+1;
-    /** The character offset in the message for the start of the port number. */
-    private static final int PORT_OFFSET = IP_OFFSET+IP_SIZE;
-    
     /** The SourceIP address for the source of this {@link PacketRequestMessage}. */
     public final String SourceIP;
     /** The UDP port address for the source of this message. */
     public final int SourcePort;
     
-    public PacketRequestMessage(String ip, int port, String uuid)
+    public PacketRequestMessage(String ip, int port, long id)
     {
         super(MessageType.MISSING_PACKET);
         this.SourceIP = ip;
         this.SourcePort = port;
-        this.setRequiredID(uuid);
+        this.setRequiredID(id);
     }
 
     @Override
-    public byte[] encode()
+    protected void encodeBody(ByteBuffer buf)
     {
-        return this.toString().getBytes();
+        if (!Conversions.putIP(buf, SourceIP))
+            throw new IllegalStateException("Invalid IP " + SourceIP);
+        buf.putShort((short)SourcePort);
     }
     
     public static PacketRequestMessage decode(byte[] msg)
     {
-        String messageStr = new String(msg).trim();
-        String ipStr = messageStr.substring(IP_OFFSET, PORT_OFFSET);
-        String ipAddress = Conversions.stringToIP(ipStr);
+        return decode(ByteBuffer.wrap(msg));
+    }
         
-        String portStr = messageStr.substring(PORT_OFFSET);
-        int portNum;
+    public static PacketRequestMessage decode(ByteBuffer buf)
+    {
+        int start = buf.position();
+        PacketRequestMessage msg;
         try {
-            portNum = Integer.parseInt(portStr);
-        } catch (NumberFormatException nfe) {
+            skipHeader(buf);
+            String ipAddress = Conversions.getIP(buf);
+            int portNum = buf.getShort() & 0xFFFF;
+            msg = new PacketRequestMessage(ipAddress, portNum, MessageID.NONE);
+        } catch (BufferUnderflowException ex) {
             return null;
         }
         
-        String uuidStr = messageStr.substring(RELY_OFFSET, TYPE_OFFSET);
-        
-        return new PacketRequestMessage(ipAddress, portNum, uuidStr);
+        msg.readHeader(buf, start);
+        return msg;
     }
 
     @Override
     public String toString()
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append(super.toString());
-        
-        sb.append(Conversions.ipToString(SourceIP));
-        sb.append(String.valueOf(SourcePort));
-        
-        return sb.toString();
+        return String.format("%s from %s:%d", super.toString(), 
+                SourceIP, SourcePort);
     }
 }
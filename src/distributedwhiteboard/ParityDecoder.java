@@ -0,0 +1,135 @@
+package distributedwhiteboard;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds lost draw datagrams from the {@link MessageType#PARITY} frames
+ * sent by a {@link ParityEncoder}. The most recent draw datagrams received
+ * are kept by their CRC-32 checksum. When a parity frame arrives and exactly
+ * one of the datagrams it covers is missing, the missing datagram is the XOR
+ * of the parity and every datagram that did arrive.
+ * <p>
+ * Datagrams are only kept once a parity frame has been seen, so there is no
+ * cost while no peer is sending parity.
+ * 
+ * @author 6266215
+ * @version 1.0
+ * @since 2026-10-16
+ */
+public class ParityDecoder
+{
+    /** How many recent draw datagrams are kept to rebuild from. */
+    public static final int RECENT = 256;
+    
+    /** The most recent draw datagrams received, by checksum. */
+    private final LinkedHashMap<Integer, byte[]> recent;
+    /** Set once a parity frame has been seen from any peer. */
+    private volatile boolean active;
+    
+    /**
+     * Creates a new, empty {@link ParityDecoder}.
+     * 
+     * @since 1.0
+     */
+    public ParityDecoder()
+    {
+        this.recent = new LinkedHashMap<Integer, byte[]>()
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> e)
+            {
+                return size() > RECENT;
+            }
+        };
+        this.active = false;
+    }
+    
+    /**
+     * Keeps a copy of a received draw datagram in case a later parity frame
+     * needs it.
+     * 
+     * @param view The {@link MessageView} over the whole datagram.
+     * @since 1.0
+     */
+    public void record(MessageView view)
+    {
+        if (!active) return;
+        
+        ByteBuffer buf = view.getBuffer();
+        int crc = ParityEncoder.crc(buf, view.getOffset(), view.getLength());
+        byte[] copy = new byte[view.getLength()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = buf.get(view.getOffset()+i);
+        synchronized (this) {
+            recent.put(crc, copy);
+        }
+    }
+    
+    /**
+     * Rebuilds the datagram a parity frame covers that has not been received,
+     * if it is the only one missing.
+     * 
+     * @param view The {@link MessageView} over the parity frame.
+     * @return The bytes of the rebuilt datagram, or null if nothing was
+     * missing, more than one datagram was missing, or the frame is not
+     * properly formed.
+     * @since 1.0
+     */
+    public byte[] recover(MessageView view)
+    {
+        active = true;
+        
+        ByteBuffer buf = view.getBuffer().duplicate();
+        buf.limit(view.getOffset()+view.getLength());
+        buf.position(view.getOffset()+1);
+        try {
+            int count = buf.get() & 0xFF;
+            if (count == 0 || count > ParityEncoder.MAX_GROUP)
+                throw new IllegalArgumentException("Bad group size.");
+            int[] lengths = new int[count];
+            int[] crcs = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = buf.getShort() & 0xFFFF;
+                crcs[i] = buf.getInt();
+            }
+            byte[] rebuilt = new byte[buf.remaining()];
+            buf.get(rebuilt);
+            
+            int missing = -1;
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    byte[] held = recent.get(crcs[i]);
+                    if (held == null) {
+                        if (missing != -1) return null; // Too many lost.
+                        missing = i;
+                    } else {
+                        int n = Math.min(held.length, rebuilt.length);
+                        for (int j = 0; j < n; j++)
+                            rebuilt[j] ^= held[j];
+                    }
+                }
+            }
+            if (missing == -1 || lengths[missing] > rebuilt.length)
+                return null;
+            
+            ByteBuffer result = ByteBuffer.wrap(rebuilt, 0, lengths[missing]);
+            if (ParityEncoder.crc(result, 0, lengths[missing])
+                    != crcs[missing]) {
+                System.err.println("Rebuilt datagram failed its checksum.");
+                return null;
+            }
+            byte[] lost = new byte[lengths[missing]];
+            System.arraycopy(rebuilt, 0, lost, 0, lost.length);
+            synchronized (this) {
+                recent.put(crcs[missing], lost);
+            }
+            return lost;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            System.err.println("Parity frame was incorrectly formed.");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package distributedwhiteboard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Adds forward error correction to the draw datagrams broadcast by the {@link
+ * Client}. Outgoing draw datagrams are gathered into groups, and after each
+ * group a {@link MessageType#PARITY} frame is sent holding the XOR of every
+ * datagram in the group. A host that lost any one datagram of a group can
+ * rebuild it from the parity frame and the others, without asking anyone for
+ * a repair. A parity frame is laid out as;
+ * <ol>
+ * <li>1 byte containing the {@link MessageType#PARITY} character.</li>
+ * <li>1 byte containing the number of datagrams in the group.</li>
+ * <li>For each datagram, a 2 byte length and the 4 byte CRC-32 of its bytes,
+ * which receivers use to find the datagrams they already hold.</li>
+ * <li>The XOR of every datagram in the group, each padded with zeros to the
+ * length of the longest.</li>
+ * </ol>
+ * Datagrams too large to fit in a parity frame are sent without protection.
+ * A group that is not filled within {@link ParityEncoder#FLUSH_MS} has its
+ * parity sent early, so the end of a burst is still protected.
+ * <p>
+ * Parity is worked out over the datagrams as they are published, so they must
+ * reach each peer unchanged. While a group size is set, every {@link
+ * PeerQueue} is told not to coalesce queued datagrams into new batch frames;
+ * see {@link PeerQueue#setParity(boolean)}.
+ * 
+ * @author 6266215
+ * @version 1.2
+ * @since 2026-10-16
+ */
+public class ParityEncoder
+{
+    /** The largest number of datagrams that may share a parity frame. */
+    public static final int MAX_GROUP = 16;
+    /** How long to wait for a group to fill before sending its parity. */
+    public static final int FLUSH_MS = 50;
+    /** The number of bytes before the first datagram length. */
+    public static final int HEADER_SIZE = 2;
+    /** The number of bytes used for the length of each datagram. */
+    public static final int LENGTH_SIZE = 2;
+    /** The number of bytes used for the checksum of each datagram. */
+    public static final int CRC_SIZE = 4;
+    
+    /** The {@link Client} to send parity frames through. */
+    private final Client client;
+    /** The XOR of every datagram in the current group. */
+    private final byte[] parity;
+    /** The length of each datagram in the current group. */
+    private final int[] lengths;
+    /** The checksum of each datagram in the current group. */
+    private final int[] crcs;
+    /** Sends the parity of groups that were not filled in time. */
+    private final ScheduledExecutorService timer;
+    /** The pending timed flush for the current group, if any. */
+    private ScheduledFuture<?> pending;
+    /** The number of datagrams in the current group. */
+    private int count;
+    /** The length of the longest datagram in the current group. */
+    private int longest;
+    /** The number of datagrams per group, or 0 if parity is not sent. */
+    private int group;
+    
+    /**
+     * Creates a new {@link ParityEncoder} that sends parity frames through
+     * the specified {@link Client}. Parity is off until a group size is set.
+     * 
+     * @param client The {@link Client} to send parity frames with.
+     * @since 1.0
+     */
+    public ParityEncoder(Client client)
+    {
+        this.client = client;
+        this.parity = new byte[NetMessage.MAX_DATAGRAM_SIZE];
+        this.lengths = new int[MAX_GROUP];
+        this.crcs = new int[MAX_GROUP];
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Parity sender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.count = 0;
+        this.longest = 0;
+        this.group = 0;
+    }
+    
+    /**
+     * Gets the number of bytes a parity frame adds around its payload.
+     * 
+     * @param group The number of datagrams in the group.
+     * @return The size of the parity frame header in bytes.
+     * @since 1.0
+     */
+    public static int overhead(int group)
+    {
+        return HEADER_SIZE + group*(LENGTH_SIZE+CRC_SIZE);
+    }
+    
+    /**
+     * Gets the size of the largest datagram that can be protected by a
+     * parity frame for a group of the specified size.
+     * 
+     * @param group The number of datagrams in the group.
+     * @return The largest protected datagram in bytes.
+     * @since 1.0
+     */
+    public static int capacity(int group)
+    {
+        return NetMessage.MAX_DATAGRAM_SIZE - overhead(group);
+    }
+    
+    /**
+     * Works out the CRC-32 checksum of part of a {@link ByteBuffer}, without
+     * changing its position.
+     * 
+     * @param buf The {@link ByteBuffer} holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes to check.
+     * @return The checksum as an int.
+     * @since 1.0
+     */
+    public static int crc(ByteBuffer buf, int offset, int length)
+    {
+        CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset()+offset, length);
+        } else {
+            for (int i = 0; i < length; i++)
+                crc.update(buf.get(offset+i));
+        }
+        return (int)crc.getValue();
+    }
+    
+    /**
+     * Sets how many datagrams share each parity frame. The current group is
+     * sent first. A size of 0 turns parity off; other sizes are kept between
+     * 2 and {@link ParityEncoder#MAX_GROUP}.
+     * 
+     * @param size The number of datagrams per parity frame.
+     * @since 1.0
+     */
+    public synchronized void setGroupSize(int size)
+    {
+        flush();
+        group = (size <= 0) ? 0 : Math.max(2, Math.min(MAX_GROUP, size));
+    }
+    
+    /**
+     * Gets how many datagrams share each parity frame.
+     * 
+     * @return The group size, or 0 if parity is not sent.
+     * @since 1.0
+     */
+    public synchronized int getGroupSize() { return group; }
+    
+    /**
+     * Adds a datagram that has just been sent to the current group. The
+     * parity for the group is sent once it is full. The buffer position is
+     * not changed.
+     * 
+     * @param data The datagram that was sent.
+     * @since 1.0
+     */
+    public synchronized void add(ByteBuffer data)
+    {
+        int length = data.remaining();
+        if (group == 0 || length > capacity(group)) return;
+        
+        int start = data.position();
+        for (int i = 0; i < length; i++)
+            parity[i] ^= data.get(start+i);
+        lengths[count] = length;
+        crcs[count] = crc(data, start, length);
+        longest = Math.max(longest, length);
+        count++;
+        
+        if (count >= group) {
+            flush();
+        } else if (pending == null) {
+            pending = timer.schedule(new Runnable()
+            {
+                @Override
+                public void run() { flush(); }
+            }, FLUSH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Sends the parity of the current group straight away, if it holds any
+     * datagrams.
+     * 
+     * @since 1.0
+     */
+    public synchronized void flush()
+    {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        if (count == 0) return;
+        
+        ByteBuffer frame = ByteBuffer.allocate(overhead(count)+longest);
+        frame.put((byte)MessageType.PARITY.type);
+        frame.put((byte)count);
+        for (int i = 0; i < count; i++) {
+            frame.putShort((short)lengths[i]);
+            frame.putInt(crcs[i]);
+        }
+        frame.put(parity, 0, longest);
+        frame.flip();
+        client.publish(frame);
+        
+        Arrays.fill(parity, 0, longest, (byte)0);
+        count = 0;
+        longest = 0;
+    }
+}
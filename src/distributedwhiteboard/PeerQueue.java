@@ -0,0 +1,490 @@
+package distributedwhiteboard;
+
+import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded queue of datagrams waiting to be sent to a single peer, emptied
+ * by its own background thread. Broadcasts only add to the queue of each
+ * peer, so the thread drawing on the canvas never waits on the network, and
+ * a slow or unreachable peer only holds up its own datagrams. Each worker
+ * sends on a {@link DatagramChannel} of its own, so a socket buffer filled by
+ * one peer's traffic does not stop the others from sending; only the network
+ * interface underneath is shared. The worker waits for room in its socket
+ * buffer rather than dropping what it has taken, so when the network cannot
+ * keep up the datagrams back up here, where the queue's {@link Policy}
+ * applies.
+ * <p>
+ * Drawing datagrams and {@link MessageType#PARITY} frames count against
+ * {@link PeerQueue#CAPACITY}. When that is reached, waiting parity frames are
+ * dropped first, as they only help to rebuild lost drawing, and a parity frame
+ * added to a full queue is dropped. After that, drawing datagrams are dealt
+ * with by the queue's {@link Policy}. Anything else, such as a leave request,
+ * cannot be asked for again, so it is queued past the capacity, up to the hard
+ * limit of {@link PeerQueue#LIMIT} datagrams of any kind. The queue keeps
+ * counts of what it has sent, dropped, refused and coalesced, along with the
+ * deepest it has been, for {@link PeerQueue#toString()}.
+ * <p>
+ * While the {@link Client} sends {@link ParityEncoder} frames, the queue never
+ * coalesces. Parity is worked out over the datagrams as they were published,
+ * and receivers find the members of a group by the checksum of what arrived,
+ * so a repacked batch frame would leave its whole group unrecoverable. The
+ * {@link Policy#COALESCE} policy drops the oldest drawing datagram instead.
+ * 
+ * @author 6266215
+ * @version 1.5
+ * @since 2026-10-16
+ */
+public class PeerQueue implements Runnable
+{
+    /** The number of drawing and parity datagrams held before dropping. */
+    public static final int CAPACITY = 64;
+    /** The most datagrams of any kind held; anything past this is refused. */
+    public static final int LIMIT = CAPACITY*4;
+    /** How long the worker waits for room in the socket buffer, in ms. */
+    private static final int SEND_WAIT_MS = 1000;
+    
+    /**
+     * What to do with drawing datagrams when a {@link PeerQueue} is full.
+     * Dropped drawing messages are asked for again through the usual
+     * repair requests.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    public enum Policy
+    {
+        /** Drop the datagram being added. */
+        DROP_NEWEST,
+        /** Drop the oldest drawing datagram still waiting. */
+        DROP_OLDEST,
+        /**
+         * Pack the datagram being added into the newest waiting drawing
+         * datagram as a {@link MessageType#BATCH} frame, dropping the oldest
+         * if it will not fit, or while parity frames are being sent.
+         */
+        COALESCE
+    }
+    
+    /** The address of the peer this queue sends to. */
+    private final InetSocketAddress target;
+    /** The datagrams waiting to be sent, oldest first. */
+    private final ArrayDeque<ByteBuffer> waiting;
+    /** The thread sending the datagrams. */
+    private final Thread worker;
+    /** What to do with drawing datagrams when the queue is full. */
+    private volatile Policy policy;
+    /** Set while the datagrams queued are covered by parity frames. */
+    private volatile boolean parity;
+    /** Set once the queue is closed and the worker should stop. */
+    private boolean closed;
+    /** True while the worker is sending a datagram it has taken. */
+    private boolean busy;
+    /** The number of drawing and parity datagrams waiting. */
+    private int droppable;
+    /** The most datagrams that have been waiting at once. */
+    private int deepest;
+    /** The number of datagrams sent. */
+    private long sent;
+    /** The number of drawing and parity datagrams dropped when full. */
+    private long dropped;
+    /** The number of other datagrams refused at the hard limit. */
+    private long refused;
+    /** The number of drawing datagrams packed into another. */
+    private long coalesced;
+    
+    /**
+     * Creates a new {@link PeerQueue} for a peer and starts its worker.
+     * 
+     * @param target The {@link InetSocketAddress} of the peer.
+     * @param policy What to do with drawing datagrams when the queue is full.
+     * @since 1.0
+     */
+    public PeerQueue(InetSocketAddress target, Policy policy)
+    {
+        this.target = target;
+        this.policy = policy;
+        this.waiting = new ArrayDeque<>();
+        this.closed = false;
+        this.worker = new Thread(this, "Peer sender " + target);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+    
+    /**
+     * Gets the address of the peer this queue sends to.
+     * 
+     * @return The {@link InetSocketAddress} of the peer.
+     * @since 1.0
+     */
+    public InetSocketAddress getTarget() { return target; }
+    
+    /**
+     * Sets what to do with drawing datagrams when the queue is full.
+     * 
+     * @param policy The new {@link Policy}.
+     * @since 1.0
+     */
+    public void setPolicy(Policy policy) { this.policy = policy; }
+    
+    /**
+     * Sets whether the datagrams queued are covered by {@link ParityEncoder}
+     * frames, which must not be coalesced.
+     * 
+     * @param parity Set to true while parity frames are being sent.
+     * @since 1.1
+     */
+    public void setParity(boolean parity) { this.parity = parity; }
+    
+    /**
+     * Gets the number of datagrams currently waiting to be sent.
+     * 
+     * @return The depth of the queue as an int.
+     * @since 1.0
+     */
+    public synchronized int getDepth() { return waiting.size(); }
+    
+    /**
+     * Adds a datagram to the end of the queue. The datagram's bytes must not
+     * be changed afterwards, as the worker reads them later.
+     * 
+     * @param data The encoded datagram to send.
+     * @since 1.0
+     */
+    public synchronized void offer(ByteBuffer data)
+    {
+        if (closed) return;
+        
+        if (isDroppable(data)) {
+            if (waiting.size() >= LIMIT) {
+                dropped++;
+                return;
+            }
+            if (droppable >= CAPACITY && !makeRoom(data)) return;
+            droppable++;
+        } else if (waiting.size() >= LIMIT) {
+            refused++;
+            return;
+        }
+        waiting.addLast(data);
+        deepest = Math.max(deepest, waiting.size());
+        notifyAll();
+    }
+    
+    /**
+     * Makes room for a drawing or parity datagram added to a full queue. A 
+     * parity frame is dropped; for a drawing datagram the oldest waiting 
+     * parity frame is dropped if there is one, otherwise the {@link Policy} 
+     * is applied.
+     * 
+     * @param data The drawing or parity datagram being added.
+     * @return Returns true if the datagram should still be added, false if it
+     * was dropped or packed into another.
+     * @since 1.0
+     */
+    private boolean makeRoom(ByteBuffer data)
+    {
+        if (isParity(data)) return dropNewest();
+        if (dropOldest(true)) return true;
+        switch (policy) {
+            case COALESCE:
+                if (!parity && coalesce(data)) return false;
+                return dropOldest(false) || dropNewest();
+            case DROP_OLDEST:
+                return dropOldest(false) || dropNewest();
+            default:
+                return dropNewest();
+        }
+    }
+    
+    /**
+     * Drops the oldest waiting datagram of those that may be dropped, to make 
+     * room for a new one.
+     * 
+     * @param parityOnly Set to true to only drop a parity frame.
+     * @return Returns true if a datagram was dropped and the new one should 
+     * be added, false if nothing could be dropped.
+     * @since 1.3
+     */
+    private boolean dropOldest(boolean parityOnly)
+    {
+        Iterator<ByteBuffer> it = waiting.iterator();
+        while (it.hasNext()) {
+            ByteBuffer next = it.next();
+            if (parityOnly ? isParity(next) : isDroppable(next)) {
+                it.remove();
+                droppable--;
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Drops the datagram being added, as nothing waiting could be dropped in 
+     * its place.
+     * 
+     * @return Always returns false, so the datagram is not added.
+     * @since 1.4
+     */
+    private boolean dropNewest()
+    {
+        dropped++;
+        return false;
+    }
+    
+    /**
+     * Packs a drawing datagram into the newest waiting datagram, if that is
+     * also a drawing datagram and the two fit in a single batch frame.
+     * 
+     * @param data The drawing datagram being added.
+     * @return Returns true if the datagram was packed, false otherwise.
+     * @since 1.0
+     */
+    private boolean coalesce(ByteBuffer data)
+    {
+        ByteBuffer last = waiting.peekLast();
+        if (last == null || !isDrawing(last)) return false;
+        
+        int size = entriesSize(last)+entriesSize(data)
+                + MessageBatcher.HEADER_SIZE;
+        if (size > NetMessage.MAX_DATAGRAM_SIZE) return false;
+        
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put((byte)MessageType.BATCH.type);
+        putEntries(frame, last);
+        putEntries(frame, data);
+        frame.flip();
+        waiting.pollLast();
+        waiting.addLast(frame);
+        coalesced++;
+        return true;
+    }
+    
+    /**
+     * Sends the waiting datagrams in order until the queue is closed, on a 
+     * non-blocking {@link DatagramChannel} opened for this peer alone. Each 
+     * send waits for room in the socket buffer, so the queue fills up 
+     * behind a busy socket.
+     * 
+     * @since 1.0
+     */
+    @Override
+    public void run()
+    {
+        DatagramChannel out;
+        Selector writable;
+        try {
+            out = DatagramChannel.open();
+            out.configureBlocking(false);
+            writable = Selector.open();
+            out.register(writable, SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            System.err.printf("Could not start sender for %s.%n%s%n", target,
+                    ex.getMessage());
+            return;
+        }
+        try {
+            sendAll(out, writable);
+        } finally {
+            try {
+                writable.close();
+                out.close();
+            } catch (IOException ex) { }
+        }
+    }
+    
+    /**
+     * Takes each waiting datagram in turn and sends it, until the queue is
+     * closed and empty.
+     * 
+     * @param out The {@link DatagramChannel} to send on.
+     * @param writable The {@link Selector} to wait for the channel with.
+     * @since 1.2
+     */
+    private void sendAll(DatagramChannel out, Selector writable)
+    {
+        while (true) {
+            ByteBuffer next;
+            synchronized (this) {
+                busy = false;
+                notifyAll();
+                while (waiting.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) { }
+                }
+                if (waiting.isEmpty()) return; // Closed and sent everything.
+                next = waiting.pollFirst();
+                if (isDroppable(next)) droppable--;
+                busy = true;
+            }
+            if (send(out, writable, next)) {
+                synchronized (this) { sent++; }
+            }
+        }
+    }
+    
+    /**
+     * Sends the remaining bytes of a {@link ByteBuffer} as a single datagram 
+     * to the peer, waiting up to {@link PeerQueue#SEND_WAIT_MS} for room in 
+     * the socket buffer if it is full. The buffer position is not changed.
+     * 
+     * @param out The {@link DatagramChannel} to send on.
+     * @param writable The {@link Selector} to wait for the channel with.
+     * @param data The encoded datagram to send.
+     * @return Returns true if the datagram was sent, false otherwise.
+     * @since 1.5
+     */
+    private boolean send(DatagramChannel out, Selector writable, 
+            ByteBuffer data)
+    {
+        try {
+            long end = System.currentTimeMillis()+SEND_WAIT_MS;
+            long left = SEND_WAIT_MS;
+            while (left > 0) {
+                if (out.send(data.duplicate(), target) > 0)
+                    return true;
+                writable.select(left);
+                writable.selectedKeys().clear();
+                left = end-System.currentTimeMillis();
+            }
+            System.err.printf("Send buffer stayed full, dropped packet to "
+                    + "%s%n", target);
+        } catch (IOException ioEx) {
+            System.err.printf("Error sending packet to %s:%n%s%n", 
+                    target, ioEx.getMessage());
+        }
+        return false;
+    }
+    
+    /**
+     * Waits for every datagram already queued to be sent, up to a time limit.
+     * 
+     * @param ms The longest time to wait in milliseconds.
+     * @since 1.0
+     */
+    public synchronized void awaitEmpty(long ms)
+    {
+        long end = System.currentTimeMillis()+ms;
+        long left = ms;
+        while ((!waiting.isEmpty() || busy) && left > 0) {
+            try {
+                wait(left);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            left = end-System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Stops the worker once the datagrams already queued have been sent.
+     * Anything offered afterwards is ignored.
+     * 
+     * @since 1.0
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+    
+    /**
+     * Checks whether a datagram holds drawing messages, and so can be packed
+     * with others.
+     * 
+     * @param data The encoded datagram.
+     * @return Returns true for {@link MessageType#DRAW} and {@link
+     * MessageType#BATCH} datagrams, false otherwise.
+     * @since 1.0
+     */
+    private static boolean isDrawing(ByteBuffer data)
+    {
+        MessageType t = NetMessage.peekType(data, data.position());
+        return t == MessageType.DRAW || t == MessageType.BATCH;
+    }
+    
+    /**
+     * Checks whether a datagram is a {@link MessageType#PARITY} frame.
+     * 
+     * @param data The encoded datagram.
+     * @return Returns true for parity frames, false otherwise.
+     * @since 1.4
+     */
+    private static boolean isParity(ByteBuffer data)
+    {
+        return NetMessage.peekType(data, data.position()) 
+                == MessageType.PARITY;
+    }
+    
+    /**
+     * Checks whether a datagram may be dropped when the queue is full, as it 
+     * is either asked for again or only helps to rebuild others.
+     * 
+     * @param data The encoded datagram.
+     * @return Returns true for drawing datagrams and parity frames, false 
+     * otherwise.
+     * @since 1.4
+     */
+    private static boolean isDroppable(ByteBuffer data)
+    {
+        return isDrawing(data) || isParity(data);
+    }
+    
+    /**
+     * Gets the number of bytes a datagram takes as entries of a batch frame.
+     * 
+     * @param data A {@link MessageType#DRAW} or {@link MessageType#BATCH}
+     * datagram.
+     * @return The size of the datagram's entries in bytes.
+     * @since 1.0
+     */
+    private static int entriesSize(ByteBuffer data)
+    {
+        if (NetMessage.peekType(data, data.position()) == MessageType.BATCH)
+            return data.remaining()-MessageBatcher.HEADER_SIZE;
+        return MessageBatcher.LENGTH_SIZE+data.remaining();
+    }
+    
+    /**
+     * Writes a datagram into a batch frame as one or more entries. A batch is
+     * copied without its header, a single message gets a length prefix.
+     * 
+     * @param frame The batch frame being filled.
+     * @param data A {@link MessageType#DRAW} or {@link MessageType#BATCH}
+     * datagram.
+     * @since 1.0
+     */
+    private static void putEntries(ByteBuffer frame, ByteBuffer data)
+    {
+        ByteBuffer src = data.duplicate();
+        if (NetMessage.peekType(src, src.position()) == MessageType.BATCH) {
+            src.position(src.position()+MessageBatcher.HEADER_SIZE);
+        } else {
+            frame.putShort((short)src.remaining());
+        }
+        frame.put(src);
+    }
+    
+    /**
+     * Describes the peer this queue sends to and its counters.
+     * 
+     * @return The String representation of this queue.
+     * @since 1.0
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%s: %d waiting (deepest %d), %d sent, "
+                + "%d dropped, %d refused, %d coalesced", target, 
+                waiting.size(), deepest, sent, dropped, refused, coalesced);
+    }
+}
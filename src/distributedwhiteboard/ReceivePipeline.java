@@ -0,0 +1,422 @@
+package distributedwhiteboard;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits the handling of received datagrams into three stages, so receiving
+ * from the socket never waits behind decoding or drawing on the canvas.
+ * <ol>
+ * <li>The receiving thread receives each datagram straight into a spare
+ * slot of its own, which is then swapped into the next free place in a ring
+ * buffer. Datagrams heard elsewhere, such as over multicast, are copied into
+ * the ring through {@link ReceivePipeline#offer(ByteBuffer, int, int)}, so
+ * every datagram reaches the same apply thread. If every slot is in use the
+ * datagram is dropped and counted, rather than leaving it to overflow the
+ * socket buffer.</li>
+ * <li>Several decode threads take slots in turn and decode them at the same
+ * time, through {@link ReceivePipeline.Handler#decode(Slot)}.</li>
+ * <li>A single apply thread hands slots to {@link
+ * ReceivePipeline.Handler#apply(Slot)} strictly in the order they were
+ * received, once each has been decoded.</li>
+ * </ol>
+ * Publishing takes a short lock, as there may be more than one receiving
+ * thread. The decode and apply stages are lock free; each only moves its own
+ * sequence counter forward, and a slot is only reused once the apply stage
+ * has finished with it. Threads with nothing to do spin briefly and then
+ * park until woken; publishing a datagram wakes any parked decode threads, 
+ * and finishing a decode wakes the apply thread if it is parked, so an idle 
+ * pipeline does not wake up at all. Every stage keeps counters and timings, 
+ * shown by {@link ReceivePipeline#toString()}.
+ * 
+ * @author 6266215
+ * @version 1.2
+ * @since 2026-10-16
+ */
+public class ReceivePipeline
+{
+    /** The number of slots in the ring, a power of two. */
+    public static final int RING_SIZE = 1024;
+    /** How many times an idle thread checks again before parking. */
+    private static final int SPINS = 100;
+    
+    /**
+     * The work done by the decode and apply stages of a {@link
+     * ReceivePipeline}.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    public interface Handler
+    {
+        /**
+         * Decodes the datagram in a slot. Called by several threads at once,
+         * each with a different slot.
+         * 
+         * @param slot The {@link Slot} holding the datagram.
+         * @since 1.0
+         */
+        void decode(Slot slot);
+        
+        /**
+         * Acts on a decoded slot. Called by a single thread, in the order the
+         * datagrams were received.
+         * 
+         * @param slot The {@link Slot} holding the decoded datagram.
+         * @since 1.0
+         */
+        void apply(Slot slot);
+    }
+    
+    /**
+     * A single datagram in the ring, along with anything decoded from it.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    public static final class Slot
+    {
+        /** The bytes of the datagram. */
+        public final byte[] data;
+        /** The datagram bytes wrapped for the view. */
+        private final ByteBuffer buffer;
+        /** A view over the datagram, valid between receive and apply. */
+        public final MessageView view;
+        /** The messages decoded from the datagram, in the order they hold. */
+        public final ArrayList<NetMessage> decoded;
+        /** The sequence number whose decode has finished in this slot. */
+        private volatile long ready;
+        
+        /**
+         * Creates a new, empty {@link Slot} for datagrams up to the specified
+         * size.
+         * 
+         * @param size The largest datagram the slot can hold.
+         * @since 1.0
+         */
+        private Slot(int size)
+        {
+            this.data = new byte[size];
+            this.buffer = ByteBuffer.wrap(data);
+            this.view = new MessageView();
+            this.decoded = new ArrayList<>();
+            this.ready = -1;
+        }
+    }
+    
+    /** The slots of the ring. */
+    private final Slot[] ring;
+    /** The largest datagram a slot can hold. */
+    private final int slotSize;
+    /** Held while a datagram is published into the ring. */
+    private final Object publishing;
+    /** The stages run for each datagram. */
+    private final Handler handler;
+    /** The decode and apply threads. */
+    private final Thread[] threads;
+    /** The apply thread, the last of the threads. */
+    private final Thread applier;
+    /** The number of decode threads parked, or about to park. */
+    private final AtomicInteger decodersParked;
+    /** Set while the apply thread is parked, or about to park. */
+    private volatile boolean applyParked;
+    /** The number of datagrams received into the ring so far. */
+    private volatile long published;
+    /** The next sequence number for a decode thread to take. */
+    private final AtomicLong claimed;
+    /** The number of datagrams the apply stage has finished with. */
+    private volatile long applied;
+    /** Set while the stages should keep running. */
+    private volatile boolean running;
+    /** The number of datagrams dropped because the ring was full. */
+    private final AtomicLong overflowed;
+    /** The most slots that have been in use at once. */
+    private volatile long deepest;
+    /** The total time spent decoding, in nanoseconds. */
+    private final AtomicLong decodeNanos;
+    /** The total time spent applying, in nanoseconds. */
+    private volatile long applyNanos;
+    
+    /**
+     * Creates a new {@link ReceivePipeline} and starts its decode and apply
+     * threads.
+     * 
+     * @param handler The {@link Handler} that decodes and applies datagrams.
+     * @param slotSize The largest datagram that will be received.
+     * @param decoders The number of decode threads to run.
+     * @since 1.0
+     */
+    public ReceivePipeline(Handler handler, int slotSize, int decoders)
+    {
+        this.handler = handler;
+        this.slotSize = slotSize;
+        this.publishing = new Object();
+        this.ring = new Slot[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; i++)
+            ring[i] = new Slot(slotSize);
+        this.claimed = new AtomicLong();
+        this.overflowed = new AtomicLong();
+        this.decodeNanos = new AtomicLong();
+        this.decodersParked = new AtomicInteger();
+        this.published = 0;
+        this.applied = 0;
+        this.running = true;
+        
+        decoders = Math.max(1, decoders);
+        this.threads = new Thread[decoders+1];
+        for (int i = 0; i < decoders; i++) {
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run() { decodeLoop(); }
+            }, "Whiteboard Decoder " + (i+1));
+        }
+        threads[decoders] = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { applyLoop(); }
+        }, "Whiteboard Apply");
+        this.applier = threads[decoders];
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    /**
+     * Creates a spare slot for a receiving thread to receive datagrams into 
+     * before passing them on through {@link ReceivePipeline#publish(Slot, 
+     * int)}.
+     * 
+     * @return A new, empty {@link Slot}.
+     * @since 1.1
+     */
+    public Slot spare() { return new Slot(slotSize); }
+    
+    /**
+     * Passes a datagram received into a spare slot on to the decode stage. 
+     * The slot takes the next free place in the ring, and the slot that was 
+     * there is handed back to be received into next. If the ring is full the 
+     * datagram is dropped and the same slot is handed back.
+     * 
+     * @param filled The spare {@link Slot} holding the datagram.
+     * @param length The length of the datagram received into the slot.
+     * @return The {@link Slot} to receive the next datagram into.
+     * @since 1.1
+     */
+    public Slot publish(Slot filled, int length)
+    {
+        Slot free;
+        synchronized (publishing) {
+            if (published-applied >= RING_SIZE) {
+                overflowed.incrementAndGet();
+                return filled;
+            }
+            int index = (int)(published & (RING_SIZE-1));
+            free = ring[index];
+            filled.view.wrap(filled.buffer, 0, length);
+            ring[index] = filled;
+            advance();
+        }
+        wakeDecoders();
+        return free;
+    }
+    
+    /**
+     * Copies a datagram into the next free slot of the ring and passes it on 
+     * to the decode stage. If the ring is full, or the datagram does not fit 
+     * in a slot, it is dropped.
+     * 
+     * @param src The {@link ByteBuffer} holding the datagram.
+     * @param offset The index the datagram starts at in the buffer.
+     * @param length The length of the datagram.
+     * @return Returns true if the datagram was published, false otherwise.
+     * @since 1.1
+     */
+    public boolean offer(ByteBuffer src, int offset, int length)
+    {
+        if (length > slotSize) return false;
+        synchronized (publishing) {
+            if (published-applied >= RING_SIZE) {
+                overflowed.incrementAndGet();
+                return false;
+            }
+            Slot slot = ring[(int)(published & (RING_SIZE-1))];
+            ByteBuffer from = src.duplicate();
+            from.limit(offset+length).position(offset);
+            slot.buffer.clear();
+            slot.buffer.put(from);
+            slot.view.wrap(slot.buffer, 0, length);
+            advance();
+        }
+        wakeDecoders();
+        return true;
+    }
+    
+    /**
+     * Moves the published count on past the slot just filled. Only called 
+     * while publishing is held.
+     * 
+     * @since 1.1
+     */
+    private void advance()
+    {
+        published++;
+        long depth = published-applied;
+        if (depth > deepest) deepest = depth;
+    }
+    
+    /**
+     * Unparks every decode thread if any are parked, once a datagram has 
+     * been published.
+     * 
+     * @since 1.2
+     */
+    private void wakeDecoders()
+    {
+        if (decodersParked.get() == 0) return;
+        for (int i = 0; i < threads.length-1; i++)
+            LockSupport.unpark(threads[i]);
+    }
+    
+    /**
+     * Stops the decode and apply threads. Datagrams still in the ring are
+     * not handled.
+     * 
+     * @since 1.0
+     */
+    public void stop()
+    {
+        running = false;
+        for (Thread t : threads) {
+            LockSupport.unpark(t);
+            try {
+                t.join(500);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Takes received slots in turn and decodes them until stopped.
+     * 
+     * @since 1.0
+     */
+    private void decodeLoop()
+    {
+        int idle = 0;
+        while (running) {
+            long seq = claimed.get();
+            if (seq >= published || !claimed.compareAndSet(seq, seq+1)) {
+                idle = pause(idle, false);
+                continue;
+            }
+            idle = 0;
+            Slot slot = ring[(int)(seq & (RING_SIZE-1))];
+            long start = System.nanoTime();
+            try {
+                handler.decode(slot);
+            } catch (RuntimeException ex) {
+                // The apply stage decodes again anything left out.
+                System.err.printf("Error decoding packet:%n%s%n", ex);
+            }
+            decodeNanos.addAndGet(System.nanoTime()-start);
+            slot.ready = seq;
+            if (applyParked) LockSupport.unpark(applier);
+        }
+    }
+    
+    /**
+     * Applies decoded slots in the order they were received until stopped.
+     * 
+     * @since 1.0
+     */
+    private void applyLoop()
+    {
+        int idle = 0;
+        while (running) {
+            long seq = applied;
+            if (seq >= published) {
+                idle = pause(idle, true);
+                continue;
+            }
+            // Read after published, so a slot swapped in is seen.
+            Slot slot = ring[(int)(seq & (RING_SIZE-1))];
+            if (slot.ready != seq) {
+                idle = pause(idle, true);
+                continue;
+            }
+            idle = 0;
+            long start = System.nanoTime();
+            try {
+                handler.apply(slot);
+            } catch (RuntimeException ex) {
+                System.err.printf("Error applying packet:%n%s%n", ex);
+            }
+            applyNanos += System.nanoTime()-start;
+            slot.decoded.clear();
+            applied = seq+1;
+        }
+    }
+    
+    /**
+     * Waits while a stage has nothing to do, spinning at first and then 
+     * parking until woken. The thread marks itself as parked before checking 
+     * for work one last time, so work published after that check always 
+     * finds the mark and unparks it.
+     * 
+     * @param idle How many times in a row the stage has had nothing to do.
+     * @param apply True if called by the apply thread, false for a decode 
+     * thread.
+     * @return The new idle count.
+     * @since 1.0
+     */
+    private int pause(int idle, boolean apply)
+    {
+        if (idle < SPINS) {
+            Thread.yield();
+            return idle+1;
+        }
+        if (apply) {
+            applyParked = true;
+            long seq = applied;
+            if (running && (seq >= published 
+                    || ring[(int)(seq & (RING_SIZE-1))].ready != seq))
+                LockSupport.park(this);
+            applyParked = false;
+        } else {
+            decodersParked.incrementAndGet();
+            if (running && claimed.get() >= published)
+                LockSupport.park(this);
+            decodersParked.decrementAndGet();
+        }
+        return idle+1;
+    }
+    
+    /**
+     * Describes how many datagrams each stage has handled and how long it has
+     * taken over them.
+     * 
+     * @return The String representation of this pipeline.
+     * @since 1.0
+     */
+    @Override
+    public String toString()
+    {
+        long received = published;
+        long done = applied;
+        long decoded = Math.min(claimed.get(), received);
+        return String.format("Received: %d (%d dropped, ring full)%n"
+                + "Waiting: %d of %d slots (deepest %d)%n"
+                + "Decoded: %d, average %.1fus%n"
+                + "Applied: %d, average %.1fus",
+                received, overflowed.get(), received-done, RING_SIZE,
+                deepest, decoded,
+                (decoded == 0) ? 0.0 : decodeNanos.get()/1000.0/decoded,
+                done, (done == 0) ? 0.0 : applyNanos/1000.0/done);
+    }
+}
@@ -0,0 +1,160 @@
+package distributedwhiteboard;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops every host from answering the same multicast {@link
+ * PacketRequestMessage}, in the style of Scalable Reliable Multicast. A host
+ * that can answer a request waits for a random time before sending the
+ * repair to the whole multicast group. If it sees another host's repair for
+ * the same message while waiting, it cancels its own. Once a message has been
+ * repaired, further requests for it are ignored for {@link
+ * RepairSuppressor#HOLDDOWN_MS}, as the repair is probably still in flight.
+ * <p>
+ * With N hosts able to answer, this usually sends one repair rather than N.
+ * Every draw datagram heard on the group is checked with {@link
+ * RepairSuppressor#observed(long)}, so that check only looks up the repairs
+ * waiting here, and only those are remembered.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class RepairSuppressor
+{
+    /** The shortest time to wait before sending a repair, in ms. */
+    public static final int MIN_BACKOFF_MS = 5;
+    /** The longest time to wait before sending a repair, in ms. */
+    public static final int MAX_BACKOFF_MS = 60;
+    /** How long requests for a repaired message are ignored, in ms. */
+    public static final int HOLDDOWN_MS = 3*MAX_BACKOFF_MS;
+    /** How many repair times to keep before forgetting old ones. */
+    private static final int MAX_REMEMBERED = 1024;
+    
+    /** The {@link Client} to multicast repairs through. */
+    private final Client client;
+    /** The repairs waiting for their backoff to expire, by message ID. */
+    private final HashMap<Long, ScheduledFuture<?>> pending;
+    /** 
+     * When each message was last repaired, by message ID, oldest first. Only 
+     * this host's repairs and those it was waiting to send are kept.
+     */
+    private final LinkedHashMap<Long, Long> repaired;
+    /** Picks the backoff for each repair. */
+    private final Random random;
+    /** Sends repairs once their backoff has expired. */
+    private final ScheduledExecutorService timer;
+    
+    /**
+     * Creates a new {@link RepairSuppressor} that sends repairs through the
+     * specified {@link Client}.
+     * 
+     * @param client The {@link Client} to multicast repairs with.
+     * @since 1.0
+     */
+    public RepairSuppressor(Client client)
+    {
+        this.client = client;
+        this.pending = new HashMap<>();
+        this.repaired = new LinkedHashMap<>();
+        this.random = new Random();
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Multicast repair");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Schedules a repair of a stored message after a random backoff. Nothing
+     * is scheduled if a repair of the message is already waiting, or if the
+     * message was repaired recently.
+     * 
+     * @param msg The stored {@link NetMessage} that was asked for.
+     * @since 1.0
+     */
+    public synchronized void schedule(final NetMessage msg)
+    {
+        final long id = msg.getUniqueID();
+        if (id == MessageID.NONE || pending.containsKey(id)) return;
+        Long last = repaired.get(id);
+        if (last != null && System.currentTimeMillis()-last < HOLDDOWN_MS)
+            return;
+        
+        int delay = MIN_BACKOFF_MS
+                + random.nextInt(MAX_BACKOFF_MS-MIN_BACKOFF_MS+1);
+        pending.put(id, timer.schedule(new Runnable()
+        {
+            @Override
+            public void run() { sendRepair(id, msg); }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+    
+    /**
+     * Notes a message seen on the multicast group, cancelling this host's own
+     * repair of the same message if one is waiting. Messages with no repair 
+     * waiting are ignored, so this takes constant time for ordinary traffic.
+     * 
+     * @param id The packed ID of the message seen.
+     * @since 1.0
+     */
+    public synchronized void observed(long id)
+    {
+        ScheduledFuture<?> waiting = pending.remove(id);
+        if (waiting == null) return;
+        waiting.cancel(false);
+        remember(id);
+    }
+    
+    /**
+     * Multicasts a repair once its backoff has expired, unless it was
+     * cancelled in the meantime.
+     * 
+     * @param id The packed ID of the message.
+     * @param msg The {@link NetMessage} to send.
+     * @since 1.0
+     */
+    private void sendRepair(long id, NetMessage msg)
+    {
+        synchronized (this) {
+            if (pending.remove(id) == null) return; // Another host sent it.
+            remember(id);
+        }
+        client.multicastRepair(msg);
+    }
+    
+    /**
+     * Records that a message has just been repaired, forgetting the oldest 
+     * repairs once they can no longer block anything, or once too many are 
+     * held.
+     * 
+     * @param id The packed ID of the repaired message.
+     * @since 1.0
+     */
+    private void remember(long id)
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Long> it = repaired.values().iterator();
+        while (it.hasNext()) {
+            long last = it.next();
+            if (now-last < HOLDDOWN_MS && repaired.size() < MAX_REMEMBERED)
+                break;
+            it.remove();
+        }
+        repaired.remove(id); // Keep the map oldest first.
+        repaired.put(id, now);
+    }
+}
@@ -0,0 +1,364 @@
+package distributedwhiteboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovers lost {@link WhiteboardMessage}s by asking the node that created
+ * them to send them again. Each remote node has a window over its sequence
+ * numbers, held by the {@link MessageStore}; any sequence number below the
+ * highest received that is not held is a gap. Gaps are asked for with a
+ * single {@link NackMessage} listing runs of missing sequence numbers, sent
+ * straight to the node that created them.
+ * <p>
+ * A short delay before the first request lets packets that were only
+ * reordered arrive. After that, requests are repeated on a timer based on
+ * the measured round trip time to each node, doubling after each attempt,
+ * until the gap is filled or {@link RepairTracker#MAX_ATTEMPTS} is reached.
+ * Round trips are only measured from requests that were not repeated.
+ * <p>
+ * On the sending side, the same message is not resent to the same host more
+ * than once within {@link RepairTracker#REPAIR_HOLDDOWN_MS}, so overlapping
+ * requests do not produce duplicate repairs.
+ * <p>
+ * A gap can only be seen once a later message arrives, so losing the last 
+ * messages a node sends would never be noticed. Once this node stops 
+ * sending, the last message it sent is sent again a few times, backing off 
+ * each time, so other nodes learn its highest sequence number and can ask 
+ * for anything before it. While this node is waiting for a copy of the 
+ * canvas to join the network no requests are sent, as the copy covers every 
+ * message the sending host held and only the messages after those are asked 
+ * for.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class RepairTracker
+{
+    /** How long to wait for reordered packets before asking, in ms. */
+    public static final int NACK_DELAY_MS = 20;
+    /** The retransmission timeout used before any round trip is measured. */
+    public static final int INITIAL_RTO_MS = 200;
+    /** The shortest retransmission timeout, in ms. */
+    public static final int MIN_RTO_MS = 50;
+    /** The longest retransmission timeout, in ms. */
+    public static final int MAX_RTO_MS = 2000;
+    /** How many times a gap is asked for before giving up on it. */
+    public static final int MAX_ATTEMPTS = 8;
+    /** The most messages asked for in a single request. */
+    public static final int MAX_NACK_IDS = 256;
+    /** How long a repair to one host blocks the same repair, in ms. */
+    public static final int REPAIR_HOLDDOWN_MS = 50;
+    /** The most messages asked for over multicast when a node is unknown. */
+    private static final int MAX_MULTICAST_REQUESTS = 8;
+    /** How long after the last message sent it is first sent again, in ms. */
+    public static final int TAIL_PROBE_MS = 250;
+    /** How many times the last message sent is sent again. */
+    public static final int TAIL_PROBES = 3;
+    /** How often the timers are checked, in ms. */
+    private static final int TICK_MS = 10;
+    
+    /** The {@link MessageStore} holding the messages received so far. */
+    private final MessageStore store;
+    /** The recovery state for each remote node, by node number. */
+    private final HashMap<Integer, Window> windows;
+    /** When each message was last repaired, by the host it was sent to. */
+    private final HashMap<Pair<String, Integer>, HashMap<Long, Long>> sent;
+    /** Runs the retransmission timers. */
+    private final ScheduledExecutorService timer;
+    /** How many copies of the canvas are being waited for. */
+    private int joining;
+    /** The sequence number of the last message this node sent. */
+    private int tailSeq;
+    /** How many times that message has been sent again. */
+    private int tailProbes;
+    /** When that message is next sent again. */
+    private long tailDue;
+    
+    /**
+     * Creates a new {@link RepairTracker} that finds gaps in the specified
+     * {@link MessageStore}, and starts its timers.
+     * 
+     * @param store The {@link MessageStore} received messages are put in.
+     * @since 1.0
+     */
+    public RepairTracker(MessageStore store)
+    {
+        this.store = store;
+        this.windows = new HashMap<>();
+        this.sent = new HashMap<>();
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Repair timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.timer.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run() { tick(); }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Updates the window of the node that created a message once the message
+     * has been stored. This starts the timer if the message revealed a gap,
+     * and measures the round trip if it answered a request.
+     * 
+     * @param id The packed ID of the stored message.
+     * @since 1.0
+     */
+    public synchronized void onReceived(long id)
+    {
+        int node = MessageID.node(id);
+        if (id == MessageID.NONE || node == MessageID.localNode()) return;
+        
+        Window w = windows.get(node);
+        if (w == null) {
+            w = new Window();
+            windows.put(node, w);
+        }
+        long now = System.currentTimeMillis();
+        int seq = MessageID.sequence(id);
+        if (w.sentAt != 0 && seq <= w.askedUpTo) {
+            if (w.attempts == 1)
+                w.sample((int)(now-w.sentAt));
+            w.sentAt = 0;
+        }
+        
+        int contiguous = store.getContiguous(node);
+        if (contiguous > w.contiguous) {
+            // Progress, so any earlier attempts no longer count.
+            w.contiguous = contiguous;
+            w.attempts = 0;
+        }
+        if (store.getMissing(node, 1).length == 0) {
+            w.dueAt = 0;
+            w.attempts = 0;
+        } else if (w.dueAt == 0 && w.attempts < MAX_ATTEMPTS) {
+            w.dueAt = now+NACK_DELAY_MS;
+        }
+    }
+    
+    /**
+     * Asks for a single message straight away, such as one that arrived but
+     * could not be decoded.
+     * 
+     * @param id The packed ID of the message to ask for.
+     * @since 1.0
+     */
+    public void request(long id)
+    {
+        if (id == MessageID.NONE) return;
+        send(MessageID.node(id), new long[] { id });
+    }
+    
+    /**
+     * Stops requests being sent while a copy of the canvas is on its way. 
+     * Gaps are still recorded, and are asked for once every copy has arrived.
+     * 
+     * @since 1.1
+     */
+    public synchronized void hold() { joining++; }
+    
+    /**
+     * Allows requests to be sent again once a copy of the canvas has arrived 
+     * or could not be received.
+     * 
+     * @since 1.1
+     */
+    public synchronized void release()
+    {
+        if (joining > 0) joining--;
+    }
+    
+    /**
+     * Checks whether a repair should be sent, and records it if so. A repair
+     * is skipped if the same message was sent to the same host within the
+     * last {@link RepairTracker#REPAIR_HOLDDOWN_MS}.
+     * 
+     * @param id The packed ID of the message to resend.
+     * @param ip The IP address of the host asking for it.
+     * @param port The UDP port of the host asking for it.
+     * @return Returns true if the repair should be sent, false otherwise.
+     * @since 1.0
+     */
+    public synchronized boolean shouldRepair(long id, String ip, int port)
+    {
+        Pair<String, Integer> host = new Pair<>(ip, port);
+        HashMap<Long, Long> times = sent.get(host);
+        if (times == null) {
+            times = new HashMap<>();
+            sent.put(host, times);
+        }
+        long now = System.currentTimeMillis();
+        Long last = times.get(id);
+        if (last != null && now-last < REPAIR_HOLDDOWN_MS) return false;
+        
+        if (times.size() >= MAX_NACK_IDS*4) {
+            // Forget repairs that can no longer block anything.
+            Iterator<Long> it = times.values().iterator();
+            while (it.hasNext()) {
+                if (now-it.next() >= REPAIR_HOLDDOWN_MS) it.remove();
+            }
+        }
+        times.put(id, now);
+        return true;
+    }
+    
+    /**
+     * Sends a request for every node whose timer has expired, then sets the
+     * next timer for each using its backed off retransmission timeout. The 
+     * last message this node sent is also sent again if it is due.
+     * 
+     * @since 1.0
+     */
+    private void tick()
+    {
+        ArrayList<Integer> nodes = new ArrayList<>();
+        ArrayList<long[]> missing = new ArrayList<>();
+        NetMessage tail;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            tail = nextProbe(now);
+            for (Map.Entry<Integer, Window> e : windows.entrySet()) {
+                Window w = e.getValue();
+                if (joining > 0 || w.dueAt == 0 || now < w.dueAt) continue;
+                
+                long[] ids = store.getMissing(e.getKey(), MAX_NACK_IDS);
+                if (ids.length == 0 || w.attempts >= MAX_ATTEMPTS) {
+                    w.dueAt = 0;
+                    continue;
+                }
+                if (w.attempts == 0) {
+                    w.sentAt = now;
+                    w.askedUpTo = MessageID.sequence(ids[ids.length-1]);
+                }
+                w.attempts++;
+                long rto = Math.min(MAX_RTO_MS,
+                        (long)w.rto() << (w.attempts-1));
+                w.dueAt = now+rto;
+                nodes.add(e.getKey());
+                missing.add(ids);
+            }
+        }
+        
+        // Send outside the lock, the client may block.
+        if (tail != null)
+            Client.getInstance().broadCastMessage(tail);
+        for (int i = 0; i < nodes.size(); i++)
+            send(nodes.get(i), missing.get(i));
+    }
+    
+    /**
+     * Works out whether the last message this node sent should be sent again. 
+     * It is sent again {@link RepairTracker#TAIL_PROBES} times once this node 
+     * stops sending, starting after {@link RepairTracker#TAIL_PROBE_MS} and 
+     * doubling the wait each time. Sending anything new starts this again.
+     * 
+     * @param now The current time in ms.
+     * @return The {@link NetMessage} to send again, or null if none is due.
+     * @since 1.1
+     */
+    private NetMessage nextProbe(long now)
+    {
+        int node = MessageID.localNode();
+        int seq = store.getHighest(node);
+        if (seq != tailSeq) {
+            tailSeq = seq;
+            tailProbes = 0;
+            tailDue = now+TAIL_PROBE_MS;
+            return null;
+        }
+        if (seq == 0 || tailProbes >= TAIL_PROBES || now < tailDue) 
+            return null;
+        tailProbes++;
+        tailDue = now+((long)TAIL_PROBE_MS << tailProbes);
+        return store.get(MessageID.pack(node, seq));
+    }
+    
+    /**
+     * Sends a {@link NackMessage} to the node that created the missing
+     * messages. If that node's address is not known, the first few messages
+     * are asked for over multicast instead.
+     * 
+     * @param node The node number that created the messages.
+     * @param ids The packed IDs of the missing messages, in sequence order.
+     * @since 1.0
+     */
+    private void send(int node, long[] ids)
+    {
+        Client client = Client.getInstance();
+        if (client.sendNack(node, ids)) return;
+        
+        for (long id : Arrays.copyOf(ids, 
+                Math.min(ids.length, MAX_MULTICAST_REQUESTS)))
+            client.requestPacket(id);
+    }
+    
+    /**
+     * The recovery state for one remote node.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    private static final class Window
+    {
+        /** The contiguous sequence number when last checked. */
+        int contiguous;
+        /** When the next request is due, or 0 if none is needed. */
+        long dueAt;
+        /** When the first request for the current gap was sent, or 0. */
+        long sentAt;
+        /** The highest sequence number asked for in the first request. */
+        int askedUpTo;
+        /** How many requests have been sent for the current gap. */
+        int attempts;
+        /** The smoothed round trip time in ms, or -1 if not measured. */
+        int srtt = -1;
+        /** The smoothed round trip variation in ms. */
+        int rttvar;
+        
+        /**
+         * Adds a round trip measurement to the smoothed estimates, in the
+         * same way as TCP.
+         * 
+         * @param rtt The measured round trip time in ms.
+         * @since 1.0
+         */
+        void sample(int rtt)
+        {
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt/2;
+            } else {
+                rttvar = (3*rttvar + Math.abs(srtt-rtt))/4;
+                srtt = (7*srtt + rtt)/8;
+            }
+        }
+        
+        /**
+         * Gets the retransmission timeout for this node.
+         * 
+         * @return The timeout in ms as an int.
+         * @since 1.0
+         */
+        int rto()
+        {
+            if (srtt < 0) return INITIAL_RTO_MS;
+            return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, srtt+4*rttvar));
+        }
+    }
+}
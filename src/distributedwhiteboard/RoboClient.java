@@ -138,7 +138,7 @@ public class RoboClient implements Runnable
         WhiteboardMessage msg = new WhiteboardMessage(p1, p2, colour, weight);
         msg.addUniqueID();
         Client.getInstance().broadCastMessage(msg);
-        Server.messages.put(msg.getUniqueID(), msg);
+        Server.addLocalMessage(msg);
     }
     
     /**
@@ -189,7 +189,7 @@ public class RoboClient implements Runnable
             origin = new Point(size.x, size.y);
         }
         Client.getInstance().broadCastMessage(msg);
-        Server.messages.put(msg.getUniqueID(), msg);
+        Server.addLocalMessage(msg);
         canvas.drawRectangle(origin, rectSize, colour, filled, border, weight, 
                 borderCol);
     }
@@ -222,6 +222,6 @@ public class RoboClient implements Runnable
                 text);
         msg.addUniqueID();
         Client.getInstance().broadCastMessage(msg);
-        Server.messages.put(msg.getUniqueID(), msg);
+        Server.addLocalMessage(msg);
     }
 }
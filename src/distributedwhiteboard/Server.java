@@ -1,28 +1,34 @@
 package distributedwhiteboard;
 
 import distributedwhiteboard.DiscoveryMessage.JoinRequest;
+import distributedwhiteboard.gui.CanvasLayer;
 import distributedwhiteboard.gui.WhiteboardCanvas;
 import distributedwhiteboard.gui.WhiteboardGUI;
 import java.awt.Dimension;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.imageio.ImageIO;
 
 /**
@@ -30,7 +36,7 @@ import javax.imageio.ImageIO;
  * Whiteboard application.
  *
  * @author 6266215
- * @version 1.5
+ * @version 1.30
  * @since 2015-03-26
  */
 public class Server implements Runnable
@@ -39,40 +45,94 @@ public class Server implements Runnable
     private static Server INSTANCE;
     /** The ratio for packet loss simulation. */
     private static int PACKET_LOSS;
+    /** The most redrawn regions kept to check local drawing against. */
+    private static final int MAX_PASTED = 64;
+    /** How long a redrawn region is checked against local drawing, in ms. */
+    private static final long PASTE_HOLD_MS = 10000;
     /** The maximum size of a {@link DatagramPacket} buffer. */
-    private static final int BUFFER_SIZE 
-            = new WhiteboardMessage().encode().length;
-    /** A reserved port to listen for TCP packets on. */
+    private static final int BUFFER_SIZE = NetMessage.MAX_DATAGRAM_SIZE;
+    /** 
+     * A reserved port to listen for TCP transfers on. Another port is used if 
+     * this one is taken, such as by another instance on the same host.
+     */
     public static final int TCP_PORT = 55558;
     /** A timeout time for sending data over TCP. */
     public static final int TCP_TIMEOUT = 10000;
     /** A reserved port to listen for multicast packets on. */
     public static final int MULTICAST_PORT = 55559;
+    /** The number of threads decoding received packets. */
+    private static final int DECODERS = Math.max(1, 
+            Math.min(4, Runtime.getRuntime().availableProcessors()-1));
     /** A UDP {@link DatagramSocket} to listen for connections on. */
     private DatagramSocket udpServer;
-    /** A TCP {@link Socket} to receive images and large data over. */
-    private ServerSocket tcpServer;
+    /** Receives images and large data over TCP. */
+    private volatile TransferServer transfers;
     /** A port number to listen on. */
     private int port;
     /** The IP address of the host this server is running on. */
     private String hostName;
     /** The {@link Thread} to run this server in the background on. */
     private Thread serverThread;
+    /** Decodes and applies packets once the server thread receives them. */
+    private volatile ReceivePipeline pipeline;
     /** A {@link Thread} to handle the slow redrawing. */
     private Thread redrawThread;
     /** Lets the server continue to execute in the background. */
     private volatile boolean runServer;
     /** Contains a history of all received {@link NetMessage}s. */
-    public static final HashMap<String, NetMessage> messages = 
-            new HashMap<>();
-    /** Holds a buffer of {@link NetMessage}s that need requesting. */
-    private Queue<NetMessage> messageBuffer;
+    public static final MessageStore messages = new MessageStore();
+    /** Asks for lost messages again and limits repeated repairs. */
+    private final RepairTracker repairs = new RepairTracker(messages);
+    /** Every drawing operation on the canvas, in compositing order. */
+    private static final OpLog ops = new OpLog();
+    /** Regions redrawn over recently, oldest first, with when each was. */
+    private final ArrayDeque<Pair<Rectangle, Long>> pasted = 
+            new ArrayDeque<>();
+    /** Decides which packets to drop when simulating packet loss. */
+    private final Random lossRandom = new Random();
+    /** The number of packets dropped to simulate packet loss. */
+    private volatile long simulatedDrops;
+    /** A view over each message unpacked from a batch frame. */
+    private final MessageView batchView = new MessageView();
+    /** Rebuilds lost draw datagrams from peers' parity frames. */
+    private final ParityDecoder parity = new ParityDecoder();
+    /** Waits on images from other hosts without holding up drawing. */
+    private final ExecutorService imageFetcher = 
+            Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "Image fetcher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    /** The most unfinished image downloads kept to resume. */
+    private static final int MAX_DOWNLOADS = 8;
+    /** How many levels coarser than needed an image preview is fetched at. */
+    private static final int PREVIEW_LEVELS = 3;
+    /** The image operations drawn as placeholders, by the key they need. */
+    private final HashMap<Long, ArrayList<WhiteboardMessage>> 
+            awaitingImages = new HashMap<>();
     /** 
-     * A mapping of {@link BufferedImage}s that this {@link Server} knows to
-     * their unique hash codes. 
+     * The image downloads that are running or can be resumed, by the key of 
+     * the level they fetch.
      */
-    public static final HashMap<Integer, BufferedImage> images = 
-            new HashMap<>();
+    private final LinkedHashMap<Long, ImageDownload> downloads = 
+            new LinkedHashMap<Long, ImageDownload>()
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ImageDownload> e)
+        {
+            return size() > MAX_DOWNLOADS;
+        }
+    };
+    /** 
+     * The {@link BufferedImage}s that this {@link Server} knows, by the 
+     * digest of their contents. 
+     */
+    public static final ImageCache images = new ImageCache();
     
     /**
      * Creates a new instance of {@link Server}. This is private to force usage 
@@ -92,7 +152,6 @@ public class Server implements Runnable
         } catch (UnknownHostException ex) {
             this.hostName = "UNKNOWN";
         }
-        this.messageBuffer = new LinkedBlockingQueue<>();
     }
     
     /**
@@ -121,7 +180,6 @@ public class Server implements Runnable
         } catch (UnknownHostException ex) {
             this.hostName = "UNKNOWN";
         }
-        this.messageBuffer = new LinkedBlockingQueue<>();
     }
     
     /**
@@ -207,8 +265,8 @@ public class Server implements Runnable
     }
     
     /**
-     * Opens the {@link DatagramSocket} and starts executing this {@link 
-     * Server} in its background thread.
+     * Opens the {@link DatagramSocket} and {@link TransferServer}, and starts 
+     * executing this {@link Server} in its background thread.
      * 
      * @return Returns true if the server can start, false if it fails for any 
      * reason.
@@ -223,7 +281,27 @@ public class Server implements Runnable
                     ex.getMessage());
             return false;
         }
+        transfers = TransferServer.open(TCP_PORT);
+        if (transfers == null) {
+            serverError("Couldn't create TCP transfer server.");
+            udpServer.close();
+            return false;
+        }
         
+        pipeline = new ReceivePipeline(new ReceivePipeline.Handler()
+        {
+            @Override
+            public void decode(ReceivePipeline.Slot slot) 
+            { 
+                decodePacket(slot); 
+            }
+            
+            @Override
+            public void apply(ReceivePipeline.Slot slot)
+            {
+                processPacket(slot.view, slot.decoded);
+            }
+        }, BUFFER_SIZE, DECODERS);
         serverThread = new Thread(this);
         serverThread.setName("Whiteboard Listener");
         try {
@@ -258,10 +336,12 @@ public class Server implements Runnable
         try {
             if (udpServer != null && !udpServer.isClosed())
                 udpServer.close();
-            if (tcpServer != null && !tcpServer.isClosed())
-                tcpServer.close();
+            if (transfers != null)
+                transfers.close();
             if (serverThread != null)
                 serverThread.join();
+            if (pipeline != null)
+                pipeline.stop();
             if (redrawThread != null) {
                 redrawThread.interrupt();
                 redrawThread.join(500);
@@ -269,68 +349,319 @@ public class Server implements Runnable
         } catch (InterruptedException iEx) {
             serverError("Server interrupted during shutdown!%n%s", 
                     iEx.getMessage());
-        } catch (IOException ioEx) {
-            serverError("Failed to close server.%n%s", ioEx.getMessage());
         }
         serverMessage("Server stopped", hostName, port);
     }
     
+    /**
+     * Describes how many packets each stage of the receive pipeline has 
+     * handled and how long each stage has taken, along with how many were 
+     * dropped to simulate packet loss.
+     * 
+     * @return The pipeline statistics as a String.
+     * @since 1.17
+     */
+    public String getPipelineStats()
+    {
+        ReceivePipeline p = pipeline;
+        if (p == null) return "Server not running.";
+        return String.format("%s%nSimulated loss: %d dropped", p, 
+                simulatedDrops);
+    }
+    
+    /**
+     * Decodes the drawing messages in a received packet ahead of the apply 
+     * stage. This runs on several decode threads at once, so it only decodes 
+     * and leaves every change to {@link Server#processPacket(MessageView, 
+     * List)}. A message whose style is described by a packet being decoded 
+     * on another thread may fail here; it is decoded again when applied.
+     * 
+     * @param slot The {@link ReceivePipeline.Slot} holding the packet.
+     * @since 1.17
+     */
+    private void decodePacket(ReceivePipeline.Slot slot)
+    {
+        MessageView view = slot.view;
+        MessageType t = view.getType();
+        if (t == MessageType.DRAW) {
+            slot.decoded.add(view.materialise());
+        } else if (t == MessageType.BATCH) {
+            MessageView entry = new MessageView();
+            ByteBuffer buf = view.getBuffer();
+            int end = view.getOffset()+view.getLength();
+            int next = view.getOffset()+MessageBatcher.HEADER_SIZE;
+            while ((next = MessageBatcher.nextEntry(buf, next, end, entry)) 
+                    != -1) {
+                slot.decoded.add((entry.getType() == MessageType.DRAW) 
+                        ? entry.materialise() : null);
+            }
+        }
+    }
+    
     /**
      * Processes a received packet and handles the contained message in the 
-     * correct way for its {@link MessageType}.
+     * correct way for its {@link MessageType}. The packet is inspected in 
+     * place through a {@link MessageView}; a {@link NetMessage} is only 
+     * decoded once the packet is known to be needed.
      * 
-     * @param buffer The byte buffer of the packet to handle.
+     * @param view The {@link MessageView} over the packet to handle.
      * @return Returns true if the packet could be processed, false if the 
      * packet was invalid of if the packet was dropped due to simulated packet 
      * loss.
      * @since 1.2
      */
-    private boolean processPacket(byte[] buffer)
+    private boolean processPacket(MessageView view)
+    {
+        return processPacket(view, null);
+    }
+    
+    /**
+     * Processes a received packet, using drawing messages that were already 
+     * decoded by the receive pipeline where there are any.
+     * 
+     * @param view The {@link MessageView} over the packet to handle.
+     * @param decoded The drawing messages decoded from the packet in order, 
+     * or null to decode them here. Entries that failed to decode are null.
+     * @return Returns true if the packet could be processed, false if the 
+     * packet was invalid of if the packet was dropped due to simulated packet 
+     * loss.
+     * @since 1.17
+     */
+    private boolean processPacket(MessageView view, List<NetMessage> decoded)
     {
         NetMessage msg;
-        MessageType t = NetMessage.getMessageType(buffer);
+        MessageType t = view.getType();
         if (t == null) {
             serverMessage("Received an unknown message type. Ignored.");
             return false;
         }
         switch (t) {
             case DRAW:
-                msg = WhiteboardMessage.decode(buffer);
-                int ranVal = new Random().nextInt(100);
-                if (PACKET_LOSS > 0 && ranVal <= PACKET_LOSS) {
-                    serverMessage("Dropped a packet.");
-                    return false;
-                }
-                messages.put(msg.getUniqueID(), msg);
-                if (msg.getRequiredID() != null 
-                        && !messages.containsKey(msg.getRequiredID())) {
-                    if (!messageBuffer.contains(msg))
-                        messageBuffer.add(msg);
-                    System.out.println("Missing a required packet.");
-                    return false;
-                }
-                handleWhiteboardMessage((WhiteboardMessage)msg);
+                if (dropPacket()) return false;
+                parity.record(view);
+                return processDrawPacket(view, 
+                        (decoded == null || decoded.isEmpty()) 
+                                ? null : decoded.get(0));
+            case BATCH:
+                if (dropPacket()) return false;
+                parity.record(view);
+                processBatch(view, decoded);
+                break;
+            case PARITY:
+                if (dropPacket()) return false;
+                processParity(view);
                 break;
             case JOIN:
-                msg = DiscoveryMessage.decode(buffer);
-                handeJoinRequest((DiscoveryMessage)msg);
+                msg = view.materialise();
+                handeJoinRequest((JoinRequest)msg);
                 break;
             case RESPONSE:
-                msg = DiscoveryMessage.decode(buffer);
+                msg = view.materialise();
                 handleDiscoveryResponse((DiscoveryMessage)msg);
                 break;
             case LEAVE:
-                msg = DiscoveryMessage.decode(buffer);
+                msg = view.materialise();
                 handleLeaveRequest((DiscoveryMessage)msg);
                 break;
+            case NACK:
+                msg = view.materialise();
+                handleNack((NackMessage)msg);
+                break;
+            case IMAGE_REQUEST:
+                // Chunk requests are sent straight to the host holding them.
+                msg = view.materialise();
+                Client.getInstance().answerImageRequest(
+                        (ImageRequestMessage)msg);
+                break;
         }
         
         return true;
     }
     
+    /**
+     * Decides whether a received packet should be dropped to simulate packet 
+     * loss.
+     * 
+     * @return Returns true if the packet should be dropped, false otherwise.
+     * @since 1.8
+     */
+    private boolean dropPacket()
+    {
+        int ranVal = lossRandom.nextInt(100);
+        if (PACKET_LOSS > 0 && ranVal <= PACKET_LOSS) {
+            // Counted rather than printed, as this happens for every packet.
+            simulatedDrops++;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Handles drawing traffic that was sent to the multicast group, as if it 
+     * had arrived at this {@link Server}. This covers repairs, and all draw 
+     * datagrams from peers publishing over multicast. The datagram is copied 
+     * into the {@link ReceivePipeline}, so it is decoded and applied on the 
+     * same threads and in the same order as datagrams received directly. 
+     * Other message types are ignored.
+     * 
+     * @param view The {@link MessageView} over the multicast packet.
+     * @since 1.16
+     */
+    public void acceptMulticast(MessageView view)
+    {
+        MessageType t = view.getType();
+        if (t != MessageType.DRAW && t != MessageType.BATCH 
+                && t != MessageType.PARITY)
+            return;
+        ReceivePipeline stages = pipeline;
+        if (stages != null)
+            stages.offer(view.getBuffer(), view.getOffset(), view.getLength());
+    }
+    
+    /**
+     * Decodes and stores a {@link WhiteboardMessage} packet, then applies it.
+     *  Packets that have already been seen are ignored. Any gap the packet 
+     * reveals is left to the {@link RepairTracker}. If a packet refers to a 
+     * style that has not been seen yet, a full copy of it is requested from 
+     * the sender. Synchronised as the state it changes is shared with image 
+     * and canvas transfers finishing on other threads.
+     * 
+     * @param view The {@link MessageView} over the packet to handle.
+     * @param decoded The message already decoded from the packet, or null to 
+     * decode it here.
+     * @return Returns true if the message was applied, false otherwise.
+     * @since 1.8
+     */
+    private synchronized boolean processDrawPacket(MessageView view, 
+            NetMessage decoded)
+    {
+        long id = view.getUniqueID();
+        if (id != MessageID.NONE && messages.containsKey(id))
+            return false; // Already applied or waiting in the buffer.
+        NetMessage msg = (decoded != null) ? decoded : view.materialise();
+        if (msg == null) {
+            serverError("Could not decode WhiteboardMessage");
+            repairs.request(id);
+            return false;
+        }
+        messages.put(msg.getUniqueID(), msg);
+        repairs.onReceived(msg.getUniqueID());
+        handleWhiteboardMessage((WhiteboardMessage)msg);
+        return true;
+    }
+    
+    /**
+     * Unpacks a {@link MessageType#BATCH} frame and handles each message in 
+     * it in the order it was packed. Simulated packet loss applies to the 
+     * frame as a whole, not to each message inside it. Synchronised like the 
+     * other handlers that change the stored messages.
+     * 
+     * @param view The {@link MessageView} over the batch frame.
+     * @param decoded The messages already decoded from each entry of the 
+     * frame, or null to decode them here.
+     * @since 1.8
+     */
+    private synchronized void processBatch(MessageView view, 
+            List<NetMessage> decoded)
+    {
+        ByteBuffer buf = view.getBuffer();
+        int end = view.getOffset()+view.getLength();
+        int next = view.getOffset()+MessageBatcher.HEADER_SIZE;
+        int index = 0;
+        while ((next = MessageBatcher.nextEntry(buf, next, end, batchView)) 
+                != -1) {
+            NetMessage pre = (decoded != null && index < decoded.size()) 
+                    ? decoded.get(index) : null;
+            index++;
+            MessageType t = batchView.getType();
+            if (t == MessageType.DRAW)
+                processDrawPacket(batchView, pre);
+            else if (t != null && t != MessageType.BATCH)
+                processPacket(batchView);
+        }
+    }
+    
+    /**
+     * Rebuilds a lost draw datagram from a {@link MessageType#PARITY} frame 
+     * if it is the only one of its group that did not arrive, then handles it 
+     * as if it had been received.
+     * 
+     * @param view The {@link MessageView} over the parity frame.
+     * @since 1.15
+     */
+    private synchronized void processParity(MessageView view)
+    {
+        byte[] lost = parity.recover(view);
+        if (lost == null) return;
+        
+        serverMessage("Rebuilt a lost packet from parity.");
+        MessageView rebuilt = new MessageView();
+        rebuilt.wrap(ByteBuffer.wrap(lost), 0, lost.length);
+        if (rebuilt.getType() == MessageType.DRAW)
+            processDrawPacket(rebuilt, null);
+        else if (rebuilt.getType() == MessageType.BATCH)
+            processBatch(rebuilt, null);
+    }
+    
+    /**
+     * Records a {@link NetMessage} created by this instance of the program, 
+     * which has already been drawn locally. The message is stored so it can 
+     * be resent, and drawing messages are added to the {@link OpLog}.
+     * 
+     * @param msg The {@link NetMessage} to record.
+     * @since 1.12
+     */
+    public static void addLocalMessage(NetMessage msg)
+    {
+        messages.put(msg.getUniqueID(), msg);
+        if (!(msg instanceof WhiteboardMessage)) return;
+        
+        WhiteboardCanvas canvas = WhiteboardGUI.getInstance().getCanvas();
+        if (canvas != null)
+            getInstance().recordLocalOp(canvas, (WhiteboardMessage)msg);
+    }
+    
+    /**
+     * Adds an operation drawn by this instance of the program to the {@link 
+     * OpLog}. The operation is already on the canvas, so it is only drawn 
+     * again where a late operation from another host has had its region 
+     * redrawn over it since, which may have wiped it before it was in the 
+     * log. Synchronised so it cannot happen part way through such a redraw.
+     * 
+     * @param canvas The {@link WhiteboardCanvas} the operation was drawn on.
+     * @param op The local {@link WhiteboardMessage} to record.
+     * @since 1.28
+     */
+    private synchronized void recordLocalOp(WhiteboardCanvas canvas, 
+            WhiteboardMessage op)
+    {
+        Rectangle area = getArea(canvas, op);
+        ops.insert(op, area);
+        
+        Rectangle lost = null;
+        long now = System.currentTimeMillis();
+        Iterator<Pair<Rectangle, Long>> it = pasted.iterator();
+        while (it.hasNext()) {
+            Pair<Rectangle, Long> p = it.next();
+            if (now-p.Right > PASTE_HOLD_MS) {
+                it.remove();
+            } else if (p.Left.intersects(area)) {
+                Rectangle part = p.Left.intersection(area);
+                lost = (lost == null) ? part : lost.union(part);
+            }
+        }
+        if (lost != null) paintRegion(canvas, lost);
+    }
+    
     /**
      * Processes a {@link WhiteboardMessage} and ensures that the action 
      * described by the message is sent to the right component of this program.
+     * Messages are placed in the {@link OpLog}; a message that belongs on top 
+     * is drawn straight onto the canvas, while a message that arrived late 
+     * has the region it covers redrawn from the log so it ends up at the 
+     * right depth. An image that has not been seen before is drawn as a 
+     * placeholder straight away and fetched in the background, as is a 
+     * finer level of an image only held too coarse for its scale.
      * 
      * @param msg The {@link WhiteboardMessage} received that needs processing.
      * @since 1.1
@@ -346,11 +677,270 @@ public class Server implements Runnable
             serverError("No Whiteboard canvas could be found.");
             return;
         }
+        LamportClock.observe(msg.getClock());
+        
+        if (msg.mode == DrawMode.IMAGE) {
+            int need = ImageCache.levelFor(msg.imageScale);
+            int held = images.bestLevel(msg.imageHash);
+            if (held < 0 || held > need) fetchImage(msg, need);
+        }
+        Rectangle area = getArea(canvas, msg);
+        if (ops.insert(msg, area) && !ops.isUnderBase(msg)) {
+            drawMessage(canvas.getSurface(), msg);
+            canvas.repaint(area);
+        } else {
+            redrawRegion(canvas, area);
+        }
+    }
+        
+    /**
+     * Redraws every operation that overlaps a region of the canvas, and 
+     * remembers the region for a while so that local drawing not yet in the 
+     * {@link OpLog} can be put back over it.
+     * 
+     * @param canvas The {@link WhiteboardCanvas} to redraw part of.
+     * @param area The region of the canvas to redraw.
+     * @since 1.18
+     */
+    private void redrawRegion(WhiteboardCanvas canvas, Rectangle area)
+    {
+        paintRegion(canvas, area);
+        if (pasted.size() >= MAX_PASTED) pasted.removeFirst();
+        pasted.addLast(new Pair<>(new Rectangle(area), 
+                System.currentTimeMillis()));
+    }
+    
+    /**
+     * Redraws every operation that overlaps a region of the canvas off 
+     * screen, in drawing order, then copies the result onto the canvas.
+     * 
+     * @param canvas The {@link WhiteboardCanvas} to redraw part of.
+     * @param area The region of the canvas to redraw.
+     * @since 1.28
+     */
+    private void paintRegion(WhiteboardCanvas canvas, Rectangle area)
+    {
+        CanvasLayer layer = canvas.createLayer(area);
+        drawOps(canvas, layer, ops.getOverlapping(area), 0);
+        canvas.pasteLayer(layer);
+    }
+    
+    /**
+     * Draws operations in drawing order onto a canvas or canvas layer, with 
+     * the base image of the canvas drawn over every operation that happened 
+     * before it was copied.
+     * 
+     * @param canvas The {@link WhiteboardCanvas} whose base image is used.
+     * @param target The surface of the canvas, or a layer of it, to draw 
+     * onto.
+     * @param list The {@link WhiteboardMessage}s to draw, in drawing order.
+     * @param ms The delay between drawing operations in milliseconds. When 
+     * this is above zero the canvas is repainted after each operation.
+     * @return Returns true if every operation was drawn, false if the thread 
+     * was interrupted while waiting.
+     * @since 1.24
+     */
+    private boolean drawOps(WhiteboardCanvas canvas, CanvasLayer target, 
+            List<WhiteboardMessage> list, int ms)
+    {
+        boolean based = false;
+        for (WhiteboardMessage op : list) {
+            if (!based && !ops.isUnderBase(op)) {
+                canvas.drawBase(target);
+                based = true;
+            }
+            drawMessage(target, op);
+            if (ms <= 0) continue;
+            canvas.repaint();
+            try { Thread.sleep(ms); } 
+            catch (InterruptedException ex) { return false; }
+        }
+        if (!based) canvas.drawBase(target);
+        return true;
+    }
+    
+    /**
+     * Gets the region of the canvas an operation draws over, using the finest 
+     * level held of the image drawn by an image operation.
+     * 
+     * @param canvas The {@link WhiteboardCanvas} the operation is drawn on.
+     * @param op The {@link WhiteboardMessage} to measure.
+     * @return The region covered as a {@link Rectangle}.
+     * @since 1.23
+     */
+    private static Rectangle getArea(WhiteboardCanvas canvas, 
+            WhiteboardMessage op)
+    {
+        Pair<BufferedImage, Integer> held = (op.mode == DrawMode.IMAGE) 
+                ? heldImage(op.imageHash) : null;
+        if (held == null) return canvas.getArea(op, null);
+        return canvas.getArea(op, held.Left, held.Right);
+    }
+    
+    /**
+     * Gets the finest level of an image held in the {@link ImageCache}.
+     * 
+     * @param hash The {@link ImageCache} key of the image.
+     * @return The image and its level, or null if no level is held.
+     * @since 1.23
+     */
+    private static Pair<BufferedImage, Integer> heldImage(long hash)
+    {
+        int level = images.bestLevel(hash);
+        if (level < 0) return null;
+        BufferedImage img = images.get(ImageCache.levelKey(hash, level));
+        return (img == null) ? null : new Pair<>(img, level);
+    }
+    
+    /**
+     * Fetches the image for an image operation from the other hosts over TCP 
+     * in the background. Operations waiting on the same image share a single 
+     * fetch, while fetches of different images run at the same time. Only 
+     * the level of the image needed for the scale it is drawn at is fetched. 
+     * If no level of the image is held yet, a much coarser level is fetched 
+     * first as a preview, which is small enough to arrive almost at once and 
+     * is drawn in place of the placeholder until the needed level arrives.
+     * 
+     * @param op The image {@link WhiteboardMessage} waiting for its image.
+     * @param need The {@link ImageCache} level needed to draw the operation.
+     * @since 1.12
+     */
+    private synchronized void fetchImage(WhiteboardMessage op, final int need)
+    {
+        final long hash = op.imageHash;
+        final TransferServer server = transfers;
+        if (server == null) return;
+        ArrayList<WhiteboardMessage> waiting = awaitingImages.get(hash);
+        if (waiting != null) {
+            // A finer level is fetched again once this fetch finishes.
+            waiting.add(op);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(op);
+        awaitingImages.put(hash, waiting);
+        final int preview = (images.bestLevel(hash) < 0) 
+                ? Math.min(need+PREVIEW_LEVELS, ImageCache.MAX_LEVEL) : need;
+        
+        imageFetcher.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (preview > need) {
+                    BufferedImage img = fetchLevel(server, hash, preview);
+                    imageArrived(hash, img, preview, false);
+                }
+                BufferedImage img = fetchLevel(server, hash, need);
+                imageArrived(hash, img, need, true);
+            }
+        });
+    }
+    
+    /**
+     * Fetches a level of an image in chunks from every host holding it, and 
+     * adds it to the {@link ImageCache}. The {@link ImageDownload} is kept if 
+     * it fails so the next fetch of the level resumes it. The full image is 
+     * checked against its key; smaller levels are made by the hosts sending 
+     * them, so they are only checked against the {@link ChunkMap} offered.
+     * 
+     * @param server The {@link TransferServer} to receive the chunks with.
+     * @param hash The {@link ImageCache} key of the full image.
+     * @param level The {@link ImageCache} level to fetch.
+     * @return The level of the image, or null if it could not be fetched.
+     * @since 1.23
+     */
+    private BufferedImage fetchLevel(TransferServer server, long hash, 
+            int level)
+    {
+        long key = ImageCache.levelKey(hash, level);
+        ImageDownload download;
+        synchronized (this) {
+            download = downloads.get(key);
+            if (download == null) {
+                download = new ImageDownload(hash, level);
+                downloads.put(key, download);
+            }
+        }
+        
+        byte[] png = download.run(server, Client.getInstance());
+        BufferedImage img = decodeImage(png);
+        if (img != null && level == 0 && ImageCache.digest(img) != hash) {
+            serverError("Image %016x does not match its key.", hash);
+            img = null;
+        }
+        if (png != null) {
+            // Finished, or finished wrong and must start again.
+            synchronized (this) {
+                downloads.remove(key);
+            }
+        }
+        if (img != null) {
+            images.put(key, img, png);
+            serverMessage("Cached new image (%016x level %d)", hash, level);
+        }
+        return img;
+    }
+    
+    /**
+     * Replaces the placeholders, or previews, of every operation waiting on 
+     * an image once a level of it arrives. The region each operation covers 
+     * is redrawn from the {@link OpLog}, so the image lands at the right 
+     * depth under anything drawn after it. Once the last level arrives, any 
+     * operation drawn at a larger scale than it covers fetches a finer level. 
+     * If the image could not be fetched what is drawn is left, and the next 
+     * operation using the image tries again.
+     * 
+     * @param hash The {@link ImageCache} key of the image.
+     * @param img The level of the image as a {@link BufferedImage}, or null 
+     * if it could not be received.
+     * @param level The {@link ImageCache} level that arrived.
+     * @param last Whether this is the last level of this fetch, rather than a 
+     * preview.
+     * @since 1.18
+     */
+    private synchronized void imageArrived(long hash, BufferedImage img, 
+            int level, boolean last)
+    {
+        ArrayList<WhiteboardMessage> waiting = last 
+                ? awaitingImages.remove(hash) : awaitingImages.get(hash);
+        if (img == null) {
+            if (last) serverError("Could not fetch image (%016x)", hash);
+            return;
+        }
+        
+        WhiteboardCanvas canvas = WhiteboardGUI.getInstance().getCanvas();
+        if (canvas == null || waiting == null) return;
+        for (WhiteboardMessage op : waiting) {
+            Rectangle area = getArea(canvas, op);
+            Rectangle old = ops.setArea(op, area);
+            redrawRegion(canvas, (old == null) ? area : old.union(area));
+        }
+        if (!last) return;
+        for (WhiteboardMessage op : waiting) {
+            int need = ImageCache.levelFor(op.imageScale);
+            if (need < level) fetchImage(op, need);
+        }
+    }
+    
+    /**
+     * Draws a {@link WhiteboardMessage} onto the surface of the canvas or a 
+     * layer of it. Nothing is repainted.
+     * 
+     * @param canvas The {@link CanvasLayer} to draw onto.
+     * @param msg The {@link WhiteboardMessage} to draw.
+     * @since 1.12
+     */
+    private void drawMessage(CanvasLayer canvas, WhiteboardMessage msg)
+    {
         switch (msg.mode) {
             case LINE:
+                canvas.drawLine(msg.startPoint, msg.endPoint, 
+                        msg.drawColour, msg.lineWeight);
+                break;
             case POLYGON:
             case FREEFORM_LINE:
-                canvas.drawLine(msg.startPoint, msg.endPoint, 
+                canvas.drawPath(msg.points, msg.mode == DrawMode.POLYGON, 
                         msg.drawColour, msg.lineWeight);
                 break;
             case RECTANGLE:
@@ -370,20 +960,16 @@ public class Server implements Runnable
                         msg.hasBorder, msg.borderWeight, msg.borderCol);
                 break;
             case TEXT:
-                canvas.drawText(msg.textChar, msg.startPoint, msg.font, 
+                canvas.drawText(msg.text, msg.startPoint, msg.font, 
                         msg.drawColour);
                 break;
             case IMAGE:
-                BufferedImage i = images.get(msg.imageHash);
-                if (i == null) {
-                    serverMessage("Preparing to receive image.");
-                    Client.getInstance().requestImage(msg.imageHash);
-                    i = receiveImage();
-                    if (i == null) return;
-                    images.put(msg.imageHash, i);
-                    serverMessage("Cached new image (%d)", msg.imageHash);
-                }
-                canvas.drawImage(msg.startPoint, i, msg.imageScale);
+                Pair<BufferedImage, Integer> i = heldImage(msg.imageHash);
+                if (i != null)
+                    canvas.drawImage(msg.startPoint, i.Left, msg.imageScale, 
+                            i.Right);
+                else
+                    canvas.drawPlaceholder(msg.startPoint);
                 break;
             default:
                 serverError("Unknown drawmode.");
@@ -391,39 +977,26 @@ public class Server implements Runnable
     }
     
     /**
-     * Receives data from a TCP connection. This will be used when sending large
-     *  amounts of data between two instances of the whiteboard due to the 
-     * limitations of UDP communication.
+     * Decodes an image that arrived through the {@link TransferServer}. This 
+     * will be used when sending large amounts of data between two instances 
+     * of the whiteboard due to the limitations of UDP communication.
      * 
-     * @return Returns the {@link InputStream} for this {@link Socket} to read 
-     * data from.
+     * @param data The data received, or null if none arrived.
+     * @return Returns the {@link BufferedImage} received, or null if none 
+     * arrived or it could not be read.
      * @since 1.3
      */
-    private BufferedImage receiveImage()
+    private BufferedImage decodeImage(byte[] data)
     {   
-        try {
-            tcpServer = new ServerSocket(TCP_PORT);
-            tcpServer.setSoTimeout(TCP_TIMEOUT);
-        } catch (IOException ex) {
-            serverError("Couldn't set up TCP server.%n%s", ex.getMessage());
-            return null;
-        }
+        if (data == null) return null;
         
-        try (Socket sock = tcpServer.accept()) {
-            serverMessage("Received socket connection.");
-            return ImageIO.read(sock.getInputStream());
-        } catch (SocketTimeoutException sEx) {
-            serverError("Socket timed out receiving image.");
+        try {
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+            if (img == null)
+                serverError("Data received was not an image.");
+            return img;
         } catch (IOException ex) {
-            serverError("Error receiving TCP data.%n%s", ex.getMessage());
-        } finally {
-            try {
-                if (tcpServer != null && !tcpServer.isClosed())
-                    tcpServer.close();
-            } catch (IOException closeEx) {
-                serverError("Couldm't close TCP server.%n%s", 
-                        closeEx.getMessage());
-            }
+            serverError("Error reading TCP data.%n%s", ex.getMessage());
         }
         
         return null;
@@ -438,10 +1011,11 @@ public class Server implements Runnable
      * of the application.
      * @since 1.3
      */
-    private void handleDiscoveryResponse(DiscoveryMessage msg)
+    private void handleDiscoveryResponse(final DiscoveryMessage msg)
     {
         Client client = Client.getInstance();
         WhiteboardCanvas canvas = WhiteboardGUI.getInstance().getCanvas();
+        final TransferServer server = transfers;
         if (msg == null) {
             serverError("Could not decode DiscoveryMessage");
             return;
@@ -454,6 +1028,10 @@ public class Server implements Runnable
             serverError("Could not get whiteboard canvas.");
             return;
         }
+        if (server == null) {
+            serverError("Server is not running.");
+            return;
+        }
         
         String newName = msg.Name;
         String newIP = msg.IP;
@@ -462,13 +1040,78 @@ public class Server implements Runnable
                 newPort);
         
         client.addHost(host);
+        client.addOrigin(msg.Node, msg.IP, msg.Port);
         serverMessage("Requesting canvas from host %s:%d.", msg.IP, msg.Port);
+        // Lost messages are not asked for until the canvas arrives, as it 
+        // already holds most of them.
+        repairs.hold();
+        final TransferServer.Transfer transfer = server.expect();
         client.sendMessage(new JoinRequest(client.getClientName(), hostName, 
-                TCP_PORT), host.Two, host.Three);
+                server.getPort(), transfer.ID), host.Two, host.Three);
             
-        BufferedImage image = receiveImage();
+        imageFetcher.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                byte[] data = server.await(transfer, TCP_TIMEOUT);
+                canvasArrived(msg, data);
+            }
+        });
+    }
+    
+    /**
+     * Draws the copy of the canvas sent by a host this {@link Server} asked 
+     * to join through. The copy becomes the base image of the canvas, placed 
+     * in the {@link OpLog} at the {@link LamportClock} tick it was copied at, 
+     * so older operations fetched afterwards are drawn under it. Messages the 
+     * copy already holds are marked as held in the {@link MessageStore}, so 
+     * only messages after the copy are asked for from each node, rather than 
+     * its whole history being fetched and drawn under the copy one at a time.
+     * 
+     * @param msg The {@link DiscoveryMessage} from the host that sent it.
+     * @param data The tick the canvas was copied at, the sequence numbers 
+     * each node's messages are held in the copy up to, and then the encoded 
+     * canvas, or null if it could not be received.
+     * @since 1.19
+     */
+    private synchronized void canvasArrived(DiscoveryMessage msg, 
+            byte[] data)
+    {
+        WhiteboardCanvas canvas = WhiteboardGUI.getInstance().getCanvas();
+        BufferedImage image = null;
+        int clock = 0;
+        int[] floors = null;
+        if (data != null && data.length > 8) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            clock = buf.getInt();
+            int nodes = buf.getInt();
+            if (nodes >= 0 && nodes <= buf.remaining()/8) {
+                floors = new int[nodes*2];
+                buf.asIntBuffer().get(floors);
+                int start = buf.position()+floors.length*4;
+                image = decodeImage(
+                        Arrays.copyOfRange(data, start, data.length));
+            }
+        }
+        if (image == null || canvas == null) {
+            serverError("Could not get canvas from host %s:%d.", msg.IP, 
+                    msg.Port);
+            repairs.release();
+            return;
+        }
         serverMessage("Received canvas from host %s:%d.", msg.IP, msg.Port);
-        canvas.drawImage(new Point(), image, 1.0f);
+        for (int i = 0; i < floors.length; i += 2)
+            messages.setFloor(floors[i], floors[i+1]);
+        repairs.release();
+        LamportClock.observe(clock);
+        ops.setBaseClock(clock);
+        canvas.setBaseImage(image);
+        // Operations may have arrived while the canvas was on its way, so 
+        // build the whole canvas again rather than drawing the copy on top.
+        BufferedImage current = canvas.getBufferedImage();
+        redrawRegion(canvas, new Rectangle(0, 0, current.getWidth(), 
+                current.getHeight()));
     }
     
     /**
@@ -476,20 +1119,52 @@ public class Server implements Runnable
      * Whiteboard network by sending a copy of the current {@link 
      * WhiteboardCanvas} over TCP to update that client.
      * 
-     * @param msg The {@link DiscoveryMessage} from the {@link Client} trying to
+     * @param msg The {@link JoinRequest} from the {@link Client} trying to
      *  join this distributed network.
      * @since 1.3
      */
-    private void handeJoinRequest(DiscoveryMessage msg)
+    private void handeJoinRequest(JoinRequest msg)
     {
         if (msg == null) {
             serverError("JoinRequest was incorrectly formed.");
             return;
         }
         serverMessage("Sending canvas to host %s:%d.", msg.IP, msg.Port);
-        BufferedImage canvas = 
-                WhiteboardGUI.getInstance().getCanvas().getBufferedImage();
-        Client.sendImage(canvas, new Pair<>(msg.IP, msg.Port));
+        int clock;
+        int[] floors;
+        BufferedImage canvas;
+        // Remote messages are stored and drawn under this lock, so every 
+        // message counted as held has been drawn on the copy.
+        synchronized (this) {
+            // Every operation drawn so far is at or before this tick.
+            clock = LamportClock.current();
+            floors = messages.getFloors();
+            canvas = WhiteboardGUI.getInstance().getCanvas().getBufferedImage();
+        }
+        Client.sendCanvas(canvas, clock, floors, new Pair<>(msg.IP, msg.Port), 
+                msg.TransferID);
+    }
+    
+    /**
+     * Answers a {@link NackMessage} by resending every requested message this 
+     * {@link Server} holds, unless it was resent to the same host very 
+     * recently.
+     * 
+     * @param msg The {@link NackMessage} listing the missing messages.
+     * @since 1.13
+     */
+    private void handleNack(NackMessage msg)
+    {
+        if (msg == null) return;
+        
+        ArrayList<NetMessage> found = new ArrayList<>();
+        for (long id : msg.getIDs()) {
+            NetMessage stored = messages.get(id);
+            if (stored != null 
+                    && repairs.shouldRepair(id, msg.SourceIP, msg.SourcePort))
+                found.add(stored);
+        }
+        Client.getInstance().sendRepairs(found, msg.SourceIP, msg.SourcePort);
     }
     
     /**
@@ -512,6 +1187,9 @@ public class Server implements Runnable
     
     /**
      * Slowly redraws all the previous messages this {@link Server} has stored.
+     * Messages are replayed from the {@link OpLog}, so every host replays the 
+     * same messages in the same order, with the canvas copied when joining 
+     * drawn in at its place among them.
      * 
      * @param ms The delay between drawing operations in milliseconds.
      * @since 1.5
@@ -523,51 +1201,14 @@ public class Server implements Runnable
             @Override
             public void run()
             {
-                String lastID = null;
                 System.out.println("Redrawing...");
-                WhiteboardGUI.getInstance().getCanvas().clearCanvas();
-                HashSet<String> handledIDS = new HashSet<>();
-                boolean missingMessage = false;
-                boolean complete = false;
-                boolean allowNull = true;
-                while (!complete) {
-                    complete = true;
-                    for (NetMessage message : messages.values()) {
-                        // We don't care about messages we've handled already.
-                        if (!handledIDS.contains(message.getUniqueID())) {
-                            complete = false;
-                        } else 
-                            continue;
-                        
-                        missingMessage = true;
-                        if (allowNull && message.getRequiredID() == null
-                                || (lastID != null 
-                                    && message.getRequiredID() != null
-                                    && message.getRequiredID().equals(lastID)
-                                    && message instanceof WhiteboardMessage)) {
-                            // If we just accepted a null required message stop
-                            // accepting others.
-                            if (allowNull && message.getRequiredID() == null)
-                                allowNull = false;
-                            
-                            handleWhiteboardMessage((WhiteboardMessage)message);
-                            lastID = message.getUniqueID();
-                            missingMessage = false;
-                            handledIDS.add(message.getUniqueID());
-                            break;
-                        }
-                    }
-                    // If we're blocking null messages but can't find a message,
-                    // it might be worth allowing null required messages again.
-                    if (!allowNull && missingMessage) allowNull = true;
-                    
-                    if (missingMessage && lastID != null) {
-                        Client.getInstance().requestPacket(lastID);
-                    }
-                    // Wait a few ms.
-                    try { Thread.sleep(ms); } 
-                    catch (InterruptedException ex) { return; }
-                }
+                WhiteboardCanvas canvas = 
+                        WhiteboardGUI.getInstance().getCanvas();
+                canvas.clearCanvas();
+                boolean done = drawOps(canvas, canvas.getSurface(), 
+                        ops.values(), ms);
+                canvas.repaint();
+                if (!done) return;
                 System.out.println("Finished redrawing.");
             }
         });
@@ -617,8 +1258,10 @@ public class Server implements Runnable
     }
     
     /**
-     * Listens for incoming UDP connections in the background and responds to 
-     * them as appropriate.
+     * Listens for incoming UDP connections in the background. Each packet is 
+     * received straight into the {@link ReceivePipeline}, which decodes and 
+     * applies it on other threads, so this thread only ever waits on the 
+     * socket. If the pipeline is full the packet is dropped.
      * 
      * @since 1.0
      */
@@ -626,26 +1269,16 @@ public class Server implements Runnable
     public void run()
     {
         runServer = true;
-        byte[] buffer;
-        DatagramPacket packet;
-        ArrayList<NetMessage> toRemove = new ArrayList<>();
+        ReceivePipeline stages = pipeline;
+        ReceivePipeline.Slot slot = stages.spare();
+        DatagramPacket packet = new DatagramPacket(slot.data, BUFFER_SIZE);
         
         serverMessage("Listening for connections...");
         while(runServer) {
-            for (NetMessage head : messageBuffer) {
-                if (!processPacket(head.encode())) 
-                    Client.getInstance().requestPacket(head.getRequiredID());
-                else {
-                    toRemove.add(head);
-                }
-            }
-            messageBuffer.removeAll(toRemove);
-            toRemove.clear();
             try {
-                buffer = new byte[BUFFER_SIZE];
-                packet = new DatagramPacket(buffer, BUFFER_SIZE);
+                packet.setData(slot.data);
                 udpServer.receive(packet);
-                processPacket(buffer);
+                slot = stages.publish(slot, packet.getLength());
             } catch (IOException ioEx) {
                 // Only print errors while the server is running.
                 if (runServer) {
@@ -0,0 +1,260 @@
+package distributedwhiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import static distributedwhiteboard.Conversions.*;
+
+/**
+ * A dictionary of the drawing styles used by {@link WhiteboardMessage}s. Each
+ * node numbers the styles it draws with, a style is described in full the
+ * first time it is broadcast and is referred to by its number after that.
+ * Receivers keep the styles announced by every node they hear from.
+ * <p>
+ * A style reference is written as a varint holding the style number shifted
+ * left by two, with the lowest bit set if the full {@link Style} follows. A
+ * message that must make sense on its own, such as a repair, may be sent by a
+ * node other than the one that drew it, so it never uses a style number. It
+ * sets the second bit instead, and the full style follows without being
+ * stored by the receiver. A style is described again every {@link StyleTable#REANNOUNCE_EVERY} uses, and
+ *  whenever the set of peers changes, so peers that missed a description can
+ * catch up without asking for it.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class StyleTable
+{
+    /** The singleton instance of this {@link StyleTable}. */
+    private static StyleTable INSTANCE;
+    /** How many broadcast uses of a style before it is described again. */
+    public static final int REANNOUNCE_EVERY = 32;
+    /** Bit set in a style reference when the full style follows. */
+    private static final int DEFINE_FLAG = 0x01;
+    /** Bit set in a style reference when the style is only for this message. */
+    private static final int INLINE_FLAG = 0x02;
+    /** Bit set in an encoded style when the style has a {@link Font}. */
+    private static final int HAS_FONT = 0x01;
+    
+    /** The numbers given to the styles this node has drawn with. */
+    private final HashMap<Style, Integer> localIDs;
+    /** How many times each local style has been broadcast, by number. */
+    private final ArrayList<Integer> uses;
+    /** Styles announced by every node, keyed by node and style number. */
+    private final HashMap<Long, Style> remote;
+    
+    /**
+     * Creates a new, empty {@link StyleTable}. This is private to force usage
+     * of {@link StyleTable#getInstance()}.
+     */
+    private StyleTable()
+    {
+        this.localIDs = new HashMap<>();
+        this.uses = new ArrayList<>();
+        this.remote = new HashMap<>();
+    }
+    
+    /**
+     * Gets the singleton instance for the {@link StyleTable} if one exists. If
+     * no such instance exists, one will be created.
+     * 
+     * @return Returns the singleton instance of {@link StyleTable}.
+     * @since 1.0
+     */
+    public static synchronized StyleTable getInstance()
+    {
+        if (StyleTable.INSTANCE == null)
+            StyleTable.INSTANCE = new StyleTable();
+        
+        return StyleTable.INSTANCE;
+    }
+    
+    /**
+     * Writes a reference to a {@link Style}. A broadcast gives the style a 
+     * number if this node has not used it before, and only writes the full 
+     * style when peers may not know it yet. Any other encoding writes the 
+     * full style inline, as the message may be sent on behalf of another 
+     * node whose numbering this node does not know.
+     * 
+     * @param buf The {@link ByteBuffer} to write to.
+     * @param style The {@link Style} to write.
+     * @param broadcast Set to true if this encoding is going to every peer as
+     * part of the normal broadcast of a message drawn by this node. Set to 
+     * false for a message that must make sense on its own, such as a repair.
+     * @since 1.0
+     */
+    public synchronized void putStyle(ByteBuffer buf, Style style,
+            boolean broadcast)
+    {
+        if (!broadcast) {
+            putVarInt(buf, INLINE_FLAG);
+            style.encode(buf);
+            return;
+        }
+        
+        Integer id = localIDs.get(style);
+        boolean define = false;
+        if (id == null) {
+            id = uses.size();
+            localIDs.put(style, id);
+            uses.add(0);
+        }
+        int count = uses.get(id);
+        if (count % REANNOUNCE_EVERY == 0) define = true;
+        uses.set(id, count+1);
+        
+        putVarInt(buf, (id << 2) | (define ? DEFINE_FLAG : 0));
+        if (define) style.encode(buf);
+    }
+    
+    /**
+     * Reads a style reference written by {@link
+     * StyleTable#putStyle(java.nio.ByteBuffer, StyleTable.Style, boolean)},
+     * storing the full {@link Style} if one was defined. An inline style is 
+     * returned without being stored.
+     * 
+     * @param buf The {@link ByteBuffer} to read from.
+     * @param node The node number of the message the reference came from.
+     * @return The referenced {@link Style}, or null if the style has never
+     * been described by that node.
+     * @since 1.0
+     */
+    public synchronized Style getStyle(ByteBuffer buf, int node)
+    {
+        int ref = getVarInt(buf);
+        if ((ref & INLINE_FLAG) != 0) return Style.decode(buf);
+        Long key = MessageID.pack(node, ref >>> 2);
+        if ((ref & DEFINE_FLAG) != 0) {
+            Style style = Style.decode(buf);
+            remote.put(key, style);
+            return style;
+        }
+        return remote.get(key);
+    }
+    
+    /**
+     * Makes every local style be described in full the next time it is
+     * broadcast. This is used when new peers join, as they will not have seen
+     * any earlier descriptions.
+     * 
+     * @since 1.0
+     */
+    public synchronized void resetAnnouncements()
+    {
+        for (int i = 0; i < uses.size(); i++)
+            uses.set(i, 0);
+    }
+    
+    /**
+     * The colours, weight and {@link Font} a {@link WhiteboardMessage} is drawn
+     *  with. The weight is the line weight for lines and paths, and the border
+     * weight for rectangles.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    public static final class Style
+    {
+        /** The main drawing {@link Color}. */
+        public final Color colour;
+        /** The border {@link Color}, or null if there is none. */
+        public final Color border;
+        /** The line or border weight. */
+        public final int weight;
+        /** The {@link Font} for text, or null if there is none. */
+        public final Font font;
+        
+        /**
+         * Creates a new {@link Style}.
+         * 
+         * @param colour The main drawing {@link Color}.
+         * @param border The border {@link Color}, or null if there is none.
+         * @param weight The line or border weight.
+         * @param font The {@link Font} for text, or null if there is none.
+         * @since 1.0
+         */
+        public Style(Color colour, Color border, int weight, Font font)
+        {
+            this.colour = colour;
+            this.border = border;
+            this.weight = weight;
+            this.font = font;
+        }
+        
+        /**
+         * Writes the full description of this {@link Style}; the colour, the
+         * border colour, the weight, a flags byte and then the font if there
+         * is one.
+         * 
+         * @param buf The {@link ByteBuffer} to write to.
+         * @since 1.0
+         */
+        private void encode(ByteBuffer buf)
+        {
+            putColor(buf, colour);
+            putColor(buf, (border == null) ? Color.LIGHT_GRAY : border);
+            putVarInt(buf, weight);
+            buf.put((byte)((font != null) ? HAS_FONT : 0));
+            if (font != null) putFont(buf, font);
+        }
+        
+        /**
+         * Reads a {@link Style} written by {@link
+         * StyleTable.Style#encode(java.nio.ByteBuffer)}.
+         * 
+         * @param buf The {@link ByteBuffer} to read from.
+         * @return Returns a new {@link Style}.
+         * @since 1.0
+         */
+        private static Style decode(ByteBuffer buf)
+        {
+            Color colour = getColor(buf);
+            Color border = getColor(buf);
+            int weight = getVarInt(buf);
+            int flags = buf.get();
+            Font font = ((flags & HAS_FONT) != 0) ? getFont(buf) : null;
+            return new Style(colour, border, weight, font);
+        }
+        
+        /**
+         * Compares this {@link Style} to another {@link Object}.
+         * 
+         * @param obj The {@link Object} to compare against.
+         * @return Returns true if the other object is a {@link Style} with the
+         * same colours, weight and font. Returns false otherwise.
+         * @since 1.0
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Style)) return false;
+            Style other = (Style)obj;
+            return weight == other.weight
+                    && colour.equals(other.colour)
+                    && (border == null ? other.border == null
+                        : border.equals(other.border))
+                    && (font == null ? other.font == null
+                        : font.equals(other.font));
+        }
+        
+        /**
+         * Gets a hash code built from the colours, weight and font of this
+         * {@link Style}.
+         * 
+         * @return The hash code as an int.
+         * @since 1.0
+         */
+        @Override
+        public int hashCode()
+        {
+            int hash = colour.hashCode();
+            hash = hash*31 + ((border == null) ? 0 : border.hashCode());
+            hash = hash*31 + weight;
+            hash = hash*31 + ((font == null) ? 0 : font.hashCode());
+            return hash;
+        }
+    }
+}
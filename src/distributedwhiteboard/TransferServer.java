@@ -0,0 +1,431 @@
+package distributedwhiteboard;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Receives images and other large data sent over TCP by other hosts. A single
+ * non-blocking acceptor stays open for as long as the {@link Server} runs, and
+ * any number of transfers can arrive over it at the same time.
+ * <p>
+ * A host expecting data first registers a {@link TransferServer.Transfer},
+ * and sends its ID along with the request for the data. The sender connects,
+ * writes the 4 byte transfer ID, then the data, then closes the connection.
+ * Connections for transfers that are unknown or already finished are closed.
+ * When several hosts answer the same request, {@link
+ * TransferServer#await(Transfer, long)} takes the first to finish, while
+ * {@link TransferServer#awaitAll(Transfer, long, long)} gathers every answer
+ * for a short while.
+ * 
+ * @author 6266215
+ * @version 1.1
+ * @since 2026-10-16
+ */
+public class TransferServer implements Runnable
+{
+    /** The largest transfer accepted, in bytes. */
+    public static final int MAX_SIZE = 64*1024*1024;
+    /** The size of the buffer each transfer starts with, in bytes. */
+    private static final int INITIAL_SIZE = 64*1024;
+    /** How often idle connections are checked for, in ms. */
+    private static final int SELECT_MS = 1000;
+    
+    /** The channel new connections are accepted on. */
+    private final ServerSocketChannel acceptor;
+    /** Waits on the acceptor and every open connection. */
+    private final Selector selector;
+    /** The transfers waiting for data, by ID. */
+    private final HashMap<Integer, Transfer> expected;
+    /** Hands out transfer IDs. */
+    private final Random ids;
+    /** The thread running the selector. */
+    private final Thread thread;
+    /** Set while the selector should keep running. */
+    private volatile boolean running;
+    
+    /**
+     * Creates a new {@link TransferServer} over an already bound acceptor,
+     * and starts its thread.
+     * 
+     * @param acceptor The bound, non-blocking {@link ServerSocketChannel}.
+     * @param selector The {@link Selector} the acceptor is registered with.
+     * @since 1.0
+     */
+    private TransferServer(ServerSocketChannel acceptor, Selector selector)
+    {
+        this.acceptor = acceptor;
+        this.selector = selector;
+        this.expected = new HashMap<>();
+        this.ids = new Random();
+        this.running = true;
+        this.thread = new Thread(this, "Transfer acceptor");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Opens a {@link TransferServer} on the specified TCP port. If the port is
+     * in use, such as by another instance of the program on the same host, a
+     * free port is used instead; see {@link TransferServer#getPort()}.
+     * 
+     * @param port The TCP port to listen on if possible.
+     * @return A running {@link TransferServer}, or null if one could not be
+     * opened.
+     * @since 1.0
+     */
+    public static TransferServer open(int port)
+    {
+        Selector selector = null;
+        ServerSocketChannel acceptor = null;
+        try {
+            selector = Selector.open();
+            try {
+                acceptor = bind(port);
+            } catch (IOException inUse) {
+                acceptor = bind(0);
+            }
+            acceptor.register(selector, SelectionKey.OP_ACCEPT);
+            return new TransferServer(acceptor, selector);
+        } catch (IOException ex) {
+            System.err.printf("Could not open transfer server.%n%s%n",
+                    ex.getMessage());
+            try {
+                if (acceptor != null) acceptor.close();
+                if (selector != null) selector.close();
+            } catch (IOException closeEx) { }
+            return null;
+        }
+    }
+    
+    /**
+     * Opens a non-blocking {@link ServerSocketChannel} bound to a port.
+     * 
+     * @param port The TCP port to bind to, or 0 for any free port.
+     * @return The bound {@link ServerSocketChannel}.
+     * @throws IOException Thrown if the port could not be bound.
+     * @since 1.0
+     */
+    private static ServerSocketChannel bind(int port) throws IOException
+    {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(port));
+            return channel;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Gets the TCP port this {@link TransferServer} is listening on.
+     * 
+     * @return The port number as an int.
+     * @since 1.0
+     */
+    public int getPort() { return acceptor.socket().getLocalPort(); }
+    
+    /**
+     * Registers a new transfer to wait for.
+     * 
+     * @return The new {@link Transfer}, whose ID should be sent to the host
+     * that will send the data.
+     * @since 1.0
+     */
+    public synchronized Transfer expect()
+    {
+        int id;
+        do {
+            id = ids.nextInt();
+        } while (expected.containsKey(id));
+        Transfer t = new Transfer(id);
+        expected.put(id, t);
+        return t;
+    }
+    
+    /**
+     * Waits for a transfer to finish, then forgets it.
+     * 
+     * @param transfer The {@link Transfer} to wait for.
+     * @param ms The longest time to wait, in milliseconds.
+     * @return The data received, or null if none arrived in time.
+     * @since 1.0
+     */
+    public byte[] await(Transfer transfer, long ms)
+    {
+        byte[] data = transfer.await(ms);
+        synchronized (this) {
+            expected.remove(transfer.ID);
+        }
+        return data;
+    }
+    
+    /**
+     * Waits for the first answer to a transfer, then gathers any more that
+     * arrive within a short window, then forgets it.
+     * 
+     * @param transfer The {@link Transfer} to wait for.
+     * @param ms The longest time to wait for the first answer, in
+     * milliseconds.
+     * @param window How long to keep gathering after the first answer, in
+     * milliseconds.
+     * @return The data received from every answer, first to finish first.
+     * The list is empty if nothing arrived in time.
+     * @since 1.1
+     */
+    public List<byte[]> awaitAll(Transfer transfer, long ms, long window)
+    {
+        if (transfer.await(ms) != null) {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException ex) { }
+        }
+        synchronized (this) {
+            expected.remove(transfer.ID);
+        }
+        return transfer.getAll();
+    }
+    
+    /**
+     * Stops accepting transfers and closes every open connection.
+     * 
+     * @since 1.0
+     */
+    public void close()
+    {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) { }
+    }
+    
+    /**
+     * Accepts connections and reads data from them until closed.
+     * 
+     * @since 1.0
+     */
+    @Override
+    public void run()
+    {
+        try {
+            while (running) {
+                selector.select(SELECT_MS);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else if (key.isReadable())
+                            read(key);
+                    } catch (IOException ex) {
+                        System.err.printf("Transfer failed.%n%s%n",
+                                ex.getMessage());
+                        key.channel().close();
+                    }
+                }
+                closeIdle();
+            }
+        } catch (IOException ex) {
+            System.err.printf("Transfer server stopped.%n%s%n",
+                    ex.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ex) { }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) { }
+        }
+    }
+    
+    /**
+     * Accepts every waiting connection and starts reading from it.
+     * 
+     * @throws IOException Thrown if a connection could not be set up.
+     * @since 1.0
+     */
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = acceptor.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Incoming());
+        }
+    }
+    
+    /**
+     * Reads whatever has arrived on a connection. The transfer ID is read
+     * first, then data until the sender closes the connection.
+     * 
+     * @param key The {@link SelectionKey} of the connection.
+     * @throws IOException Thrown if the connection could not be read.
+     * @since 1.0
+     */
+    private void read(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Incoming in = (Incoming)key.attachment();
+        in.lastRead = System.currentTimeMillis();
+        
+        if (in.transfer == null) {
+            if (channel.read(in.header) < 0) {
+                channel.close();
+                return;
+            }
+            if (in.header.hasRemaining()) return;
+            synchronized (this) {
+                in.transfer = expected.get(in.header.getInt(0));
+            }
+            if (in.transfer == null) {
+                // Unknown, or already sent by another host.
+                channel.close();
+                return;
+            }
+        }
+        
+        if (in.size == in.data.length) {
+            if (in.data.length >= MAX_SIZE)
+                throw new IOException("Transfer is too large.");
+            in.data = Arrays.copyOf(in.data,
+                    Math.min(MAX_SIZE, in.data.length*2));
+        }
+        int n = channel.read(
+                ByteBuffer.wrap(in.data, in.size, in.data.length-in.size));
+        if (n < 0) {
+            in.transfer.complete(Arrays.copyOf(in.data, in.size));
+            channel.close();
+        } else {
+            in.size += n;
+        }
+    }
+    
+    /**
+     * Closes connections that have not sent anything within {@link
+     * Server#TCP_TIMEOUT}.
+     * 
+     * @since 1.0
+     */
+    private void closeIdle()
+    {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object in = key.attachment();
+            if (in instanceof Incoming
+                    && now-((Incoming)in).lastRead > Server.TCP_TIMEOUT) {
+                try {
+                    key.channel().close();
+                } catch (IOException ex) { }
+            }
+        }
+    }
+    
+    /**
+     * The reading state of a single connection.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    private static final class Incoming
+    {
+        /** The transfer ID at the start of the connection. */
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        /** The transfer the data is for, once the ID has been read. */
+        Transfer transfer;
+        /** The data read so far. */
+        byte[] data = new byte[INITIAL_SIZE];
+        /** The number of bytes of data read so far. */
+        int size;
+        /** When data was last read from the connection. */
+        long lastRead = System.currentTimeMillis();
+    }
+    
+    /**
+     * A transfer that a host is waiting to receive.
+     * 
+     * @version 1.0
+     * @since 1.0
+     */
+    public static final class Transfer
+    {
+        /** The ID the sender writes before the data. */
+        public final int ID;
+        /** The data received from each connection that finished. */
+        private final ArrayList<byte[]> received;
+        
+        /**
+         * Creates a new {@link Transfer} with the specified ID.
+         * 
+         * @param id The transfer ID.
+         * @since 1.0
+         */
+        private Transfer(int id)
+        {
+            this.ID = id;
+            this.received = new ArrayList<>();
+        }
+        
+        /**
+         * Adds the data received by a connection that finished.
+         * 
+         * @param data The data received.
+         * @since 1.0
+         */
+        private synchronized void complete(byte[] data)
+        {
+            received.add(data);
+            notifyAll();
+        }
+        
+        /**
+         * Waits for this transfer to finish.
+         * 
+         * @param ms The longest time to wait, in milliseconds.
+         * @return The data from the first connection to finish, or null if
+         * none finished in time.
+         * @since 1.0
+         */
+        private synchronized byte[] await(long ms)
+        {
+            long end = System.currentTimeMillis()+ms;
+            long left = ms;
+            while (received.isEmpty() && left > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                left = end-System.currentTimeMillis();
+            }
+            return received.isEmpty() ? null : received.get(0);
+        }
+        
+        /**
+         * Gets the data from every connection that has finished so far.
+         * 
+         * @return A copy of the list of data, first to finish first.
+         * @since 1.1
+         */
+        private synchronized List<byte[]> getAll()
+        {
+            return new ArrayList<>(received);
+        }
+    }
+}
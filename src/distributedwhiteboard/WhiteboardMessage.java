@@ -4,21 +4,47 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Point;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import distributedwhiteboard.StyleTable.Style;
 import static distributedwhiteboard.Conversions.*;
 
 /**
  * Contains the details of a message being sent between two distributed 
  * whiteboards. The contents of the message includes the {@link DrawMode} to use
  * , the start and end {@link Point}s and the drawing {@link Color}.
+ * <p>
+ * {@link DrawMode#FREEFORM_LINE} and {@link DrawMode#POLYGON} messages carry a
+ *  whole path of points. The first point is sent in full, each following point
+ *  is sent as the difference from the one before it, so a path costs a few 
+ * bytes per point rather than a full message per segment. In the same way, 
+ * {@link DrawMode#TEXT} messages carry a run of characters rather than one 
+ * character each.
+ * <p>
+ * The colours, weight and font of a message are sent as a reference into the 
+ * {@link StyleTable}, so a style is only described in full when it is first 
+ * used.
+ * <p>
+ * Every message is stamped with a {@link LamportClock} tick when it is given 
+ * a unique ID. The tick and ID place the message in the {@link OpLog}, which 
+ * decides the order messages are composited in.
  * 
  * @author 6266215
- * @version 1.2
+ * @version 1.9
  * @since 2015-03-15
  */
 public class WhiteboardMessage extends NetMessage implements Serializable
 {
     /** Serialisation ID. */
     private static final long serialVersionUID = 5459762541371665893L;
+    /** Flag bit set in an encoded rectangle when the shape is filled. */
+    private static final int FILL_FLAG = 0x01;
+    /** Flag bit set in an encoded rectangle when the shape has a border. */
+    private static final int BORDER_FLAG = 0x02;
+    /** The largest number of points a single path message may carry. */
+    public static final int MAX_PATH_POINTS = 64;
+    /** The largest number of characters a single text message may carry. */
+    public static final int MAX_TEXT_LENGTH = 200;
     
     /** The {@link DrawMode} for this message if it's a drawing message. */
     public final DrawMode mode;
@@ -49,11 +75,19 @@ public class WhiteboardMessage extends NetMessage implements Serializable
     public final Color borderCol;
     /** The {@link Font} to use when drawing {@link DrawMode#TEXT}. */
     public final Font font;
-    /** The character to draw. */
-    public final char textChar;
+    /** The run of text to draw. */
+    public final String text;
     /** The scale of the image as a multiplier. Clamped between 0.0  and 1.0. */
     public final float imageScale;
-    public final int imageHash;
+    /** The {@link ImageCache} key of the image to draw. */
+    public final long imageHash;
+    /** 
+     * The points of a {@link DrawMode#FREEFORM_LINE} or {@link 
+     * DrawMode#POLYGON} path, in drawing order. This is null for other modes.
+     */
+    public final Point[] points;
+    /** The {@link LamportClock} tick this message was stamped with. */
+    private int clock;
     
     /**
      * Creates a {@link WhiteboardMessage} with no contents, this is usually 
@@ -74,9 +108,10 @@ public class WhiteboardMessage extends NetMessage implements Serializable
         this.borderWeight = 1;
         this.borderCol = Color.LIGHT_GRAY;
         this.font = new Font("Serif", Font.PLAIN, 12);
-        this.textChar = '\0';
+        this.text = "";
         this.imageScale = 0;
         this.imageHash = 0;
+        this.points = null;
     }
     
     /**
@@ -102,9 +137,10 @@ public class WhiteboardMessage extends NetMessage implements Serializable
         this.borderWeight = 1;
         this.borderCol = Color.LIGHT_GRAY;
         this.font = new Font("Serif", Font.PLAIN, 12);
-        this.textChar = '\0';
+        this.text = "";
         this.imageScale = 0;
         this.imageHash = 0;
+        this.points = null;
     }
     
     /**
@@ -135,9 +171,10 @@ public class WhiteboardMessage extends NetMessage implements Serializable
         this.borderWeight = weight;
         this.borderCol = bCol;
         this.font = new Font("Serif", Font.PLAIN, 12);
-        this.textChar = '\0';
+        this.text = "";
         this.imageScale = 0;
         this.imageHash = 0;
+        this.points = null;
     }
     
     /**
@@ -151,6 +188,23 @@ public class WhiteboardMessage extends NetMessage implements Serializable
      * @since 1.0
      */
     public WhiteboardMessage(Point p1, Color drawCol, Font f, char text)
+    {
+        this(p1, drawCol, f, String.valueOf(text));
+    }
+    
+    /**
+     * Creates a new {@link WhiteboardMessage} that contains a message to draw 
+     * a run of text in the provided {@link Font}. Text longer than {@link 
+     * WhiteboardMessage#MAX_TEXT_LENGTH} characters is cut short.
+     * 
+     * @param p1 The origin for the text to render from as a {@link Point}.
+     * @param drawCol The {@link Color} to draw the text with.
+     * @param f The {@link Font} for the text.
+     * @param text The {@link String} to draw using the previous specified 
+     * settings.
+     * @since 1.5
+     */
+    public WhiteboardMessage(Point p1, Color drawCol, Font f, String text)
     {
         super(MessageType.DRAW);
         this.mode = DrawMode.TEXT;
@@ -163,9 +217,12 @@ public class WhiteboardMessage extends NetMessage implements Serializable
         this.borderWeight = 1;
         this.borderCol = Color.LIGHT_GRAY;
         this.font = f;
-        this.textChar = text;
+        if (text.length() > MAX_TEXT_LENGTH)
+            text = text.substring(0, MAX_TEXT_LENGTH);
+        this.text = text;
         this.imageScale = 0;
         this.imageHash = 0;
+        this.points = null;
     }
     
     /**
@@ -178,10 +235,10 @@ public class WhiteboardMessage extends NetMessage implements Serializable
      * @param p1 The top-left corner position of the image as a {@link Point}.
      * @param scale The scaling of the image. This mode must be between 0 and 
      * 100, and will be divided by 100 to create a multiplier.
-     * @param hash The unique hash code for the image to be drawn.
+     * @param hash The {@link ImageCache} key for the image to be drawn.
      * @since 1.2
      */
-    public WhiteboardMessage(Point p1, int scale, int hash)
+    public WhiteboardMessage(Point p1, int scale, long hash)
     {
         super(MessageType.DRAW);
         this.mode = DrawMode.IMAGE;
@@ -194,21 +251,157 @@ public class WhiteboardMessage extends NetMessage implements Serializable
         this.borderWeight = 1;
         this.borderCol = Color.LIGHT_GRAY;
         this.font = new Font("Serif", Font.PLAIN, 12);
-        this.textChar = '\0';
+        this.text = "";
         this.imageScale = scale/100.0f;
         this.imageHash = hash;
+        this.points = null;
+    }
+    
+    /**
+     * Creates a new {@link WhiteboardMessage} that draws a path through a 
+     * series of points. A {@link DrawMode#POLYGON} path is closed by joining 
+     * the last point back to the first.
+     * 
+     * @param mode The {@link DrawMode} of the path, either {@link 
+     * DrawMode#FREEFORM_LINE} or {@link DrawMode#POLYGON}.
+     * @param points The {@link Point}s of the path in drawing order. There must
+     *  be between 1 and {@link WhiteboardMessage#MAX_PATH_POINTS} points.
+     * @param drawCol The {@link Color} to draw with.
+     * @param weight The thickness of the lines used when drawing.
+     * @throws IllegalArgumentException Thrown if the mode is not a path mode, 
+     * or if the number of points is out of range.
+     * @since 1.4
+     */
+    public WhiteboardMessage(DrawMode mode, Point[] points, Color drawCol, 
+            int weight) throws IllegalArgumentException
+    {
+        super(MessageType.DRAW);
+        if (mode != DrawMode.FREEFORM_LINE && mode != DrawMode.POLYGON)
+            throw new IllegalArgumentException("Not a path mode: " + mode);
+        if (points.length == 0 || points.length > MAX_PATH_POINTS)
+            throw new IllegalArgumentException(
+                    "Invalid number of path points: " + points.length);
+        this.mode = mode;
+        this.startPoint = points[0];
+        this.endPoint = points[points.length-1];
+        this.drawColour = drawCol;
+        this.lineWeight = weight;
+        this.fillShape = false;
+        this.hasBorder = false;
+        this.borderWeight = 1;
+        this.borderCol = Color.LIGHT_GRAY;
+        this.font = new Font("Serif", Font.PLAIN, 12);
+        this.text = "";
+        this.imageScale = 0;
+        this.imageHash = 0;
+        this.points = points;
     }
         
     /**
-     * Encodes this {@link WhiteboardMessage} into a byte array so it can be 
-     * sent across networks. The array is generated from the {@link String} 
-     * representation of this message.
+     * Writes the drawing details of this {@link WhiteboardMessage} after the 
+     * shared {@link NetMessage} header. The style is always described in 
+     * full, without a {@link StyleTable} number, so the message can be 
+     * decoded on its own whichever node sends it.
      * 
-     * @return Returns a byte array representation of this message.
-     * @since 1.0
+     * @param buf The {@link ByteBuffer} to write the message body into.
+     * @since 1.3
+     */
+    @Override
+    protected void encodeBody(ByteBuffer buf)
+    {
+        encodeBody(buf, false);
+    }
+    
+    /**
+     * Writes the drawing details of this {@link WhiteboardMessage} after the 
+     * shared {@link NetMessage} header. The {@link DrawMode} and {@link 
+     * LamportClock} tick come first, then only the fields needed by the {@link 
+     * DrawMode} of this message are written; points are zig-zag varints and 
+     * the colours, weight and font are a {@link StyleTable} reference. Paths 
+     * write the number of following points, then each point as a delta from 
+     * the last.
+     * 
+     * @param buf The {@link ByteBuffer} to write the message body into.
+     * @param broadcast Set to true if the style may be sent as a reference 
+     * only.
+     * @since 1.6
      */
     @Override
-    public byte[] encode() { return this.toString().getBytes(); }
+    protected void encodeBody(ByteBuffer buf, boolean broadcast)
+    {
+        buf.put((byte)mode.mode);
+        putVarInt(buf, clock);
+        putPoint(buf, startPoint);
+        switch (mode) {
+            case LINE:
+                putPoint(buf, endPoint);
+                break;
+            case FREEFORM_LINE:
+            case POLYGON:
+                putVarInt(buf, points.length-1);
+                for (int i = 1; i < points.length; i++) {
+                    putSignedVarInt(buf, points[i].x-points[i-1].x);
+                    putSignedVarInt(buf, points[i].y-points[i-1].y);
+                }
+                break;
+            case RECTANGLE:
+                putPoint(buf, endPoint);
+                int flags = 0;
+                if (fillShape) flags |= FILL_FLAG;
+                if (hasBorder) flags |= BORDER_FLAG;
+                buf.put((byte)flags);
+                break;
+            case TEXT:
+                putString(buf, text, MAX_TEXT_LENGTH);
+                break;
+            case IMAGE:
+                buf.put((byte)(int)(imageScale*100));
+                buf.putLong(imageHash);
+                return; // Images have no style.
+        }
+        StyleTable.getInstance().putStyle(buf, getStyle(), broadcast);
+    }
+    
+    /**
+     * Gets the {@link Style} this {@link WhiteboardMessage} is drawn with. 
+     * Only the parts of the style used by the {@link DrawMode} are set.
+     * 
+     * @return A {@link Style} for this message.
+     * @since 1.6
+     */
+    private Style getStyle()
+    {
+        switch (mode) {
+            case RECTANGLE:
+                return new Style(drawColour, borderCol, borderWeight, null);
+            case TEXT:
+                return new Style(drawColour, null, 0, font);
+            default:
+                return new Style(drawColour, null, lineWeight, null);
+        }
+    }
+    
+    /**
+     * Generates a unique ID for this {@link WhiteboardMessage} and stamps it 
+     * with the next {@link LamportClock} tick.
+     * 
+     * @since 1.7
+     */
+    @Override
+    public void addUniqueID()
+    {
+        super.addUniqueID();
+        clock = LamportClock.tick();
+    }
+    
+    /**
+     * Gets the {@link LamportClock} tick this {@link WhiteboardMessage} was 
+     * stamped with.
+     * 
+     * @return The tick as an int, or 0 if the message has not been stamped.
+     * @since 1.7
+     */
+    public int getClock() { return clock; }
     
     /**
      * Gets the largest possible size of a {@link WhiteboardMessage} so that the
@@ -220,7 +413,34 @@ public class WhiteboardMessage extends NetMessage implements Serializable
      */
     public static int getLargestSize() 
     { 
-        return new WhiteboardMessage().encode().length; 
+        long id = MessageID.pack(-1, Integer.MAX_VALUE);
+        
+        Point[] path = new Point[MAX_PATH_POINTS];
+        for (int i = 0; i < path.length; i++) {
+            int coord = (i % 2 == 0) ? 0 : 1 << 30;
+            path[i] = new Point(coord, coord);
+        }
+        WhiteboardMessage pathMsg = new WhiteboardMessage(DrawMode.POLYGON, 
+                path, Color.BLACK, Integer.MAX_VALUE);
+        pathMsg.setUniqueID(id);
+        pathMsg.setRequiredID(id);
+        pathMsg.clock = Integer.MAX_VALUE;
+        
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < FONT_NAME_SIZE; i++)
+            name.append('W');
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < MAX_TEXT_LENGTH; i++)
+            text.append(Character.MAX_VALUE);
+        WhiteboardMessage msg = new WhiteboardMessage(
+                new Point(Integer.MIN_VALUE, Integer.MIN_VALUE), Color.BLACK, 
+                new Font(name.toString(), Font.BOLD|Font.ITALIC, 
+                        Integer.MAX_VALUE), 
+                text.toString());
+        msg.setUniqueID(id);
+        msg.setRequiredID(id);
+        msg.clock = Integer.MAX_VALUE;
+        return Math.max(msg.encode().length, pathMsg.encode().length); 
     }
     
     /**
@@ -234,113 +454,130 @@ public class WhiteboardMessage extends NetMessage implements Serializable
      */
     public static WhiteboardMessage decode(byte[] message)
     {
-        String messageStr = new String(message).trim();
-        String uID = messageStr.substring(ID_OFFSET, RELY_OFFSET);
-        String rID = messageStr.substring(RELY_OFFSET, TYPE_OFFSET);
-        DrawMode m = DrawMode.parseChar(messageStr.charAt(TYPE_OFFSET+1));
+        return decode(ByteBuffer.wrap(message));
+    }
+    
+    /**
+     * Converts the contents of a {@link ByteBuffer} into a {@link 
+     * WhiteboardMessage} if it contains all the required information. The 
+     * message is read from the current position of the buffer, which is left 
+     * after the last byte of the message.
+     * 
+     * @param buf The {@link ByteBuffer} to convert to a new message.
+     * @return Returns a new {@link WhiteboardMessage} if the buffer is 
+     * properly formed, null otherwise.
+     * @since 1.3
+     */
+    public static WhiteboardMessage decode(ByteBuffer buf)
+    {
+        int start = buf.position();
         WhiteboardMessage msg;
+        try {
+            int node = MessageID.node(peekUniqueID(buf, start));
+            skipHeader(buf);
+            msg = decodeBody(buf, node);
+        } catch (BufferUnderflowException | IllegalArgumentException 
+                | IndexOutOfBoundsException ex) {
+            System.err.println("WhiteboardMessage was incorrectly formed.");
+            return null;
+        }
+        if (msg != null)
+            msg.readHeader(buf, start);
+        return msg;
+    }
         
-        Point p1 = stringToPoint(messageStr.substring(POINT_ONE_OFFSET, 
-                POINT_TWO_OFFSET));
-        Point p2;
-        Color col;
-        int weight;
+    /**
+     * Reads the drawing details written by {@link 
+     * WhiteboardMessage#encodeBody(java.nio.ByteBuffer, boolean)} into a new 
+     * {@link WhiteboardMessage}.
+     * 
+     * @param buf The {@link ByteBuffer} positioned at the start of the body.
+     * @param node The node number of the message, used to look up its style.
+     * @return Returns a new {@link WhiteboardMessage}, or null if the {@link 
+     * DrawMode} or the style is unknown.
+     * @since 1.3
+     */
+    private static WhiteboardMessage decodeBody(ByteBuffer buf, int node)
+    {
+        DrawMode m = DrawMode.parseByte(buf.get());
+        if (m == null) return null;
+        
+        int clock = getVarInt(buf);
+        Point p1 = getPoint(buf);
+        Point p2 = null;
+        Point[] path = null;
+        boolean fill = false, border = false;
+        String text = null;
         
         switch (m) {
-            case FREEFORM_LINE:
             case LINE:
+                p2 = getPoint(buf);
+                break;
+            case FREEFORM_LINE:
             case POLYGON:
-                p2 = stringToPoint(messageStr.substring(POINT_TWO_OFFSET, 
-                        COLOUR_OFFSET));
-                col = stringToColor(messageStr.substring(COLOUR_OFFSET, 
-                        WEIGHT_OFFSET));
-                weight = Integer.valueOf(messageStr.substring(WEIGHT_OFFSET,
-                        WEIGHT_OFFSET+2));
-                
-                if (m == null || p1 == null || p2 == null || col == null)
-                    return null;
-                
-                msg = new WhiteboardMessage(p1, p2, col, weight);
-                msg.setUniqueID(uID);
-                msg.setRequiredID(rID);
-                return msg;
+                int count = getVarInt(buf)+1;
+                if (count <= 0 || count > MAX_PATH_POINTS)
+                    throw new IllegalArgumentException("Path too long.");
+                path = new Point[count];
+                path[0] = p1;
+                for (int i = 1; i < count; i++) {
+                    path[i] = new Point(path[i-1].x+getSignedVarInt(buf), 
+                            path[i-1].y+getSignedVarInt(buf));
+                }
+                break;
             case RECTANGLE:
-                p2 = stringToPoint(messageStr.substring(POINT_TWO_OFFSET, 
-                        COLOUR_OFFSET));
-                col = stringToColor(messageStr.substring(COLOUR_OFFSET, 
-                        FILL_OFFSET));
-                
-                // Work out if the boolean values were encoded to true or false.
-                String bVal = messageStr.substring(FILL_OFFSET, BORDER_OFFSET);
-                boolean fill = bVal.equals("t");
-                bVal = messageStr.substring(BORDER_OFFSET, BORDER_COL_OFFSET);
-                boolean border = bVal.equals("t");
-                
-                Color borderCol = stringToColor(
-                        messageStr.substring(BORDER_COL_OFFSET, BORDER_W_OFFSET)
-                );
-                weight = Integer.valueOf(messageStr.substring(BORDER_W_OFFSET, 
-                        BORDER_W_OFFSET+2));
-                
-                if (m == null || p1 == null || p2 == null || col == null 
-                        || borderCol == null)
-                    return null;
-                
-                msg = new WhiteboardMessage(p1, p2, col, weight, fill, 
-                        border, borderCol);
-                msg.setUniqueID(uID);
-                msg.setRequiredID(rID);
-                return msg;
+                p2 = getPoint(buf);
+                int flags = buf.get();
+                fill = (flags & FILL_FLAG) != 0;
+                border = (flags & BORDER_FLAG) != 0;
+                break;
             case TEXT:
-                col = stringToColor(messageStr.substring(FONT_COL_OFFSET, 
-                        TEXT_OFFSET));
-                char text = messageStr.charAt(TEXT_OFFSET);
-                Font font = stringToFont(messageStr.substring(FONT_OFFSET,
-                        FONT_OFFSET+FONT_SIZE));
-                
-                if (m == null || p1 == null || font == null)
-                    return null;
-                
-                msg = new WhiteboardMessage(p1, col, font, text);
-                msg.setUniqueID(uID);
-                msg.setRequiredID(rID);
-                return msg;
+                text = getString(buf);
+                break;
             case IMAGE:
-                String sclStr = messageStr.substring(POINT_TWO_OFFSET, 
-                        POINT_TWO_OFFSET+3);
-                String hashStr = messageStr.substring(POINT_TWO_OFFSET+3);
-                
-                if (sclStr == null || sclStr.isEmpty()) return null;
-                int scaling;
-                try {
-                    scaling = Integer.parseInt(sclStr);
-                } catch (NumberFormatException nfe) {
-                    System.err.println("Scaling value was not a number.");
-                    return null;
-                }
-                
-                if (hashStr == null || hashStr.isEmpty()) return null;
-                int hash;
-                try {
-                    hash = Integer.parseInt(hashStr);
-                } catch (NumberFormatException nfe) {
-                    System.err.println("Image hash value was not a number.");
-                    return null;
-                }
-                
-                msg = new WhiteboardMessage(p1, scaling, hash);
-                msg.setUniqueID(uID);
-                msg.setRequiredID(rID);
-                return msg;                
+                int scaling = buf.get() & 0xFF;
+                long hash = buf.getLong();
+                WhiteboardMessage img = 
+                        new WhiteboardMessage(p1, scaling, hash);
+                img.clock = clock;
+                return img;
         }
         
-        return null;
+        Style style = StyleTable.getInstance().getStyle(buf, node);
+        if (style == null) {
+            System.err.println("WhiteboardMessage refers to an unknown style.");
+            return null;
+        }
+        WhiteboardMessage msg = null;
+        switch (m) {
+            case LINE:
+                msg = new WhiteboardMessage(p1, p2, style.colour, 
+                        style.weight);
+                break;
+            case FREEFORM_LINE:
+            case POLYGON:
+                msg = new WhiteboardMessage(m, path, style.colour, 
+                        style.weight);
+                break;
+            case RECTANGLE:
+                msg = new WhiteboardMessage(p1, p2, style.colour, 
+                        style.weight, fill, border, style.border);
+                break;
+            case TEXT:
+                if (style.font == null)
+                    throw new IllegalArgumentException("Text without a font.");
+                msg = new WhiteboardMessage(p1, style.colour, style.font, 
+                        text);
+        }
+        
+        if (msg != null) msg.clock = clock;
+        return msg;
     }
     
     /**
-     * Creates a {@link String} representation of this {@link WhiteboardMessage}
-     *  , the message structure will vary based on the requirements of the 
-     * message.
+     * Creates a readable {@link String} representation of this {@link 
+     * WhiteboardMessage}, the details included will vary based on the {@link 
+     * DrawMode} of the message.
      * 
      * @return Returns a new {@link String}.
      * @since 1.0
@@ -351,32 +588,24 @@ public class WhiteboardMessage extends NetMessage implements Serializable
         StringBuilder sb = new StringBuilder();
         
         sb.append(super.toString());
-        sb.append(mode.mode);
-        sb.append(pointToString(startPoint));
+        sb.append(" @").append(clock);
+        sb.append(' ').append(mode);
+        sb.append(String.format(" (%d,%d)", startPoint.x, startPoint.y));
         switch (mode) {
             case FREEFORM_LINE:
-            case LINE:
             case POLYGON:
-                sb.append(pointToString(endPoint));
-                sb.append(colorToString(drawColour));
-                sb.append(String.format("%02d", lineWeight));
+                sb.append(String.format(" -> (%d,%d) %d points", 
+                        endPoint.x, endPoint.y, points.length));
                 break;
+            case LINE:
             case RECTANGLE:
-                sb.append(pointToString(endPoint));
-                sb.append(colorToString(drawColour));
-                sb.append((fillShape ? "t" : "f"));
-                sb.append((hasBorder ? "t" : "f"));
-                sb.append(colorToString(borderCol));
-                sb.append(String.format("%02d", borderWeight));
+                sb.append(String.format(" -> (%d,%d)", endPoint.x, endPoint.y));
                 break;
             case TEXT:
-                sb.append(colorToString(drawColour));
-                sb.append(textChar);
-                sb.append(fontToString(font));
+                sb.append(String.format(" \"%s\"", text));
                 break;
             case IMAGE:
-                sb.append(String.format("%03d", (int)(imageScale*100)));
-                sb.append(String.format("%010d", imageHash));
+                sb.append(String.format(" image %016x", imageHash));
         }
         
         return sb.toString();
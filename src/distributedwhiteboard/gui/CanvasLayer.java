@@ -0,0 +1,393 @@
+package distributedwhiteboard.gui;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * A plain {@link BufferedImage} to draw whiteboard operations onto, placed
+ * somewhere on the full canvas. The {@link WhiteboardCanvas} draws through one
+ *  of these covering the whole of its image, while regions are redrawn off
+ * screen into smaller ones from {@link
+ * WhiteboardCanvas#createLayer(java.awt.Rectangle)}. Drawing calls always take
+ *  full canvas coordinates.
+ * <p>
+ * Unlike a {@link WhiteboardCanvas} this is not a Swing component, so it can
+ * be created and drawn to from any thread. Nothing is repainted; that is left
+ * to the {@link WhiteboardCanvas} showing the image.
+ * 
+ * @author 6266215
+ * @version 1.0
+ * @since 2026-10-16
+ */
+public class CanvasLayer
+{
+    /** The {@link BufferedImage} to draw to. */
+    private final BufferedImage image;
+    /** The position of this layer on the full canvas. */
+    private final Point offset;
+    
+    /**
+     * Creates a new {@link CanvasLayer} that draws straight onto an existing
+     * image covering the full canvas.
+     * 
+     * @param image The {@link BufferedImage} of the full canvas.
+     * @since 1.0
+     */
+    CanvasLayer(BufferedImage image)
+    {
+        this.image = image;
+        this.offset = new Point();
+    }
+    
+    /**
+     * Creates a new, empty {@link CanvasLayer} covering one region of the
+     * full canvas.
+     * 
+     * @param region The region of the full canvas this layer covers.
+     * @since 1.0
+     */
+    CanvasLayer(Rectangle region)
+    {
+        this.image = new BufferedImage(Math.max(1, region.width),
+                Math.max(1, region.height), BufferedImage.TYPE_INT_ARGB);
+        this.offset = region.getLocation();
+    }
+    
+    /**
+     * Gets the region of the full canvas this layer covers.
+     * 
+     * @return The region covered as a {@link Rectangle}.
+     * @since 1.0
+     */
+    public Rectangle getBounds()
+    {
+        return new Rectangle(offset.x, offset.y, image.getWidth(),
+                image.getHeight());
+    }
+    
+    /**
+     * Creates a {@link Graphics2D} for drawing to this layer, moved so that
+     * full canvas coordinates land in the right place.
+     * 
+     * @return A new {@link Graphics2D} for the layer image.
+     * @since 1.0
+     */
+    private Graphics2D createGraphics()
+    {
+        Graphics2D g = image.createGraphics();
+        g.translate(-offset.x, -offset.y);
+        return g;
+    }
+    
+    /**
+     * Draws a whole image over this layer, with its top left corner at the
+     * top left of the full canvas.
+     * 
+     * @param img The {@link BufferedImage} to draw.
+     * @since 1.0
+     */
+    void drawOver(BufferedImage img)
+    {
+        Graphics2D g = createGraphics();
+        synchronized (CanvasLayer.class) {
+            g.drawImage(img, 0, 0, null);
+        }
+        g.dispose();
+    }
+    
+    /**
+     * Replaces the region of this layer covered by another layer with the
+     * contents of that layer.
+     * 
+     * @param layer The {@link CanvasLayer} to copy onto this one.
+     * @since 1.0
+     */
+    void paste(CanvasLayer layer)
+    {
+        Graphics2D g = createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        synchronized (CanvasLayer.class) {
+            g.drawImage(layer.image, layer.offset.x, layer.offset.y, null);
+        }
+        g.dispose();
+    }
+    
+    /**
+     * Draws a line between the specified points with the provided colour and
+     * line weight.
+     * 
+     * @param start The starting point to draw from as a {@link Point}.
+     * @param end The ending point to draw to as a {@link Point}.
+     * @param colour The colour of the line as an {@link Color}. If null is
+     * provided, the line will draw using {@link Color#BLACK}.
+     * @param size The width of the line as an int. A size of zero or less will
+     * be ignored and replace with '1'.
+     * @return Returns the {@link Point} this line stopped drawing at.
+     * @since 1.0
+     */
+    public Point drawLine(Point start, Point end, Color colour, int size)
+    {
+        Graphics2D g = createGraphics();
+        Color col = Color.BLACK;
+        int weight = 1;
+        if (colour != null)
+            col = colour;
+        if (size > 0)
+            weight = size;
+        
+        g.setColor(col);
+        g.setStroke(new BasicStroke(weight));
+        synchronized (CanvasLayer.class) {
+            g.drawLine(start.x, start.y, end.x, end.y);
+        }
+        g.dispose();
+        return end;
+    }
+    
+    /**
+     * Draws a connected path through a series of points as a single shape with
+     * the provided colour and line weight. A single point is drawn as a dot.
+     * 
+     * @param points The {@link Point}s to draw through, in order.
+     * @param closed If true, the last point is joined back to the first.
+     * @param colour The colour of the path as an {@link Color}. If null is
+     * provided, the path will draw using {@link Color#BLACK}.
+     * @param size The width of the path as an int. A size of zero or less will
+     * be ignored and replace with '1'.
+     * @return Returns the last {@link Point} of the path, or null if no points
+     * were provided.
+     * @since 1.0
+     */
+    public Point drawPath(Point[] points, boolean closed, Color colour,
+            int size)
+    {
+        if (points == null || points.length == 0) return null;
+        
+        Graphics2D g = createGraphics();
+        Color col = Color.BLACK;
+        int weight = 1;
+        if (colour != null)
+            col = colour;
+        if (size > 0)
+            weight = size;
+        
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO,
+                points.length+1);
+        path.moveTo(points[0].x, points[0].y);
+        if (points.length == 1)
+            path.lineTo(points[0].x, points[0].y);
+        for (int i = 1; i < points.length; i++)
+            path.lineTo(points[i].x, points[i].y);
+        if (closed)
+            path.closePath();
+        
+        g.setColor(col);
+        g.setStroke(new BasicStroke(weight, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+        synchronized (CanvasLayer.class) {
+            g.draw(path);
+        }
+        g.dispose();
+        return points[points.length-1];
+    }
+    
+    /**
+     * Draws a run of text with the specified {@link Font} and {@link Color}
+     * in a single call.
+     * 
+     * @param text The text to display as a {@link String}.
+     * @param point The point to draw the text at as an {@link Point}.
+     * @param font The font settings (family, size, style) as a {@link Font}. If
+     *  null is provided, the text will use 'Serif' at 12pt.
+     * @param colour The colour to draw the text in as a {@link Color}. If null
+     * is provided, the text will draw with {@link Color#BLACK}.
+     * @return Returns the point that this text stopped drawing at.
+     * @since 1.0
+     */
+    public Point drawText(String text, Point point, Font font, Color colour)
+    {
+        Graphics2D g = createGraphics();
+        Font f = font;
+        Color col = Color.BLACK;
+        if (colour != null)
+            col = colour;
+        if (f == null)
+            f = new Font("Serif", Font.PLAIN, 12);
+        
+        g.setColor(col);
+        g.setFont(f);
+        synchronized (CanvasLayer.class) {
+            g.drawString(text, point.x, point.y);
+        }
+        FontMetrics metrics = g.getFontMetrics();
+        g.dispose();
+        
+        Point nextPoint = new Point(point);
+        nextPoint.x += metrics.stringWidth(text);
+        return nextPoint;
+    }
+    
+    /**
+     * Draws a {@link Rectangle} to this layer.
+     * 
+     * @param origin The starting {@link Point} for drawing this rectangle.
+     * @param size The size of the {@link Rectangle} as a {@link Dimension}.
+     * @param colour The {@link Color} to draw this rectangle with. If null
+     * is provided, {@link Color#BLACK} will be used instead.
+     * @param fillShape If set to true, the rectangle will be draw with the
+     * selected colour filling in the empty areas. If false, the rectangle will
+     * just draw an outline.
+     * @param border If true, the rectangle will draw with a border.
+     * @param weight The thickness of the border as an int. If a value zero or
+     * lower is passed in, the border will use a thickness of '1'.
+     * @param borderColour The colour to draw the border with. If null is
+     * provided, {@link Color#LIGHT_GRAY} will be used instead.
+     * @return Returns the {@link Point} this rectangle stopped drawing at.
+     * @since 1.0
+     */
+    public Point drawRectangle(Point origin, Dimension size, Color colour,
+            boolean fillShape, boolean border, int weight, Color borderColour)
+    {
+        size = new Dimension(
+                Math.abs(size.width),
+                Math.abs(size.height)
+        );
+        Rectangle rect = new Rectangle(origin, size);
+        drawShape(rect, colour, fillShape, border, weight, borderColour);
+        
+        Point result = new Point(origin);
+        result.x += size.width;
+        result.y += size.height;
+        return result;
+    }
+    
+    /**
+     * Draws a AWT {@link Shape} object to this layer.
+     * 
+     * @param s The {@link Shape} to draw.
+     * @param colour The {@link Color} to draw this {@link Shape} with. If null
+     * is provided, {@link Color#BLACK} will be used instead.
+     * @param fillShape If set to true, the shape will be draw with the selected
+     *  colour filling in the empty areas. If false, the shape will just draw an
+     *  outline.
+     * @param border If true, the shape will draw with a border.
+     * @param weight The thickness of the border as an int. If a value zero or
+     * lower is passed in, the border will use a thickness of '1'.
+     * @param borderColour The colour to draw the border with. If null is
+     * provided, {@link Color#LIGHT_GRAY} will be used instead.
+     * @since 1.0
+     */
+    public void drawShape(Shape s, Color colour, boolean fillShape,
+            boolean border, int weight, Color borderColour)
+    {
+        Graphics2D g = createGraphics();
+        Color col = Color.BLACK;
+        Color borderCol = Color.LIGHT_GRAY;
+        int borderWeight = 1;
+        
+        if (colour != null)
+            col = colour;
+        if (borderColour != null)
+            borderCol = borderColour;
+        if (weight > 0)
+            borderWeight = weight;
+        
+        g.setColor(col);
+        synchronized (CanvasLayer.class) {
+            if (fillShape)
+                g.fill(s);
+            else
+                g.draw(s);
+            
+            if (border) {
+                g.setColor(borderCol);
+                g.setStroke(new BasicStroke(borderWeight));
+                g.draw(s);
+            }
+        }
+        g.dispose();
+    }
+    
+    /**
+     * Draws a level of an image to this layer, stretched back to the size the
+     * original would be drawn at.
+     * 
+     * @param origin The {@link Point} to render the image from.
+     * @param img The level of the image to render as a {@link BufferedImage}.
+     * @param scale The scale of the original image relative to its original
+     * size as a float. This is clamped from 0.1 to 1.0.
+     * @param level The number of times the image was halved from its
+     * original size.
+     * @since 1.0
+     */
+    public void drawImage(Point origin, BufferedImage img, float scale,
+            int level)
+    {
+        if (img == null || scale <= 0.0f) return;
+        // Clamp the value.
+        scale = Math.max(0.1f, scale);
+        scale = Math.min(1.0f, scale);
+        scale *= 1 << level;
+        // Scale the width and height.
+        int w = (int)(img.getWidth()*scale);
+        int h = (int)(img.getHeight()*scale);
+        // Draw the image.
+        Graphics2D g = createGraphics();
+        synchronized (CanvasLayer.class) {
+            g.drawImage(img, origin.x, origin.y, w, h, null);
+        }
+        g.dispose();
+    }
+    
+    /**
+     * Draws a placeholder for an image that is still being fetched from
+     * another host. The placeholder is a grey box with a cross through it,
+     * {@link WhiteboardCanvas#PLACEHOLDER_SIZE} in size.
+     * 
+     * @param origin The {@link Point} the image will be drawn from.
+     * @return The region the placeholder covers as a {@link Rectangle}.
+     * @since 1.0
+     */
+    public Rectangle drawPlaceholder(Point origin)
+    {
+        Rectangle box = new Rectangle(origin,
+                WhiteboardCanvas.PLACEHOLDER_SIZE);
+        Graphics2D g = createGraphics();
+        synchronized (CanvasLayer.class) {
+            g.setColor(new Color(224, 224, 224));
+            g.fill(box);
+            g.setColor(Color.GRAY);
+            g.drawRect(box.x, box.y, box.width-1, box.height-1);
+            g.drawLine(box.x, box.y, box.x+box.width-1, box.y+box.height-1);
+            g.drawLine(box.x, box.y+box.height-1, box.x+box.width-1, box.y);
+        }
+        g.dispose();
+        return box;
+    }
+    
+    /**
+     * Clears the contents of this layer to transparent.
+     * 
+     * @since 1.0
+     */
+    public void clear()
+    {
+        Graphics2D g = createGraphics();
+        g.setBackground(new Color(255, 255, 255, 0));
+        synchronized (CanvasLayer.class) {
+            g.clearRect(offset.x, offset.y, image.getWidth(),
+                    image.getHeight());
+        }
+        g.dispose();
+    }
+}
@@ -1,9 +1,7 @@
 package distributedwhiteboard.gui;
 
-import distributedwhiteboard.NetMessage;
-import distributedwhiteboard.Server;
+import distributedwhiteboard.DrawMode;
 import distributedwhiteboard.WhiteboardMessage;
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
@@ -24,17 +22,32 @@ import javax.swing.JPanel;
 /**
  * Provides a canvas for the user or application to draw to. This canvas is 
  * based on the {@link BufferedImage} class, allowing it to be saved if needed.
+ * <p>
+ * Drawing is done through a {@link CanvasLayer} covering the whole image, 
+ * which {@link WhiteboardCanvas#getSurface()} gives out for drawing off the 
+ * event thread. A region of the canvas can be redrawn off screen by drawing 
+ * into a layer from {@link WhiteboardCanvas#createLayer(java.awt.Rectangle)}, 
+ * drawing the base image in at its place among the operations with {@link 
+ * WhiteboardCanvas#drawBase(distributedwhiteboard.gui.CanvasLayer)}, then 
+ * copying the layer back with {@link 
+ * WhiteboardCanvas#pasteLayer(distributedwhiteboard.gui.CanvasLayer)}.
  * 
  * @author 6266215
- * @version 1.2
+ * @version 1.9
  * @since 2015-03-15
  */
 public class WhiteboardCanvas extends JPanel
 {
     /** Serialisation ID. */
     private static final long serialVersionUID = 973789183742060090L;
+    /** The size drawn for an image that has not arrived yet. */
+    public static final Dimension PLACEHOLDER_SIZE = new Dimension(64, 64);
     /** The {@link BufferedImage} to draw to. */
     private final BufferedImage canvas;
+    /** Draws onto the canvas image. */
+    private final CanvasLayer surface;
+    /** The image drawn under every operation, such as a copied canvas. */
+    private BufferedImage base;
     
     /**
      * Creates a new instance of the {@link WhiteboardCanvas} class, with the 
@@ -50,9 +63,150 @@ public class WhiteboardCanvas extends JPanel
         
         this.canvas = new BufferedImage(width, height, 
                 BufferedImage.TYPE_INT_ARGB);
+        this.surface = new CanvasLayer(canvas);
+        this.base = null;
         this.setFocusable(true);
     }
     
+    /**
+     * Gets the {@link CanvasLayer} that draws onto this canvas. Drawing 
+     * through it does not repaint the canvas; call {@link 
+     * WhiteboardCanvas#repaint()} once the drawing is done.
+     * 
+     * @return The {@link CanvasLayer} covering the whole canvas.
+     * @since 1.9
+     */
+    public CanvasLayer getSurface() { return surface; }
+    
+    /**
+     * Sets the image that sits under every drawing operation, such as the 
+     * canvas copied from another host when joining. Regions that are redrawn 
+     * start from this image.
+     * 
+     * @param img The base image as a {@link BufferedImage}, or null for none.
+     * @since 1.5
+     */
+    public void setBaseImage(BufferedImage img) { this.base = img; }
+    
+    /**
+     * Creates an off screen layer for redrawing a region of this canvas. The 
+     * layer starts out empty; the base image is drawn onto it with {@link 
+     * WhiteboardCanvas#drawBase(CanvasLayer)} once every operation under it 
+     * has been drawn. The layer is a plain image, so this is safe to call 
+     * from any thread.
+     * 
+     * @param region The region of this canvas to redraw.
+     * @return A new {@link CanvasLayer} covering the region.
+     * @since 1.5
+     */
+    public CanvasLayer createLayer(Rectangle region)
+    {
+        Rectangle area = region.intersection(
+                new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        return new CanvasLayer(area);
+    }
+    
+    /**
+     * Draws the base image of this canvas onto this canvas or one of its 
+     * layers, over whatever has been drawn so far.
+     * 
+     * @param target The surface of this canvas, or a layer made by {@link 
+     * WhiteboardCanvas#createLayer(java.awt.Rectangle)}.
+     * @since 1.8
+     */
+    public void drawBase(CanvasLayer target)
+    {
+        BufferedImage img = base;
+        if (img != null) target.drawOver(img);
+    }
+    
+    /**
+     * Replaces a region of this canvas with the contents of a layer made by 
+     * {@link WhiteboardCanvas#createLayer(java.awt.Rectangle)}.
+     * 
+     * @param layer The finished layer to copy onto this canvas.
+     * @since 1.5
+     */
+    public void pasteLayer(CanvasLayer layer)
+    {
+        surface.paste(layer);
+        this.repaint(layer.getBounds());
+    }
+    
+    /**
+     * Works out the region of the canvas a {@link WhiteboardMessage} draws 
+     * over, including the width of its lines.
+     * 
+     * @param msg The {@link WhiteboardMessage} to measure.
+     * @param img The image drawn by a {@link DrawMode#IMAGE} message, or null 
+     * for other messages. If the image is not known yet, the area of its 
+     * placeholder is used.
+     * @return The region covered as a {@link Rectangle}.
+     * @since 1.5
+     */
+    public Rectangle getArea(WhiteboardMessage msg, BufferedImage img)
+    {
+        return getArea(msg, img, 0);
+    }
+    
+    /**
+     * Works out the region of the canvas a {@link WhiteboardMessage} draws 
+     * over, where the image of a {@link DrawMode#IMAGE} message is a smaller 
+     * level of the original; see {@link 
+     * distributedwhiteboard.ImageCache}.
+     * 
+     * @param msg The {@link WhiteboardMessage} to measure.
+     * @param img The image drawn by a {@link DrawMode#IMAGE} message, or null 
+     * for other messages or an image that is not known yet.
+     * @param level The number of times the image was halved from its 
+     * original size.
+     * @return The region covered as a {@link Rectangle}.
+     * @since 1.7
+     */
+    public Rectangle getArea(WhiteboardMessage msg, BufferedImage img, 
+            int level)
+    {
+        Rectangle area = new Rectangle(msg.startPoint);
+        int pad = 1;
+        switch (msg.mode) {
+            case LINE:
+                area.add(msg.endPoint);
+                pad = msg.lineWeight;
+                break;
+            case FREEFORM_LINE:
+            case POLYGON:
+                for (Point p : msg.points)
+                    area.add(p);
+                pad = msg.lineWeight;
+                break;
+            case RECTANGLE:
+                area.add(msg.endPoint);
+                if (msg.hasBorder) pad = msg.borderWeight;
+                break;
+            case TEXT:
+                FontMetrics metrics = getFontMetrics(msg.font);
+                area.y -= metrics.getAscent();
+                area.width = metrics.stringWidth(msg.text);
+                area.height = metrics.getAscent()+metrics.getDescent();
+                pad = msg.font.getSize()/4; // Allow for italic overhang.
+                break;
+            case IMAGE:
+                pad = 0;
+                if (img == null) {
+                    area.setSize(PLACEHOLDER_SIZE);
+                    break;
+                }
+                float scale = Math.min(1.0f, Math.max(0.1f, msg.imageScale));
+                scale *= 1 << level;
+                area.width = (int)(img.getWidth()*scale);
+                area.height = (int)(img.getHeight()*scale);
+                break;
+        }
+        // Half the stroke either side, plus a little for antialiasing.
+        area.grow(pad/2+2, pad/2+2);
+        return area;
+    }
+    
     /**
      * Gets the {@link BufferedImage} that this {@link WhiteboardCanvas} is 
      * drawing to.
@@ -77,21 +231,31 @@ public class WhiteboardCanvas extends JPanel
      */
     public Point drawLine(Point start, Point end, Color colour, int size)
     {
-        Graphics2D g = (Graphics2D)canvas.getGraphics();
-        Color col = Color.BLACK;
-        int weight = 1;
-        if (colour != null)
-            col = colour;
-        if (size > 0)
-            weight = size;
-        
-        g.setColor(col);
-        g.setStroke(new BasicStroke(weight));
-        synchronized (WhiteboardCanvas.class) {
-            g.drawLine(start.x, start.y, end.x, end.y);
-        }
+        Point p = surface.drawLine(start, end, colour, size);
+        this.repaint();
+        return p;
+    }
+    
+    /**
+     * Draws a connected path through a series of points as a single shape with 
+     * the provided colour and line weight. A single point is drawn as a dot.
+     * 
+     * @param points The {@link Point}s to draw through, in order.
+     * @param closed If true, the last point is joined back to the first.
+     * @param colour The colour of the path as an {@link Color}. If null is 
+     * provided, the path will draw using {@link Color#BLACK}.
+     * @param size The width of the path as an int. A size of zero or less will 
+     * be ignored and replace with '1'.
+     * @return Returns the last {@link Point} of the path, or null if no points 
+     * were provided.
+     * @since 1.3
+     */
+    public Point drawPath(Point[] points, boolean closed, Color colour, 
+            int size)
+    {
+        Point p = surface.drawPath(points, closed, colour, size);
         this.repaint();
-        return end;
+        return p;
     }
     
     /**
@@ -109,27 +273,27 @@ public class WhiteboardCanvas extends JPanel
      */
     public Point drawText(char c, Point point, Font font, Color colour)
     {
-        Graphics2D g = (Graphics2D)canvas.getGraphics();
-        Font f = new Font("Serif", Font.PLAIN, 12);
-        Color col = Color.BLACK;
-        if (colour != null)
-            col = colour;
-        if (font != null)
-            f = font;
-        
-        String text = String.valueOf(c);
-        g.setColor(col);
-        g.setFont(f);
-        synchronized (WhiteboardCanvas.class) {
-            g.drawString(text, point.x, point.y);
-        }
-        FontMetrics metrics = g.getFontMetrics();
-        
-        Point nextPoint = new Point(point);
-        nextPoint.x += metrics.stringWidth(text);
-        
+        return drawText(String.valueOf(c), point, font, colour);
+    }
+    
+    /**
+     * Draws a run of text to the canvas with the specified {@link Font} and 
+     * {@link Color} in a single call.
+     * 
+     * @param text The text to display as a {@link String}.
+     * @param point The point to draw the text at as an {@link Point}.
+     * @param font The font settings (family, size, style) as a {@link Font}. If
+     *  null is provided, the text will use 'Serif' at 12pt.
+     * @param colour The colour to draw the text in as a {@link Color}. If null 
+     * is provided, the text will draw with {@link Color#BLACK}.
+     * @return Returns the point that this text stopped drawing at.
+     * @since 1.4
+     */
+    public Point drawText(String text, Point point, Font font, Color colour)
+    {
+        Point p = surface.drawText(text, point, font, colour);
         this.repaint();
-        return nextPoint;
+        return p;
     }
     
     /**
@@ -153,17 +317,10 @@ public class WhiteboardCanvas extends JPanel
     public Point drawRectangle(Point origin, Dimension size, Color colour, 
             boolean fillShape, boolean border, int weight, Color borderColour)
     {
-        size = new Dimension(
-                Math.abs(size.width), 
-                Math.abs(size.height)
-        );
-        Rectangle rect = new Rectangle(origin, size);
-        drawShape(rect, colour, fillShape, border, weight, borderColour);
-        
-        Point result = new Point(origin);
-        result.x += size.width;
-        result.y += size.height;
-        return result;
+        Point p = surface.drawRectangle(origin, size, colour, fillShape, 
+                border, weight, borderColour);
+        this.repaint();
+        return p;
     }
     
     /**
@@ -188,32 +345,8 @@ public class WhiteboardCanvas extends JPanel
     public void drawShape(Shape s, Color colour, boolean fillShape, 
             boolean border, int weight, Color borderColour)
     {
-        Graphics2D g = (Graphics2D)canvas.getGraphics();
-        Color col = Color.BLACK;
-        Color borderCol = Color.LIGHT_GRAY;
-        int borderWeight = 1;
-        
-        if (colour != null)
-            col = colour;
-        if (borderColour != null)
-            borderCol = borderColour;
-        if (weight > 0)
-            borderWeight = weight;
-        
-        g.setColor(col);
-        synchronized (WhiteboardCanvas.class) {
-            if (fillShape)
-                g.fill(s);
-            else
-                g.draw(s);
-
-            if (border) {
-                g.setColor(borderCol);
-                g.setStroke(new BasicStroke(borderWeight));
-                g.draw(s);
-            }
-            this.repaint();
-        }
+        surface.drawShape(s, colour, fillShape, border, weight, borderColour);
+        this.repaint();
     }
     
     /**
@@ -228,21 +361,42 @@ public class WhiteboardCanvas extends JPanel
      */
     public void drawImage(Point origin, BufferedImage img, float scale)
     {
-        if (img == null || scale <= 0.0f) return;
-        // Clamp the value.
-        scale = Math.max(0.1f, scale);
-        scale = Math.min(1.0f, scale);
-        // Scale the width and height.
-        int w = (int)(img.getWidth()*scale);
-        int h = (int)(img.getHeight()*scale);
-        // Draw the image.
-        Graphics2D g = (Graphics2D)canvas.createGraphics();
-        synchronized (WhiteboardCanvas.class) {
-            g.drawImage(img, origin.x, origin.y, w, h, null);
-        }
+        drawImage(origin, img, scale, 0);
+    }
+    
+    /**
+     * Draws a smaller level of an image to this {@link WhiteboardCanvas}, 
+     * stretched back to the size the original would be drawn at. This lets 
+     * a coarse preview stand in for an image until the finer level arrives.
+     * 
+     * @param origin The {@link Point} to render the image from.
+     * @param img The level of the image to render as a {@link BufferedImage}.
+     * @param scale The scale of the original image relative to its original 
+     * size as a float. This is clamped from 0.1 to 1.0.
+     * @param level The number of times the image was halved from its 
+     * original size.
+     * @since 1.7
+     */
+    public void drawImage(Point origin, BufferedImage img, float scale, 
+            int level)
+    {
+        surface.drawImage(origin, img, scale, level);
         this.repaint();
     }
     
+    /**
+     * Draws a placeholder for an image that is still being fetched from 
+     * another host. The placeholder is a grey box with a cross through it, 
+     * {@link WhiteboardCanvas#PLACEHOLDER_SIZE} in size.
+     * 
+     * @param origin The {@link Point} the image will be drawn from.
+     * @since 1.6
+     */
+    public void drawPlaceholder(Point origin)
+    {
+        this.repaint(surface.drawPlaceholder(origin));
+    }
+    
     /**
      * Clears the contents of the canvas and sets the background to white.
      * 
@@ -250,11 +404,7 @@ public class WhiteboardCanvas extends JPanel
      */
     public void clearCanvas()
     {
-        Graphics2D g = (Graphics2D)canvas.createGraphics();
-        g.setBackground(new Color(255, 255, 255, 0));
-        synchronized (WhiteboardCanvas.class) {
-            g.clearRect(0, 0, this.getWidth(), this.getHeight());
-        }
+        surface.clear();
         this.repaint();
     }
 
@@ -24,6 +24,7 @@ import java.awt.font.TextAttribute;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,6 +40,7 @@ import javax.swing.JPanel;
 import javax.swing.JSlider;
 import javax.swing.JToggleButton;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 import javax.swing.border.Border;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.LineBorder;
@@ -53,7 +55,7 @@ import say.swing.JFontChooser;
  * colour, line width, font and shape border settings.
  *
  * @author 6266215
- * @version 1.3
+ * @version 1.6
  * @since 2015-03-17
  */
 public final class WhiteboardControls extends JPanel 
@@ -74,6 +76,12 @@ public final class WhiteboardControls extends JPanel
     private static final String SHAPES = "SHAPES";
     /** Identifier for the image tools card. */
     private static final String IMAGES = "IMAGES";
+    /** The minimum time in milliseconds between freeform stroke samples. */
+    private static final int STROKE_SAMPLE_MS = 15;
+    /** How often in milliseconds a freeform stroke in progress is sent. */
+    private static final int STROKE_FLUSH_MS = 100;
+    /** How long in milliseconds to wait after a keystroke to send text. */
+    private static final int TEXT_DEBOUNCE_MS = 300;
     
     // <editor-fold defaultstate="collapsed" desc="Swing components">
     /** The {@link WhiteboardCanvas} to draw to. */
@@ -119,8 +127,17 @@ public final class WhiteboardControls extends JPanel
     private boolean fillShape, borderShape;
     // Image to draw to the screen.
     private BufferedImage image;
+    // The image cache key of the image to draw.
+    private long imageKey;
+    // Points of the stroke or polygon that have not been sent yet.
+    private final ArrayList<Point> path = new ArrayList<>();
+    // Characters typed but not sent yet, and the point the run started at.
+    private final StringBuilder pendingText = new StringBuilder();
+    private Point textOrigin;
+    // Sends the pending text once typing pauses.
+    private final Timer textTimer;
     
-    private long lastUpdateTime;
+    private long lastUpdateTime, lastPathSend;
     
     /**
      * Set up a new set of {@link WhiteboardControls} for a specified {@link 
@@ -224,6 +241,8 @@ public final class WhiteboardControls extends JPanel
         this.borderColour = Color.WHITE;
         this.image = null;
         this.lastUpdateTime = 0;
+        this.textTimer = new Timer(TEXT_DEBOUNCE_MS, this);
+        this.textTimer.setRepeats(false);
         
         setupLayout();
     }
@@ -321,7 +340,103 @@ public final class WhiteboardControls extends JPanel
         lastPoint = canvas.drawLine(lastPoint, nextPoint, colour, lineWeight);
         msg.addUniqueID();
         Client.getInstance().broadCastMessage(msg);
-        Server.messages.put(msg.getUniqueID(), msg);
+        Server.addLocalMessage(msg);
+    }
+    
+    /**
+     * Adds the next point of a freeform stroke, drawing the new segment to the
+     *  referenced {@link WhiteboardCanvas}. The points are gathered into a 
+     * single path message, which is sent when it is full or every {@link 
+     * WhiteboardControls#STROKE_FLUSH_MS} while the stroke continues.
+     * 
+     * @param nextPoint The next {@link Point} of the stroke. If no stroke is in
+     *  progress, this point starts a new one.
+     * @since 1.4
+     */
+    private void drawStroke(Point nextPoint)
+    {
+        if (lastPoint == null) {
+            lastPoint = nextPoint;
+            path.clear();
+            path.add(nextPoint);
+            lastPathSend = System.currentTimeMillis();
+            return;
+        }
+        
+        lastPoint = canvas.drawLine(lastPoint, nextPoint, colour, lineWeight);
+        path.add(nextPoint);
+        long curTime = System.currentTimeMillis();
+        if (path.size() >= WhiteboardMessage.MAX_PATH_POINTS 
+                || curTime-lastPathSend >= STROKE_FLUSH_MS)
+            sendPath(DrawMode.FREEFORM_LINE, true);
+    }
+    
+    /**
+     * Adds the next corner of a polygon, drawing the new edge to the 
+     * referenced {@link WhiteboardCanvas}. The polygon is sent as one message 
+     * once it is finished, or when it reaches {@link 
+     * WhiteboardMessage#MAX_PATH_POINTS} corners.
+     * 
+     * @param nextPoint The next corner of the polygon as a {@link Point}.
+     * @since 1.4
+     */
+    private void drawPolygon(Point nextPoint)
+    {
+        if (lastPoint == null) {
+            firstPoint = nextPoint;
+            lastPoint = nextPoint;
+            path.clear();
+            path.add(nextPoint);
+            return;
+        }
+        
+        lastPoint = canvas.drawLine(lastPoint, nextPoint, colour, lineWeight);
+        path.add(nextPoint);
+        if (path.size() >= WhiteboardMessage.MAX_PATH_POINTS)
+            finishPolygon();
+    }
+    
+    /**
+     * Closes the polygon in progress by joining its last corner to the first, 
+     * then sends the whole polygon as a single message.
+     * 
+     * @since 1.4
+     */
+    private void finishPolygon()
+    {
+        if (path.size() > 1) {
+            canvas.drawLine(lastPoint, firstPoint, colour, lineWeight);
+            sendPath(DrawMode.POLYGON, false);
+        }
+        path.clear();
+        lastPoint = null;
+        firstPoint = null;
+    }
+    
+    /**
+     * Sends the gathered path points to every other client as a single {@link
+     *  WhiteboardMessage}.
+     * 
+     * @param pathMode The {@link DrawMode} to send the path as.
+     * @param continues If true, the last point is kept as the start of the 
+     * next part of the path so the parts join up.
+     * @since 1.4
+     */
+    private void sendPath(DrawMode pathMode, boolean continues)
+    {
+        if (path.isEmpty()) return;
+        
+        Point[] points = path.toArray(new Point[path.size()]);
+        WhiteboardMessage msg = new WhiteboardMessage(pathMode, points, colour, 
+                lineWeight);
+        msg.addUniqueID();
+        Client.getInstance().broadCastMessage(msg);
+        Server.addLocalMessage(msg);
+        
+        path.clear();
+        if (continues)
+            path.add(points[points.length-1]);
+        lastPathSend = System.currentTimeMillis();
     }
     
     /**
@@ -362,13 +477,16 @@ public final class WhiteboardControls extends JPanel
             firstPoint = null; // Reset the origin point.
             msg.addUniqueID();
             Client.getInstance().broadCastMessage(msg);
-            Server.messages.put(msg.getUniqueID(), msg);
+            Server.addLocalMessage(msg);
         }
     }
     
     /**
      * Draw a {@link String} to the referenced {@link WhiteboardCanvas}. The 
      * drawing point for this text is set by clicking the canvas before typing.
+     * Each character is drawn straight away, but characters are only sent to 
+     * other clients as a run once typing pauses for {@link 
+     * WhiteboardControls#TEXT_DEBOUNCE_MS}.
      * 
      * @param c The character to draw to the canvas.
      * @since 1.0
@@ -381,15 +499,37 @@ public final class WhiteboardControls extends JPanel
         if (m.matches()) return;
         
         if (lastPoint != null) {
-            WhiteboardMessage msg = new WhiteboardMessage(lastPoint, colour, 
-                    font, c);
+            if (pendingText.length() == 0)
+                textOrigin = lastPoint;
+            pendingText.append(c);
             lastPoint = canvas.drawText(c, lastPoint, font, colour);
-            msg.addUniqueID();
-            Client.getInstance().broadCastMessage(msg);
-            Server.messages.put(msg.getUniqueID(), msg);
+            if (pendingText.length() >= WhiteboardMessage.MAX_TEXT_LENGTH)
+                sendText();
+            else
+                textTimer.restart();
         }
     }
     
+    /**
+     * Sends any text typed since the last run was sent to every other client 
+     * as a single {@link WhiteboardMessage}.
+     * 
+     * @since 1.5
+     */
+    private void sendText()
+    {
+        textTimer.stop();
+        if (pendingText.length() == 0) return;
+        
+        WhiteboardMessage msg = new WhiteboardMessage(textOrigin, colour, font,
+                pendingText.toString());
+        msg.addUniqueID();
+        Client.getInstance().broadCastMessage(msg);
+        Server.addLocalMessage(msg);
+        pendingText.setLength(0);
+        textOrigin = null;
+    }
+    
     /**
      * Draws an image to the referenced {@link WhiteboardCanvas}. The image will
      *  be drawn at the last point clicked.
@@ -401,13 +541,13 @@ public final class WhiteboardControls extends JPanel
         if (lastPoint != null && image != null) {
             int scale = scaleSlider.getValue();
             WhiteboardMessage msg = 
-                    new WhiteboardMessage(lastPoint, scale, image.hashCode());
+                    new WhiteboardMessage(lastPoint, scale, imageKey);
             msg.addUniqueID();
             Client client = Client.getInstance();
             canvas.drawImage(lastPoint, image, scale/100.f);
+            Server.images.put(imageKey, image);
             client.broadCastMessage(msg);
-            Server.images.put(image.hashCode(), image);
-            Server.messages.put(msg.getUniqueID(), msg);
+            Server.addLocalMessage(msg);
         }
     }
         
@@ -588,7 +728,11 @@ public final class WhiteboardControls extends JPanel
     public void actionPerformed(ActionEvent e)
     {
         Object source = e.getSource();
-        if (source == colourPicker) {
+        // Style changes only apply to text typed after them.
+        sendText();
+        if (source == textTimer)
+            return;
+        else if (source == colourPicker) {
             colour = showColourPicker();
             colPreview.setBackground(colour);
         } else if (source == borderPicker) {
@@ -596,9 +740,11 @@ public final class WhiteboardControls extends JPanel
             bPreview.setBackground(borderColour);
         } else if (source == fontPicker)
             font = showFontChooser();
-        else if (source == imagePicker)
+        else if (source == imagePicker) {
             image = showImagePicker();
-        else if (source == boldButton)
+            if (image != null)
+                imageKey = Server.images.put(image);
+        } else if (source == boldButton)
             toggleBold();
         else if (source == italicButton)
             toggleItalics();
@@ -617,6 +763,11 @@ public final class WhiteboardControls extends JPanel
      */
     private void modeSelectAction(ItemEvent e)
     {
+        // Send anything drawn so far so other clients match this canvas.
+        sendText();
+        if (path.size() > 1)
+            sendPath(DrawMode.FREEFORM_LINE, false);
+        path.clear();
         mode = (DrawMode)e.getItem();
         lastPoint = null;
         firstPoint = null;
@@ -721,24 +872,34 @@ public final class WhiteboardControls extends JPanel
         
         switch (mode) {
             case LINE:
-            case POLYGON:
                 switch(e.getButton()) {
                     case MouseEvent.BUTTON1: // Set next point.
                         drawLine(newPoint);
                         break;
-                    case MouseEvent.BUTTON3: // Cancel drawing/ finish polygon.
-                        if (mode == DrawMode.POLYGON) {
-                            drawLine(firstPoint);
-                        }
+                    case MouseEvent.BUTTON3: // Cancel drawing.
                         lastPoint = null;
                         firstPoint = null;
                         break;
                 }
                 break;
+            case POLYGON:
+                switch(e.getButton()) {
+                    case MouseEvent.BUTTON1: // Set next point.
+                        drawPolygon(newPoint);
+                        break;
+                    case MouseEvent.BUTTON3: // Finish polygon.
+                        finishPolygon();
+                        break;
+                }
+                break;
             case FREEFORM_LINE:
                 if (e.getButton() == MouseEvent.BUTTON1) {
-                    lastPoint = newPoint;
-                    drawLine(newPoint);
+                    // A click without a drag draws a single dot.
+                    path.clear();
+                    path.add(newPoint);
+                    canvas.drawPath(new Point[] { newPoint }, false, colour, 
+                            lineWeight);
+                    sendPath(DrawMode.FREEFORM_LINE, false);
                     lastPoint = null;
                 }
                 break;
@@ -754,6 +915,7 @@ public final class WhiteboardControls extends JPanel
                 }
                 break;
             case TEXT:
+                sendText();
                 lastPoint = newPoint;
                 break;
             case IMAGE:
@@ -766,9 +928,9 @@ public final class WhiteboardControls extends JPanel
     }
 
     /**
-     * If drawing a {@link DrawMode#FREEFORM_LINE}, this will cancel the line 
-     * drawing and clear the last stored {@link Point} to prevent extra lines 
-     * being drawn.
+     * If drawing a {@link DrawMode#FREEFORM_LINE}, this will send the rest of 
+     * the stroke and clear the last stored {@link Point} to prevent extra lines
+     *  being drawn.
      * 
      * @param e The {@link MouseEvent} sent by the canvas.
      * @since 1.1
@@ -776,8 +938,13 @@ public final class WhiteboardControls extends JPanel
     @Override
     public void mouseReleased(MouseEvent e)
     {
-        if (mode == DrawMode.FREEFORM_LINE)
+        if (mode == DrawMode.FREEFORM_LINE) {
+            // Send whatever is left of the stroke.
+            if (path.size() > 1)
+                sendPath(DrawMode.FREEFORM_LINE, false);
+            path.clear();
             lastPoint = null;
+        }
     }
 
     /**
@@ -794,13 +961,13 @@ public final class WhiteboardControls extends JPanel
         switch(mode) {
             case FREEFORM_LINE:
                 long curTime = System.currentTimeMillis();
-                // Limit how regularly new line segments are created to avoid 
-                // saturating the network with line segments.
-                if ((curTime - lastUpdateTime) < 50) break;
+                // Limit how regularly new points are sampled, the points are 
+                // sent together in stroke messages.
+                if ((curTime - lastUpdateTime) < STROKE_SAMPLE_MS) break;
                 lastUpdateTime = curTime;
                 Point nextPoint = e.getPoint();
                 if (!nextPoint.equals(lastPoint))
-                    drawLine(e.getPoint());
+                    drawStroke(nextPoint);
                 break;
         }
     
@@ -1,6 +1,7 @@
 package distributedwhiteboard.gui;
 
 import distributedwhiteboard.Client;
+import distributedwhiteboard.PeerQueue;
 import distributedwhiteboard.Server;
 import java.awt.Component;
 import java.awt.event.ActionEvent;
@@ -9,6 +10,7 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.util.ArrayList;
 import javax.swing.ImageIcon;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -27,7 +29,7 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * extra buttons are needed.
  * 
  * @author 6266215
- * @version 1.1
+ * @version 1.7
  * @since 2015-03-17
  */
 public final class WhiteboardMenu extends JMenuBar implements ActionListener
@@ -44,7 +46,10 @@ public final class WhiteboardMenu extends JMenuBar implements ActionListener
     // A listing of all supported image types to save to.
     private final ArrayList<JMenuItem> saveItems;
     // Help menu iems.
-    private final JMenuItem redrawItem, lossItem;
+    private final JMenuItem redrawItem, lossItem, batchItem, parityItem, 
+            queueItem, pipelineItem, imageCacheItem;
+    // Sends draw messages over multicast when ticked.
+    private final JCheckBoxMenuItem multicastItem;
     // Icons for the various menu items.
     private final ImageIcon closeIcon, helpIcon, imageIcon, connectIcon, 
             disconnectIcon;
@@ -120,11 +125,35 @@ public final class WhiteboardMenu extends JMenuBar implements ActionListener
         this.lossItem = new JMenuItem("Packet Loss");
         this.lossItem.setMnemonic('l');
         
+        this.batchItem = new JMenuItem("Batch Window");
+        this.batchItem.setMnemonic('b');
+        
+        this.parityItem = new JMenuItem("Parity Group");
+        this.parityItem.setMnemonic('p');
+        
+        this.multicastItem = new JCheckBoxMenuItem("Multicast Drawing");
+        this.multicastItem.setMnemonic('m');
+        
+        this.queueItem = new JMenuItem("Send Queues");
+        this.queueItem.setMnemonic('q');
+        
+        this.pipelineItem = new JMenuItem("Receive Pipeline");
+        this.pipelineItem.setMnemonic('e');
+        
+        this.imageCacheItem = new JMenuItem("Image Cache");
+        this.imageCacheItem.setMnemonic('i');
+        
         this.demoMenu = new JMenu("Demo");
         this.demoMenu.setMnemonic('d');
         this.demoMenu.add(this.redrawItem);
         this.demoMenu.add(new JSeparator());
         this.demoMenu.add(this.lossItem);
+        this.demoMenu.add(this.batchItem);
+        this.demoMenu.add(this.parityItem);
+        this.demoMenu.add(this.multicastItem);
+        this.demoMenu.add(this.queueItem);
+        this.demoMenu.add(this.pipelineItem);
+        this.demoMenu.add(this.imageCacheItem);
         
         this.clientsMenu = new JMenu("Clients");
         
@@ -153,6 +182,12 @@ public final class WhiteboardMenu extends JMenuBar implements ActionListener
         clearItem.addActionListener(this);
         redrawItem.addActionListener(this);
         lossItem.addActionListener(this);
+        batchItem.addActionListener(this);
+        parityItem.addActionListener(this);
+        multicastItem.addActionListener(this);
+        queueItem.addActionListener(this);
+        pipelineItem.addActionListener(this);
+        imageCacheItem.addActionListener(this);
         
         connectItem.setEnabled(!Client.getInstance().isEnabled());
         disconnectItem.setEnabled(Client.getInstance().isEnabled());
@@ -318,6 +353,56 @@ public final class WhiteboardMenu extends JMenuBar implements ActionListener
             dialog.createDialog("Set Packet Loss").setVisible(true);
             
             Server.setPacketLossRatio((int)dialog.getInputValue());
+        } else if (source == batchItem) {
+            // Change how long draw messages are gathered before sending.
+            String windowStr = JOptionPane.showInputDialog(parent, 
+                    "Enter a batch window in milliseconds (0 to disable)", 
+                    client.getBatchWindow());
+            if (windowStr == null) return;
+            try {
+                client.setBatchWindow(Integer.parseInt(windowStr.trim()));
+            } catch (NumberFormatException nfe) {
+                JOptionPane.showMessageDialog(parent, 
+                        "Batch window must be a whole number.", 
+                        "Invalid Batch Window", 
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        } else if (source == queueItem) {
+            // Show the peer send queues and change their overflow policy.
+            Object policy = JOptionPane.showInputDialog(parent, 
+                    new Object[] {client.getQueueStats(), 
+                        "Policy when a queue is full:"}, 
+                    "Send Queues", JOptionPane.QUESTION_MESSAGE, null, 
+                    PeerQueue.Policy.values(), client.getQueuePolicy());
+            if (policy != null)
+                client.setQueuePolicy((PeerQueue.Policy)policy);
+        } else if (source == pipelineItem) {
+            // Show how each stage of the receive pipeline is keeping up.
+            JOptionPane.showMessageDialog(parent, 
+                    server.getPipelineStats(), "Receive Pipeline", 
+                    JOptionPane.INFORMATION_MESSAGE);
+        } else if (source == imageCacheItem) {
+            // Show how much of the image cache is in memory.
+            JOptionPane.showMessageDialog(parent, Server.images.toString(), 
+                    "Image Cache", JOptionPane.INFORMATION_MESSAGE);
+        } else if (source == multicastItem) {
+            // Switch draw messages between unicast and multicast.
+            client.setMulticastDraw(multicastItem.isSelected());
+            multicastItem.setSelected(client.isMulticastDraw());
+        } else if (source == parityItem) {
+            // Change how many datagrams share each parity frame.
+            String groupStr = JOptionPane.showInputDialog(parent, 
+                    "Enter how many packets share a parity packet (0 to "
+                    + "disable)", client.getParityGroup());
+            if (groupStr == null) return;
+            try {
+                client.setParityGroup(Integer.parseInt(groupStr.trim()));
+            } catch (NumberFormatException nfe) {
+                JOptionPane.showMessageDialog(parent, 
+                        "Parity group must be a whole number.", 
+                        "Invalid Parity Group", 
+                        JOptionPane.ERROR_MESSAGE);
+            }
         }
     }
     